@@ -0,0 +1,183 @@
+package spikedog.casual.server.bench;
+
+import spikedog.casual.server.CasualServer;
+import spikedog.casual.server.sample.FileHost;
+import spikedog.casual.server.sample.HelloWorld;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end benchmarks which run the sample servers and drive them over loopback, reporting
+ * request throughput and the latency distribution. Each benchmark thread acts as one client, and
+ * the servers are given a thread per client so that none waits behind another's connection.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(LoopbackBenchmark.CLIENTS)
+public class LoopbackBenchmark {
+  static final int CLIENTS = 4;
+  private static final String FILE_NAME = "bench.html";
+
+  /** Runs one of the sample servers for the whole trial. */
+  @State(Scope.Benchmark)
+  public static class Server {
+    @Param({"hello", "file"})
+    public String server;
+
+    @Param({"1024", "65536"})
+    public int fileSize;
+
+    int port;
+    String path;
+
+    private CasualServer casualServer;
+    private File rootDir;
+    private PrintStream systemOut;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+      // The samples log every request, which would otherwise dominate the measurement.
+      systemOut = System.out;
+      System.setOut(new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+      }));
+
+      port = findFreePort();
+      if (server.equals("file")) {
+        rootDir = createRootDir(fileSize);
+        casualServer = new FileHost(rootDir.getPath(), port, newExecutor());
+        path = "/" + FILE_NAME;
+      } else {
+        casualServer = new HelloWorld(port, newExecutor());
+        path = "/";
+      }
+
+      Thread serverThread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            casualServer.start();
+          } catch (IOException e) {
+            // Stopped.
+          }
+        }
+      }, "casual-bench-server");
+      serverThread.setDaemon(true);
+      serverThread.start();
+      awaitListening(port);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+      casualServer.stop();
+      if (rootDir != null) {
+        new File(rootDir, FILE_NAME).delete();
+        rootDir.delete();
+      }
+      System.setOut(systemOut);
+    }
+  }
+
+  /** One client connection per benchmark thread. */
+  @State(Scope.Thread)
+  public static class Client {
+    LoopbackClient client;
+
+    @Setup(Level.Trial)
+    public void open(Server server) {
+      client = new LoopbackClient(server.port);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+      client.close();
+    }
+  }
+
+  @Benchmark
+  public long keepAlive(Server server, Client client) throws IOException {
+    return client.client.get(server.path, true);
+  }
+
+  @Benchmark
+  public long connectionPerRequest(Server server, Client client) throws IOException {
+    return client.client.get(server.path, false);
+  }
+
+  private static ExecutorService newExecutor() {
+    return Executors.newFixedThreadPool(CLIENTS);
+  }
+
+    private static int findFreePort() throws IOException {
+    ServerSocket socket = new ServerSocket(0);
+    try {
+      return socket.getLocalPort();
+    } finally {
+      socket.close();
+    }
+  }
+
+  private static void awaitListening(int port) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (System.currentTimeMillis() < deadline) {
+      try {
+        new Socket(InetAddress.getLoopbackAddress(), port).close();
+        return;
+      } catch (IOException e) {
+        Thread.sleep(10);
+      }
+    }
+    throw new IllegalStateException("Server did not start listening on port " + port);
+  }
+
+  private static File createRootDir(int fileSize) throws IOException {
+    File rootDir = File.createTempFile("casual-bench", "");
+    rootDir.delete();
+    rootDir.mkdir();
+
+    byte[] content = new byte[fileSize];
+    Arrays.fill(content, (byte) 'x');
+    FileOutputStream fileOut = new FileOutputStream(new File(rootDir, FILE_NAME));
+    try {
+      fileOut.write(content);
+    } finally {
+      fileOut.close();
+    }
+    return rootDir;
+  }
+}
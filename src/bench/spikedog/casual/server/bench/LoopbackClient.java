@@ -0,0 +1,168 @@
+package spikedog.casual.server.bench;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal HTTP/1.1 client for driving a server over loopback. Reads just enough of each response
+ * to find its end, so that the connection can be reused for the next request.
+ *
+ * <p><em>Not</em> thread-safe.
+ */
+final class LoopbackClient {
+  private static final byte[] CONTENT_LENGTH = ascii("content-length:");
+  private static final byte[] CONNECTION_CLOSE = ascii("connection: close");
+
+  private final int port;
+  private final byte[] buffer = new byte[64 * 1024];
+
+  private Socket socket;
+  private InputStream in;
+  private OutputStream out;
+
+  // Response bytes buffered in [position, limit).
+  private int position;
+  private int limit;
+
+  // Whether the last response said the server would close the connection.
+  private boolean serverClosing;
+
+  LoopbackClient(int port) {
+    this.port = port;
+  }
+
+  /**
+   * Sends a GET request, opening a connection if there is none, and reads the whole response.
+   *
+   * @param keepAlive Whether to keep the connection open for the next request.
+   * @return The number of body bytes received.
+   */
+  long get(String path, boolean keepAlive) throws IOException {
+    if (socket == null) {
+      socket = new Socket(InetAddress.getLoopbackAddress(), port);
+      socket.setTcpNoDelay(true);
+      in = socket.getInputStream();
+      out = socket.getOutputStream();
+      position = 0;
+      limit = 0;
+    }
+
+    out.write(ascii("GET " + path + " HTTP/1.1\r\n"
+        + "Host: localhost\r\n"
+        + (keepAlive ? "" : "Connection: close\r\n")
+        + "Content-Length: 0\r\n"
+        + "\r\n"));
+    out.flush();
+
+    long contentLength = readHead();
+    long remaining = contentLength;
+    while (remaining > 0) {
+      if (position == limit) {
+        fill();
+      }
+      int n = (int) Math.min(remaining, limit - position);
+      position += n;
+      remaining -= n;
+    }
+
+    if (!keepAlive || serverClosing) {
+      close();
+    }
+    return contentLength;
+  }
+
+  void close() throws IOException {
+    if (socket != null) {
+      socket.close();
+      socket = null;
+    }
+  }
+
+  /**
+   * Consumes a response head.
+   *
+   * @return The value of its Content-Length header, or 0 if it has none.
+   */
+  private long readHead() throws IOException {
+    if (position > 0) {
+      System.arraycopy(buffer, position, buffer, 0, limit - position);
+      limit -= position;
+      position = 0;
+    }
+
+    int scanned = 0;
+    while (true) {
+      for (int i = Math.max(scanned, 3); i < limit; i++) {
+        if (buffer[i] == '\n' && buffer[i - 1] == '\r' && buffer[i - 2] == '\n'
+            && buffer[i - 3] == '\r') {
+          position = i + 1;
+          serverClosing = findLine(i, CONNECTION_CLOSE) >= 0;
+          int contentLength = findLine(i, CONTENT_LENGTH);
+          return contentLength >= 0 ? parseDigits(contentLength + CONTENT_LENGTH.length) : 0;
+        }
+      }
+      scanned = limit;
+      fill();
+    }
+  }
+
+  /**
+   * @return The start of the first head line beginning with {@code lowerCasePrefix}, ignoring
+   *     case, or -1 if there is none.
+   */
+  private int findLine(int headEnd, byte[] lowerCasePrefix) {
+    for (int lineStart = 0; lineStart < headEnd; lineStart++) {
+      if ((lineStart == 0 || buffer[lineStart - 1] == '\n')
+          && matchesIgnoreCase(lineStart, headEnd, lowerCasePrefix)) {
+        return lineStart;
+      }
+    }
+    return -1;
+  }
+
+  private long parseDigits(int from) {
+    long value = 0;
+    for (int i = from; buffer[i] != '\r'; i++) {
+      if (buffer[i] >= '0' && buffer[i] <= '9') {
+        value = value * 10 + (buffer[i] - '0');
+      }
+    }
+    return value;
+  }
+
+  private boolean matchesIgnoreCase(int offset, int end, byte[] lowerCase) {
+    if (offset + lowerCase.length > end) {
+      return false;
+    }
+    for (int i = 0; i < lowerCase.length; i++) {
+      if (Character.toLowerCase(buffer[offset + i]) != lowerCase[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void fill() throws IOException {
+    if (limit == buffer.length) {
+      if (position == 0) {
+        throw new IOException("Response head too large");
+      }
+      limit = 0;
+      position = 0;
+    }
+    int n = in.read(buffer, limit, buffer.length - limit);
+    if (n < 0) {
+      throw new EOFException("Connection closed mid-response");
+    }
+    limit += n;
+  }
+
+  private static byte[] ascii(String value) {
+    return value.getBytes(StandardCharsets.ISO_8859_1);
+  }
+}
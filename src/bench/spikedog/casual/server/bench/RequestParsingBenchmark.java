@@ -0,0 +1,85 @@
+package spikedog.casual.server.bench;
+
+import spikedog.casual.server.Request;
+import spikedog.casual.server.RequestLine;
+import spikedog.casual.server.internal.StreamRequestBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Microbenchmarks for turning raw request bytes into {@link Request} instances.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParsingBenchmark {
+  private static final String REQUEST_LINE = "GET /static/css/index.css?v=12 HTTP/1.1";
+
+  private static final byte[] SMALL_REQUEST = ascii(
+      "GET / HTTP/1.1\r\n"
+      + "Host: localhost\r\n"
+      + "\r\n");
+
+  // Roughly what a desktop browser sends for a page load.
+  private static final byte[] BROWSER_REQUEST = ascii(
+      "GET /static/css/index.css?v=12 HTTP/1.1\r\n"
+      + "Host: localhost:8080\r\n"
+      + "Connection: keep-alive\r\n"
+      + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) "
+      + "Chrome/120.0.0.0 Safari/537.36\r\n"
+      + "Accept: text/css,*/*;q=0.1\r\n"
+      + "Referer: http://localhost:8080/\r\n"
+      + "Accept-Encoding: gzip, deflate, br\r\n"
+      + "Accept-Language: en-GB,en-US;q=0.9,en;q=0.8\r\n"
+      + "Cookie: session=4f0c2b7e9a1d; theme=dark; tracking=off\r\n"
+      + "If-Modified-Since: Sat, 29 Oct 1994 19:43:31 GMT\r\n"
+      + "\r\n");
+
+  private static final byte[] POST_REQUEST = ascii(
+      "POST /form HTTP/1.1\r\n"
+      + "Host: localhost\r\n"
+      + "Content-Type: application/x-www-form-urlencoded\r\n"
+      + "Content-Length: 27\r\n"
+      + "\r\n"
+      + "name=casual&value=benchmark");
+
+  @Benchmark
+  public RequestLine requestLineFromString() {
+    return RequestLine.fromString(REQUEST_LINE);
+  }
+
+  @Benchmark
+  public Request buildSmallRequest() throws IOException {
+    return StreamRequestBuilder.buildRequestFromStream(new ByteArrayInputStream(SMALL_REQUEST));
+  }
+
+  @Benchmark
+  public Request buildBrowserRequest() throws IOException {
+    return StreamRequestBuilder.buildRequestFromStream(new ByteArrayInputStream(BROWSER_REQUEST));
+  }
+
+  @Benchmark
+  public Request buildPostRequest() throws IOException {
+    return StreamRequestBuilder.buildRequestFromStream(new ByteArrayInputStream(POST_REQUEST));
+  }
+
+  private static byte[] ascii(String value) {
+    return value.getBytes(StandardCharsets.ISO_8859_1);
+  }
+}
@@ -0,0 +1,113 @@
+package spikedog.casual.server.bench;
+
+import spikedog.casual.server.Response;
+import spikedog.casual.server.StatusLine;
+import spikedog.casual.server.toolkit.FileServeHelper;
+import spikedog.casual.server.util.Constants;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Microbenchmarks for serialising responses, with output discarded so that only the server's own
+ * work is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseBenchmark {
+  @Param({"64", "16384"})
+  public int bodySize;
+
+  private byte[] body;
+  private File file;
+  private CountingOutputStream out;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    body = new byte[bodySize];
+    Arrays.fill(body, (byte) 'x');
+
+    file = File.createTempFile("casual-bench", ".html");
+    file.deleteOnExit();
+    FileOutputStream fileOut = new FileOutputStream(file);
+    try {
+      fileOut.write(body);
+    } finally {
+      fileOut.close();
+    }
+    out = new CountingOutputStream();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Benchmark
+  public long flushHeadOnly() throws IOException {
+    Response response = new Response(out);
+    response.setStatusLine(StatusLine.NO_CONTENT);
+    response.addHeader("Date", "Sat, 29 Oct 1994 19:43:31 GMT");
+    response.addHeader("Server", "CasualServer");
+    response.flush();
+    return out.count;
+  }
+
+  @Benchmark
+  public long flushWithBody() throws IOException {
+    Response response = new Response(out);
+    response.setStatusLine(StatusLine.OK);
+    response.addHeader(Constants.HEADER_CONTENT_TYPE, "text/html; charset=UTF-8");
+    response.addHeader(Constants.HEADER_CONTENT_LENGTH, "" + body.length);
+    response.addHeader("Date", "Sat, 29 Oct 1994 19:43:31 GMT");
+    response.addHeader("Server", "CasualServer");
+    response.setBody(new ByteArrayInputStream(body));
+    response.flush();
+    return out.count;
+  }
+
+  @Benchmark
+  public long serveFile() throws IOException {
+    Response response = new Response(out);
+    FileServeHelper.serveFile(file, response);
+    return out.count;
+  }
+
+  /** Discards everything written to it, keeping a count so the work cannot be optimised away. */
+  private static final class CountingOutputStream extends OutputStream {
+    long count;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}
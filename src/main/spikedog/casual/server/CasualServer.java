@@ -1,12 +1,22 @@
 package spikedog.casual.server;
 
+import spikedog.casual.server.internal.BufferPool;
+import spikedog.casual.server.internal.ChannelServerSocketFactory;
+import spikedog.casual.server.internal.RequestInputStream;
+import spikedog.casual.server.internal.SelectorLoop;
 import spikedog.casual.server.internal.SocketConfigResolver;
+import spikedog.casual.server.internal.SocketOutputStream;
 import spikedog.casual.server.internal.StreamRequestBuilder;
 import spikedog.casual.server.util.Constants;
+import spikedog.casual.server.util.RequestExecutors;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -16,11 +26,16 @@ import javax.net.ServerSocketFactory;
 /**
  * Server class intended for handling HTTP requests. Intended for subclassing.
  *
- * <p>Currently only compatible with HTTP/1.1.
+ * <p>Currently only compatible with HTTP/1.1. Connections are kept open between requests unless
+ * the client asks otherwise or a response cannot be delimited without closing the connection. See
+ * {@link SocketConfig.Builder#setIdleTimeout} and
+ * {@link SocketConfig.Builder#setMaxRequestsPerConnection}. Response bodies without a
+ * Content-Length are sent chunked to HTTP/1.1 clients.
  */
 public abstract class CasualServer {
-  private static final StatusLine UNSUPPORTED_METHOD_STATUS =
-      new StatusLine(Constants.VERISON_HTTP_1_1, 405, "Method not allowed.");
+  private static final int DRAIN_BUFFER_SIZE = 4096;
+  // Most unread request body skipped to reuse a connection, in bytes.
+  private static final long MAX_DRAIN_SIZE = 256 * 1024;
 
   private final int port;
   private final ServerSocketFactory socketFactory;
@@ -28,16 +43,23 @@ public abstract class CasualServer {
   private final Executor requestExecutor;
 
   private ServerSocket socket;
+  private volatile SelectorLoop selectorLoop;
 
   /**
    * Creates a server which executes all requests on a single thread. Subclasses which are
    * threadsafe may call to {@link CasualServer(int, ExecutorService, SocketConfig)} to use multiple
-   * request threads.
+   * request threads, or a virtual thread per connection with
+   * {@link RequestExecutors#newVirtualThreadPerTaskExecutor()}.
+   *
+   * <p>A connection holds its request thread while it waits for the client's next request, so
+   * with a single thread one idle client would stall every other. Connections are therefore
+   * closed after each request, trading connection reuse for fairness between clients.
    *
    * @param port The port which the server will bind to.
    */
   protected CasualServer(int port) {
-    this(port, Executors.newSingleThreadExecutor(), null);
+    this(port, Executors.newSingleThreadExecutor(),
+        new SocketConfig.Builder().setMaxRequestsPerConnection(1).build());
   }
 
   /**
@@ -50,7 +72,8 @@ public abstract class CasualServer {
    *     this config will have system defaults used in their place.
    */
   protected CasualServer(int port, ExecutorService requestExecutor, SocketConfig config) {
-    this(port, requestExecutor, new SocketConfigResolver(config), ServerSocketFactory.getDefault());
+    this(port, requestExecutor, new SocketConfigResolver(config),
+        new ChannelServerSocketFactory());
   }
 
   CasualServer(
@@ -69,57 +92,31 @@ public abstract class CasualServer {
    * {@link #stop()}.
    */
   public final void start() throws IOException {
+    if (socketConfigResolver.isNonBlocking()) {
+      selectorLoop = new SelectorLoop(port, requestExecutor, socketConfigResolver,
+          new SelectorLoop.RequestHandler() {
+            @Override
+            public boolean handleRequest(Request request, OutputStream out, boolean keepAlive) {
+              return serveRequest(request, new Response(out), keepAlive);
+            }
+          });
+      selectorLoop.run();
+      return;
+    }
+
     socket = socketFactory.createServerSocket(port);
 
-    while (true) {
+    while (!socket.isClosed()) {
       try {
         final Socket requestSocket = socket.accept();
         socketConfigResolver.configureSocket(requestSocket);
         requestExecutor.execute(new Runnable() {
           @Override
           public void run() {
-            Request request = null;
-            Response response = null;
             try {
-              response = new Response(requestSocket.getOutputStream());
-              request =
-                  StreamRequestBuilder.buildRequestFromStream(requestSocket.getInputStream());
-
-              // Assign request to appropriate method.
-              String method = request.getRequestLine().getMethod();
-              if (method.equalsIgnoreCase(Constants.METHOD_GET)) {
-                onGet(request, response);
-              } else if (method.equalsIgnoreCase(Constants.METHOD_POST)) {
-                onPost(request, response);
-              } else if (method.equalsIgnoreCase(Constants.METHOD_PUT)) {
-                onPut(request, response);
-              } else if (method.equalsIgnoreCase(Constants.METHOD_DELETE)) {
-                onDelete(request, response);
-              } else if (method.equalsIgnoreCase(Constants.METHOD_HEAD)) {
-                onHead(request, response);
-              } else if (method.equalsIgnoreCase(Constants.METHOD_OPTIONS)) {
-                onOptions(request, response);
-              } else if (method.equalsIgnoreCase(Constants.METHOD_TRACE)) {
-                onTrace(request, response);
-              } else {
-                onUnsupportedMethod(request, response);
-              }
-            } catch (Exception e) {
-              if (response != null && !response.hasFlushed()) {
-                response.setStatusLine(
-                    new StatusLine(Constants.VERISON_HTTP_1_1, 500, "Server error"));
-                response.clearAllHeaders();
-                response.setBody(null);
-                try {
-                  response.flush();
-                } catch (IOException e1) {
-                  // We tried... giving up.
-                  e1.printStackTrace();
-                }
-              }
-              System.err.println("Error handling request for " + request);
+              serveConnection(requestSocket);
+            } catch (IOException e) {
               e.printStackTrace();
-              throw new RuntimeException(e);
             } finally {
               if (requestSocket != null) {
                 try {
@@ -132,13 +129,220 @@ public abstract class CasualServer {
           }
         });
       } catch (Exception e) {
-        e.printStackTrace();
+        if (!socket.isClosed()) {
+          e.printStackTrace();
+        }
       }
     }
   }
 
   public final void stop() throws IOException {
-    socket.close();
+    if (selectorLoop != null) {
+      selectorLoop.stop();
+    }
+    if (socket != null) {
+      socket.close();
+    }
+  }
+
+  /**
+   * Serves requests from a blocking socket until either side ends the connection. Requests which
+   * a client pipelines are answered in order, with the responses held back and sent together
+   * until no further request is waiting. Output a handler explicitly flushes is sent at once.
+   */
+  private void serveConnection(Socket requestSocket) throws IOException {
+    RequestInputStream in =
+        new RequestInputStream(requestSocket.getInputStream(), BufferPool.getDefault());
+    SocketOutputStream out = new SocketOutputStream(requestSocket);
+    int maxRequests = socketConfigResolver.getMaxRequestsPerConnection();
+
+    try {
+      for (int requestCount = 1; ; requestCount++) {
+        if (requestCount > 1 ? !awaitNextRequest(requestSocket, in) : !in.awaitData()) {
+          // Closed without sending a request, e.g. a browser's speculative connection.
+          return;
+        }
+
+        Request request = null;
+        Response response = new Response(out);
+        try {
+          request = StreamRequestBuilder.buildDelimitedRequestFromStream(in);
+        } catch (IllegalArgumentException e) {
+          // Malformed, so where any next request would start cannot be trusted.
+          out.uncork();
+          rejectBadRequest(response);
+          return;
+        } catch (Exception e) {
+          out.uncork();
+          handleRequestFailure(request, response, e);
+        }
+
+        if (in.available() > 0) {
+          // More input already waiting, which may be a pipelined request.
+          out.cork();
+        }
+        boolean keepAlive =
+            requestCount < maxRequests && StreamRequestBuilder.hasDelimitedBody(request);
+        if (!serveRequest(request, response, keepAlive)) {
+          return;
+        }
+
+        if (!drainBody(request.getBody())) {
+          return;
+        }
+
+        if (in.available() == 0) {
+          // No pipelined request waiting, send everything now.
+          out.uncork();
+        }
+      }
+    } finally {
+      try {
+        out.uncork();
+      } finally {
+        in.release();
+      }
+    }
+  }
+
+  /**
+   * Skips whatever the handler left of a request body to reach the next request.
+   *
+   * @return False if so much was left that closing the connection is cheaper than reading it.
+   */
+  private static boolean drainBody(InputStream body) throws IOException {
+    byte[] buffer = BufferPool.getDefault().acquire(DRAIN_BUFFER_SIZE);
+    try {
+      long drained = 0;
+      int n;
+      while ((n = body.read(buffer)) >= 0) {
+        drained += n;
+        if (drained > MAX_DRAIN_SIZE) {
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      BufferPool.getDefault().release(buffer);
+    }
+  }
+
+  /**
+   * Waits up to the idle timeout for the first byte of another request.
+   *
+   * @return False if the connection was closed by the client or timed out.
+   */
+  private boolean awaitNextRequest(Socket requestSocket, RequestInputStream in)
+      throws IOException {
+    requestSocket.setSoTimeout(socketConfigResolver.getIdleTimeout());
+    try {
+      return in.awaitData();
+    } catch (SocketTimeoutException e) {
+      return false;
+    } finally {
+      requestSocket.setSoTimeout(socketConfigResolver.getSocketTimeout());
+    }
+  }
+
+  /**
+   * Dispatches a single request.
+   *
+   * @param keepAlive Whether the server is willing to reuse the connection after this request.
+   * @return Whether the connection may be reused.
+   */
+  private boolean serveRequest(Request request, Response response, boolean keepAlive) {
+    boolean http10 =
+        Constants.VERSION_HTTP_1_0.equals(request.getRequestLine().getHttpVersion());
+    boolean clientKeepAlive = !http10;
+    List<String> connectionTokens = request.getHeaderValues(Constants.HEADER_CONNECTION);
+    if (connectionTokens != null) {
+      for (String token : connectionTokens) {
+        if (token.equalsIgnoreCase(Constants.CONNECTION_CLOSE)) {
+          clientKeepAlive = false;
+          break;
+        } else if (token.equalsIgnoreCase(Constants.CONNECTION_KEEP_ALIVE)) {
+          clientKeepAlive = true;
+        }
+      }
+    }
+
+    keepAlive = keepAlive && clientKeepAlive;
+    response.setKeepAlive(keepAlive);
+    response.setChunkingAllowed(!http10);
+    if (keepAlive && http10) {
+      // HTTP/1.0 clients assume the connection closes unless told otherwise.
+      response.setHeader(Constants.HEADER_CONNECTION, Constants.CONNECTION_KEEP_ALIVE);
+    }
+
+    try {
+      dispatch(request, response);
+      response.finish();
+    } catch (Exception e) {
+      handleRequestFailure(request, response, e);
+    }
+    return response.isKeepAlive();
+  }
+
+  /**
+   * Assigns a request to the appropriate method, by the method token resolved when the request
+   * line was parsed.
+   */
+  private void dispatch(Request request, Response response) throws IOException {
+    switch (request.getRequestLine().getMethodToken()) {
+      case GET:
+        onGet(request, response);
+        break;
+      case POST:
+        onPost(request, response);
+        break;
+      case PUT:
+        onPut(request, response);
+        break;
+      case DELETE:
+        onDelete(request, response);
+        break;
+      case HEAD:
+        onHead(request, response);
+        break;
+      case OPTIONS:
+        onOptions(request, response);
+        break;
+      case TRACE:
+        onTrace(request, response);
+        break;
+      default:
+        onUnsupportedMethod(request, response);
+    }
+  }
+
+  /**
+   * Responds to a malformed request with 400 Bad Request, closing the connection.
+   */
+  private static void rejectBadRequest(Response response) throws IOException {
+    response.setKeepAlive(false);
+    response.setStatusLine(StatusLine.BAD_REQUEST);
+    response.flush();
+  }
+
+  /**
+   * Responds with a server error if nothing has been written yet, then rethrows.
+   */
+  private static void handleRequestFailure(Request request, Response response, Exception e) {
+    if (response != null && !response.hasFlushed()) {
+      response.setKeepAlive(false);
+      response.setStatusLine(StatusLine.INTERNAL_SERVER_ERROR);
+      response.clearAllHeaders();
+      response.discardBody();
+      try {
+        response.flush();
+      } catch (IOException e1) {
+        // We tried... giving up.
+        e1.printStackTrace();
+      }
+    }
+    System.err.println("Error handling request for " + request);
+    e.printStackTrace();
+    throw new RuntimeException(e);
   }
 
   /**
@@ -196,7 +400,7 @@ public abstract class CasualServer {
    * behaviour.
    */
   protected void onUnsupportedMethod(Request request, Response response) throws IOException {
-    response.setStatusLine(UNSUPPORTED_METHOD_STATUS);
+    response.setStatusLine(StatusLine.METHOD_NOT_ALLOWED);
     response.flush();
   }
 }
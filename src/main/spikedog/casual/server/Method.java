@@ -0,0 +1,94 @@
+package spikedog.casual.server;
+
+import spikedog.casual.server.util.Constants;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The request methods a {@link CasualServer} dispatches on, resolved once when the request line is
+ * parsed so that dispatch needs no string comparisons. Methods are matched ignoring case, as
+ * dispatch always has, and any other method is {@link #OTHER}.
+ */
+public enum Method {
+  GET(Constants.METHOD_GET),
+  POST(Constants.METHOD_POST),
+  PUT(Constants.METHOD_PUT),
+  DELETE(Constants.METHOD_DELETE),
+  HEAD(Constants.METHOD_HEAD),
+  OPTIONS(Constants.METHOD_OPTIONS),
+  TRACE(Constants.METHOD_TRACE),
+  /** Any method not listed above. */
+  OTHER(null);
+
+  private final String methodName;
+  private final byte[] nameBytes;
+
+  private Method(String methodName) {
+    this.methodName = methodName;
+    this.nameBytes = methodName != null ? methodName.getBytes(StandardCharsets.US_ASCII) : null;
+  }
+
+  /**
+   * @return The method as it is written in a request line, or null for {@link #OTHER}.
+   */
+  public String getMethodName() {
+    return methodName;
+  }
+
+  /**
+   * @return The method named by {@code method}, ignoring case.
+   */
+  public static Method fromString(String method) {
+    Method candidate = candidate(method.isEmpty() ? 0 : method.charAt(0), method.length());
+    return candidate != OTHER && candidate.methodName.equalsIgnoreCase(method) ? candidate : OTHER;
+  }
+
+  /**
+   * @return The method named by the ASCII bytes {@code buffer[from, to)}, ignoring case.
+   */
+  public static Method fromBytes(byte[] buffer, int from, int to) {
+    int length = to - from;
+    Method candidate = candidate(length == 0 ? 0 : buffer[from], length);
+    if (candidate == OTHER) {
+      return OTHER;
+    }
+    byte[] name = candidate.nameBytes;
+    for (int i = 0; i < length; i++) {
+      // Names are all letters, for which setting 0x20 gives the lower case.
+      if ((buffer[from + i] | 0x20) != (name[i] | 0x20)) {
+        return OTHER;
+      }
+    }
+    return candidate;
+  }
+
+  /**
+   * @return The only method which may have this first character and length, or {@link #OTHER}.
+   */
+  private static Method candidate(int first, int length) {
+    Method candidate;
+    switch (first | 0x20) {
+      case 'g':
+        candidate = GET;
+        break;
+      case 'p':
+        candidate = length == 3 ? PUT : POST;
+        break;
+      case 'd':
+        candidate = DELETE;
+        break;
+      case 'h':
+        candidate = HEAD;
+        break;
+      case 'o':
+        candidate = OPTIONS;
+        break;
+      case 't':
+        candidate = TRACE;
+        break;
+      default:
+        return OTHER;
+    }
+    return candidate.methodName.length() == length ? candidate : OTHER;
+  }
+}
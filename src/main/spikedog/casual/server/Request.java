@@ -1,9 +1,11 @@
 package spikedog.casual.server;
 
+import spikedog.casual.server.internal.HeaderTable;
 import spikedog.casual.server.util.Constants;
 
 import java.io.InputStream;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -16,34 +18,58 @@ public final class Request {
   public static final class Builder {
     private RequestLine requestLine;
     private InputStream body;
+    private HeaderTable rawHeaders;
     private final Map<String, List<String>> headers = new HashMap<String, List<String>>();
 
     public void setRequestLine(RequestLine requestLine) {
       this.requestLine = requestLine;
     }
 
+    /**
+     * Sets a header, replacing any received header of the same name.
+     */
     public void setHeader(String name, List<String> values) {
       headers.put(name.toLowerCase(), values);
     }
 
+    /**
+     * Sets the headers received with the request from the header lines in
+     * {@code buffer[from, to)}, which are copied and only decoded once looked up.
+     *
+     * @throws IllegalArgumentException If a header line is malformed.
+     */
+    public void setRawHeaders(byte[] buffer, int from, int to) {
+      rawHeaders = HeaderTable.parse(buffer, from, to);
+    }
+
     public void setBody(InputStream body) {
       this.body = body;
     }
 
     public Request build() {
-      return new Request(requestLine, headers, body);
+      return new Request(requestLine, rawHeaders, headers, body);
     }
   }
 
   private final RequestLine requestLine;
+  private final HeaderTable rawHeaders;
   private final Map<String, List<String>> headerMap;
   private final InputStream body;
+  // All headers, once asked for.
+  private Map<String, List<String>> allHeaders;
 
   /**
-   * @param headers Map from header name to values. Name must be lower-case.
+   * @param rawHeaders Headers as received, or null if there are none.
+   * @param headers Map from header name to values, taking precedence over those received. Name
+   *     must be lower-case.
    */
-  private Request(RequestLine requestLine, Map<String, List<String>> headers, InputStream body) {
+  private Request(
+      RequestLine requestLine,
+      HeaderTable rawHeaders,
+      Map<String, List<String>> headers,
+      InputStream body) {
     this.requestLine = requestLine;
+    this.rawHeaders = rawHeaders;
     this.headerMap = headers;
     this.body = body;
   }
@@ -83,7 +109,13 @@ public final class Request {
    * @return List of values for this header. Should not be modified.
    */
   public List<String> getHeaderValues(String key) {
-    return headerMap.get(key.toLowerCase());
+    if (!headerMap.isEmpty()) {
+      List<String> values = headerMap.get(key.toLowerCase());
+      if (values != null) {
+        return values;
+      }
+    }
+    return rawHeaders != null ? rawHeaders.getValues(key) : null;
   }
 
   /**
@@ -91,7 +123,15 @@ public final class Request {
    *     lower-case for case-insensitive lookup.
    */
   public Map<String, List<String>> getAllHeaders() {
-    return headerMap;
+    if (allHeaders == null) {
+      if (rawHeaders == null) {
+        allHeaders = headerMap;
+      } else {
+        allHeaders = new LinkedHashMap<String, List<String>>(rawHeaders.toMap());
+        allHeaders.putAll(headerMap);
+      }
+    }
+    return allHeaders;
   }
 
   public InputStream getBody() {
@@ -101,7 +141,7 @@ public final class Request {
   @Override
   public String toString() {
     StringBuilder builder = new StringBuilder(requestLine.toString());
-    for (Map.Entry<String, List<String>> header : headerMap.entrySet()) {
+    for (Map.Entry<String, List<String>> header : getAllHeaders().entrySet()) {
       StringBuilder valueStringBuilder = new StringBuilder();
       for (int i = 0; i < header.getValue().size(); i++) {
         String valuePart = header.getValue().get(i);
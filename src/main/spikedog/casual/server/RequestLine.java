@@ -8,6 +8,7 @@ import java.util.Objects;
  * <p>See http://www.w3.org/Protocols/rfc2616/rfc2616-sec5.html#sec5.1
  */
 public final class RequestLine {
+  private final Method methodToken;
   private final String method;
   private final String uri;
   private final String httpVersion;
@@ -18,15 +19,36 @@ public final class RequestLine {
    * @throws IllegalArgumentException If the string does not have exactly 3 components.
    */
   public static RequestLine fromString(String requestLineString) {
-    String[] parts = requestLineString.split(" ");
-    if (parts.length != 3) {
+    int methodEnd = requestLineString.indexOf(' ');
+    int uriEnd = methodEnd > 0 ? requestLineString.indexOf(' ', methodEnd + 1) : -1;
+    if (uriEnd <= methodEnd + 1
+        || uriEnd == requestLineString.length() - 1
+        || requestLineString.indexOf(' ', uriEnd + 1) >= 0) {
       throw new IllegalArgumentException(
           "Request line must consist of three space-separated values, got " + requestLineString);
     }
-    return new RequestLine(parts[0], parts[1], parts[2]);
+    return new RequestLine(
+        requestLineString.substring(0, methodEnd),
+        requestLineString.substring(methodEnd + 1, uriEnd),
+        requestLineString.substring(uriEnd + 1));
   }
 
   public RequestLine(String method, String uri, String httpVersion) {
+    this(Method.fromString(method), method, uri, httpVersion);
+  }
+
+  /**
+   * Creates a request line for one of the known methods, written as {@link Method#getMethodName()}.
+   */
+  public RequestLine(Method method, String uri, String httpVersion) {
+    this(method, method.getMethodName(), uri, httpVersion);
+    if (method == Method.OTHER) {
+      throw new IllegalArgumentException("Method must be named");
+    }
+  }
+
+  private RequestLine(Method methodToken, String method, String uri, String httpVersion) {
+    this.methodToken = methodToken;
     this.method = method;
     this.uri = uri;
     this.httpVersion = httpVersion;
@@ -36,6 +58,14 @@ public final class RequestLine {
     return method;
   }
 
+  /**
+   * @return The method, resolved ignoring case, or {@link Method#OTHER} if it is not one of those
+   *     dispatched on.
+   */
+  public Method getMethodToken() {
+    return methodToken;
+  }
+
   public String getUri() {
     return uri;
   }
@@ -1,8 +1,18 @@
 package spikedog.casual.server;
 
+import spikedog.casual.server.internal.AsciiBuffer;
+import spikedog.casual.server.internal.BufferPool;
+import spikedog.casual.server.internal.FileTransferTarget;
+import spikedog.casual.server.internal.GatheringTarget;
+import spikedog.casual.server.internal.SocketOutputStream;
+import spikedog.casual.server.util.Constants;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -16,8 +26,14 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public final class Response {
   // Bytes for carriage return followed by line-feed.
-  private static final byte[] CRLF_BYTES = new String("\r\n").getBytes();
+  private static final byte[] CRLF_BYTES = new byte[] {'\r', '\n'};
+  private static final byte[] HEADER_SEPARATOR = new byte[] {':', ' '};
   private static final int BUFFER_SIZE = 4096;
+  // Chunk which ends a chunked body, with no trailers.
+  private static final byte[] LAST_CHUNK_BYTES = new byte[] {'0', '\r', '\n', '\r', '\n'};
+
+  // Buffers for the head and body are taken from here and returned once written.
+  private static final BufferPool BUFFERS = BufferPool.getDefault();
 
   private final OutputStream out;
   private final AtomicBoolean flushed = new AtomicBoolean();
@@ -26,6 +42,23 @@ public final class Response {
 
   private StatusLine statusLine;
   private InputStream body;
+  private FileChannel fileBody;
+  private long fileBodyPosition;
+  private long fileBodyCount;
+  private ByteBuffer[] bufferBody;
+  private long bufferBodyCount;
+
+  // Whether the connection may be reused once this response is written. Null when the response is
+  // not managed by a persistent connection, in which case the output is closed after the body.
+  private Boolean keepAlive;
+  // Whether the client accepts a chunked body.
+  private boolean chunkingAllowed;
+  private boolean chunked;
+  private BodyOutputStream bodyStream;
+  // Set once the whole response has been written.
+  private boolean complete;
+  // Encoded head, from when it is encoded until it has been written.
+  private AsciiBuffer head;
 
   public Response(OutputStream out) {
     this.out = out;
@@ -72,9 +105,7 @@ public final class Response {
       throw new IllegalStateException("Attempted to set a header after response flushed.");
     }
 
-    List<String> values = new ArrayList<String>(1);
-    values.add(value);
-    headers.put(name, values);
+    putHeader(name, value);
   }
 
   /**
@@ -96,66 +127,574 @@ public final class Response {
    * @throws IllegalStateException If this response has already been flushed.
    */
   public void setBody(InputStream body) {
-    if (flushed.get()) {
+    if (flushed.get() || bodyStream != null) {
       throw new IllegalStateException(
           "Attempted to change message body after begun writing body to output.");
     }
 
     this.body = body;
+    this.fileBody = null;
+    this.bufferBody = null;
+  }
+
+  /**
+   * Sets the message body of the response to a region of a file. Where the connection allows, the
+   * file is sent straight to the socket by the kernel rather than being copied through the JVM.
+   * The channel is not closed by the response and must stay open until {@link #flush()} returns.
+   *
+   * @throws IllegalStateException If this response has already been flushed.
+   */
+  public void setBody(FileChannel file, long position, long count) {
+    if (flushed.get() || bodyStream != null) {
+      throw new IllegalStateException(
+          "Attempted to change message body after begun writing body to output.");
+    }
+
+    this.body = null;
+    this.fileBody = file;
+    this.fileBodyPosition = position;
+    this.fileBodyCount = count;
+    this.bufferBody = null;
+  }
+
+  /**
+   * Sets the message body of the response to the remaining content of buffers, which are sent
+   * with the head in a single gathering write where the connection allows. Their positions are
+   * not changed. Direct buffers, such as those mapping a file into memory, are written to the
+   * socket without being copied, and may be sent after {@link #flush()} returns so their content
+   * must not change once set.
+   *
+   * @throws IllegalStateException If this response has already been flushed.
+   */
+  public void setBodyBuffers(ByteBuffer... buffers) {
+    if (flushed.get() || bodyStream != null) {
+      throw new IllegalStateException(
+          "Attempted to change message body after begun writing body to output.");
+    }
+
+    long count = 0;
+    ByteBuffer[] duplicates = new ByteBuffer[buffers.length];
+    for (int i = 0; i < buffers.length; i++) {
+      duplicates[i] = buffers[i].duplicate();
+      count += duplicates[i].remaining();
+    }
+    this.body = null;
+    this.fileBody = null;
+    this.bufferBody = duplicates;
+    this.bufferBodyCount = count;
   }
 
   /**
    * Writes all data to the underlying output stream. The request must not be edited after calling
-   * this method.
+   * this method. If the body is being written with {@link #getOutputStream()}, the stream is
+   * closed.
    *
    * <p> Calls to {@code flush()} beyond the first will be ignored.
    *
    * @throws IllegalStateException If no status line has yet been set.
    */
   public void flush() throws IOException {
+    if (bodyStream != null) {
+      bodyStream.close();
+      return;
+    }
     if (!flushed.compareAndSet(false, true)) {
       System.out.println("Attempted to flush request twice. flush() ignored.");
       return;
     }
 
+    ByteBuffer headBytes = encodeHead(hasBody());
+    byte[] buffer = null;
+    try {
+      if (!hasBody()) {
+        writeBuffers(headBytes);
+        out.flush();
+        complete = true;
+        return;
+      }
+
+      // Write body. Small bodies, and the start of larger streamed ones, go out in the same write
+      // as the head.
+      if (chunked) {
+        writeChunkedBody(headBytes);
+      } else if (bufferBody != null) {
+        ByteBuffer[] buffers = new ByteBuffer[bufferBody.length + 1];
+        buffers[0] = headBytes;
+        System.arraycopy(bufferBody, 0, buffers, 1, bufferBody.length);
+        writeBuffers(buffers);
+      } else if (fileBody != null && fileBodyCount > BUFFER_SIZE) {
+        writeBuffers(headBytes);
+        writeFileBody();
+      } else {
+        buffer = BUFFERS.acquire(BUFFER_SIZE);
+        int n = fileBody != null ? readFileBody(buffer) : readBody(buffer);
+        writeBuffers(headBytes, ByteBuffer.wrap(buffer, 0, n));
+        if (n == buffer.length && body != null) {
+          while ((n = body.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+          }
+        }
+      }
+    } finally {
+      releaseHead();
+      if (buffer != null) {
+        BUFFERS.release(buffer);
+      }
+    }
+    complete = true;
+    if (keepAlive == null) {
+      out.close();
+      return;
+    }
+    out.flush();
+  }
+
+  /**
+   * Gives a stream to write the message body to incrementally, as an alternative to
+   * {@link #setBody}. Output is buffered, and the status line and headers are written along with
+   * the first of it once the buffer fills or the stream is flushed. Until then headers may still be
+   * changed. Closing the stream, or calling {@link #flush()}, completes the response.
+   *
+   * <p>If no Content-Length header has been set, a body which fits in the buffer is sent with its
+   * length. Longer bodies are sent chunked where the client allows it, otherwise the connection
+   * is closed after them.
+   *
+   * @throws IllegalStateException If this response has already been flushed, or a body set.
+   */
+  public OutputStream getOutputStream() {
+    if (bodyStream == null) {
+      if (flushed.get()) {
+        throw new IllegalStateException("Attempted to stream body after response flushed.");
+      }
+      if (hasBody()) {
+        throw new IllegalStateException("Attempted to stream body after body set.");
+      }
+      bodyStream = new BodyOutputStream();
+    }
+    return bodyStream;
+  }
+
+  /**
+   * Completes a body being written with {@link #getOutputStream()} which the handler did not
+   * close.
+   */
+  void finish() throws IOException {
+    if (bodyStream != null) {
+      bodyStream.close();
+    }
+  }
+
+  /**
+   * Drops any body set or partly written, provided nothing has yet been flushed.
+   */
+  void discardBody() {
+    if (!flushed.get()) {
+      body = null;
+      fileBody = null;
+      bufferBody = null;
+      if (bodyStream != null) {
+        bodyStream.releaseBuffer();
+        bodyStream = null;
+      }
+    }
+  }
+
+  boolean hasFlushed() {
+    return flushed.get();
+  }
+
+  /**
+   * Marks this response as being written to a persistent connection. The connection is kept open
+   * after the response if {@code keepAlive} is true and the response can be delimited, otherwise
+   * a Connection: close header is written.
+   */
+  void setKeepAlive(boolean keepAlive) {
+    this.keepAlive = keepAlive;
+  }
+
+  /**
+   * Allows a body of unknown length to be sent with chunked transfer-coding, rather than by
+   * closing the connection once it has been sent. Only HTTP/1.1 clients understand chunking.
+   */
+  void setChunkingAllowed(boolean chunkingAllowed) {
+    this.chunkingAllowed = chunkingAllowed;
+  }
+
+  /**
+   * @return Whether the connection may be reused for another request after this response has been
+   *     flushed.
+   */
+  boolean isKeepAlive() {
+    return keepAlive != null && keepAlive && complete;
+  }
+
+  /**
+   * Settles the headers which delimit the body and the connection, then encodes the status line
+   * and headers into a pooled buffer. Marks the response as flushed.
+   *
+   * @param hasBody Whether a body of unknown length follows the head.
+   * @return The encoded head, valid until {@link #releaseHead()} is called once it is written.
+   * @throws IllegalStateException If no status line has yet been set.
+   */
+  private ByteBuffer encodeHead(boolean hasBody) {
+    flushed.set(true);
     if (statusLine == null) {
       throw new IllegalStateException("Attempted to flush response with no status line.");
     }
 
-    // Write status line.
-    out.write(statusLine.toString().getBytes());
-    out.write(CRLF_BYTES);
+    if (keepAlive != null) {
+      String connection = getHeaderValue(Constants.HEADER_CONNECTION);
+      if (connection != null && connection.toLowerCase().contains(Constants.CONNECTION_CLOSE)) {
+        keepAlive = false;
+      }
+      if (getHeaderValue(Constants.HEADER_CONTENT_LENGTH) == null) {
+        if (fileBody != null) {
+          putHeader(Constants.HEADER_CONTENT_LENGTH, "" + fileBodyCount);
+        } else if (bufferBody != null) {
+          putHeader(Constants.HEADER_CONTENT_LENGTH, "" + bufferBodyCount);
+        } else if (hasBody) {
+          if (chunkingAllowed && getHeaderValue(Constants.HEADER_TRANSFER_ENCODING) == null) {
+            chunked = true;
+            putHeader(Constants.HEADER_TRANSFER_ENCODING, Constants.TRANSFER_ENCODING_CHUNKED);
+          } else {
+            // Without a length the only way to delimit the body is to close the connection.
+            keepAlive = false;
+          }
+        } else if (mayHaveBody()) {
+          putHeader(Constants.HEADER_CONTENT_LENGTH, "0");
+        }
+      }
+      if (!keepAlive
+          && (connection == null
+              || !connection.toLowerCase().contains(Constants.CONNECTION_CLOSE))) {
+        putHeader(Constants.HEADER_CONNECTION, Constants.CONNECTION_CLOSE);
+      }
+    }
 
-    // Write headers.
+    // Assemble the status line and headers so they go out in a single write.
+    head = new AsciiBuffer(BUFFERS);
+    head.append(statusLine.getEncoded());
     for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
-      String name = entry.getKey();
+      head.append(entry.getKey()).append(HEADER_SEPARATOR);
       List<String> values = entry.getValue();
-      StringBuilder valueStringBuilder = new StringBuilder();
       for (int valueIndex = 0; valueIndex < values.size(); valueIndex++) {
-        valueStringBuilder.append(values.get(valueIndex));
-        if (valueIndex < values.size() - 1) {
-          valueStringBuilder.append(",");
+        if (valueIndex > 0) {
+          head.append(',');
         }
+        head.append(values.get(valueIndex));
       }
+      head.append(CRLF_BYTES);
+    }
+    if (hasBody || keepAlive != null) {
+      // Blank line ends the head. Managed connections always need it so the client can tell the
+      // response is complete.
+      head.append(CRLF_BYTES);
+    }
+    return ByteBuffer.wrap(head.array(), 0, head.length());
+  }
+
+  private void releaseHead() {
+    if (head != null) {
+      head.release();
+      head = null;
+    }
+  }
 
-      String headerString = String.format("%s:%s", name, valueStringBuilder.toString());
-      out.write(headerString.getBytes());
-      out.write(CRLF_BYTES);
+  /**
+   * Encodes and writes the head on its own.
+   */
+  private void writeHead() throws IOException {
+    try {
+      writeBuffers(encodeHead(true));
+    } finally {
+      releaseHead();
     }
+  }
 
-    // Write body.
-    if (body != null) {
-      out.write(CRLF_BYTES);
-      int n = 0;
-      byte[] buffer = new byte[BUFFER_SIZE];
+  /**
+   * @return Whether the status allows a message body, see RFC 7230 section 3.3.
+   */
+  private boolean mayHaveBody() {
+    int statusCode = statusLine != null ? statusLine.getStatusCode() : 0;
+    return statusCode >= 200 && statusCode != 204 && statusCode != 304;
+  }
+
+  private boolean hasBody() {
+    return body != null || fileBody != null || bufferBody != null;
+  }
+
+  /**
+   * Writes buffers to the output, with a single gathering write where the output supports it.
+   */
+  private void writeBuffers(ByteBuffer... buffers) throws IOException {
+    if (out instanceof GatheringTarget) {
+      ((GatheringTarget) out).writeGathered(buffers);
+      return;
+    }
+    byte[] copyBuffer = null;
+    try {
+      for (ByteBuffer buffer : buffers) {
+        if (buffer.hasArray()) {
+          out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+          continue;
+        }
+        // Direct buffers have no array to write from, so are copied out a piece at a time.
+        if (copyBuffer == null) {
+          copyBuffer = BUFFERS.acquire(BUFFER_SIZE);
+        }
+        ByteBuffer source = buffer.duplicate();
+        while (source.hasRemaining()) {
+          int n = Math.min(copyBuffer.length, source.remaining());
+          source.get(copyBuffer, 0, n);
+          out.write(copyBuffer, 0, n);
+        }
+      }
+    } finally {
+      if (copyBuffer != null) {
+        BUFFERS.release(copyBuffer);
+      }
+    }
+  }
+
+  /**
+   * Writes the body stream as a series of chunks, each sent as soon as it has been read so that a
+   * slowly generated body reaches the client incrementally. The first chunk is sent with the head.
+   */
+  private void writeChunkedBody(ByteBuffer headBytes) throws IOException {
+    byte[] buffer = BUFFERS.acquire(BUFFER_SIZE);
+    try {
+      int n;
       while ((n = body.read(buffer)) > 0) {
-        out.write(buffer, 0, n);
+        writeChunk(headBytes, buffer, 0, n);
+        headBytes = null;
       }
-      out.close();
+      writeLastChunk(headBytes);
+    } finally {
+      BUFFERS.release(buffer);
     }
   }
 
-  boolean hasFlushed() {
-    return flushed.get();
+  /**
+   * Writes a chunk of a chunked body, preceded by {@code headBytes} if not null.
+   */
+  private void writeChunk(ByteBuffer headBytes, byte[] b, int off, int len) throws IOException {
+    ByteBuffer data = ByteBuffer.wrap(b, off, len);
+    if (headBytes != null) {
+      writeBuffers(headBytes, chunkSize(len), data, ByteBuffer.wrap(CRLF_BYTES));
+    } else {
+      writeBuffers(chunkSize(len), data, ByteBuffer.wrap(CRLF_BYTES));
+    }
+  }
+
+  /**
+   * Writes the chunk which ends a chunked body, preceded by {@code headBytes} if not null.
+   */
+  private void writeLastChunk(ByteBuffer headBytes) throws IOException {
+    if (headBytes != null) {
+      writeBuffers(headBytes, ByteBuffer.wrap(LAST_CHUNK_BYTES));
+    } else {
+      writeBuffers(ByteBuffer.wrap(LAST_CHUNK_BYTES));
+    }
+  }
+
+  /**
+   * @return The line which starts a chunk of {@code size} bytes.
+   */
+  private static ByteBuffer chunkSize(int size) {
+    String hex = Integer.toHexString(size);
+    byte[] line = new byte[hex.length() + 2];
+    for (int i = 0; i < hex.length(); i++) {
+      line[i] = (byte) hex.charAt(i);
+    }
+    line[line.length - 2] = '\r';
+    line[line.length - 1] = '\n';
+    return ByteBuffer.wrap(line);
+  }
+
+  /**
+   * Reads from the body stream until {@code buffer} is full or the stream ends.
+   *
+   * @return The number of bytes read.
+   */
+  private int readBody(byte[] buffer) throws IOException {
+    int length = 0;
+    int n;
+    while (length < buffer.length && (n = body.read(buffer, length, buffer.length - length)) > 0) {
+      length += n;
+    }
+    return length;
+  }
+
+  /**
+   * Reads the whole file body, which must fit in {@code buffer}.
+   *
+   * @return The number of bytes read.
+   */
+  private int readFileBody(byte[] buffer) throws IOException {
+    ByteBuffer target = ByteBuffer.wrap(buffer, 0, (int) fileBodyCount);
+    long position = fileBodyPosition;
+    while (target.hasRemaining()) {
+      int n = fileBody.read(target, position);
+      if (n < 0) {
+        throw new IOException("File truncated during read");
+      }
+      position += n;
+    }
+    return (int) fileBodyCount;
+  }
+
+  private void writeFileBody() throws IOException {
+    if (out instanceof FileTransferTarget) {
+      ((FileTransferTarget) out).transferFrom(fileBody, fileBodyPosition, fileBodyCount);
+    } else {
+      out.flush();
+      SocketOutputStream.transfer(
+          fileBody, fileBodyPosition, fileBodyCount, Channels.newChannel(out));
+    }
+  }
+
+  private void putHeader(String name, String value) {
+    List<String> values = new ArrayList<String>(1);
+    values.add(value);
+    headers.put(name, values);
+  }
+
+  private String getHeaderValue(String name) {
+    for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+      if (entry.getKey().equalsIgnoreCase(name) && !entry.getValue().isEmpty()) {
+        return entry.getValue().get(0);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Buffers a body written by the handler, writing the head along with the first output.
+   */
+  private final class BodyOutputStream extends OutputStream {
+    // Acquired once something is buffered, released when the stream is closed.
+    private byte[] buffer;
+    private int count;
+    private boolean committed;
+    private boolean closed;
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (closed) {
+        throw new IOException("Response body stream closed");
+      }
+      if (len == 0) {
+        return;
+      }
+      if (count + len > BUFFER_SIZE) {
+        writeBuffer();
+      }
+      if (len >= BUFFER_SIZE) {
+        // Too large to be worth copying.
+        writeData(b, off, len);
+        return;
+      }
+      if (buffer == null) {
+        buffer = BUFFERS.acquire(BUFFER_SIZE);
+      }
+      System.arraycopy(b, off, buffer, count, len);
+      count += len;
+    }
+
+    /**
+     * Sends the head, if not yet sent, and everything written so far. Output held back while
+     * responses to pipelined requests are batched is sent too, as the handler asked for it to go.
+     */
+    @Override
+    public void flush() throws IOException {
+      if (closed) {
+        return;
+      }
+      writeBuffer();
+      if (!committed) {
+        writeHead();
+        committed = true;
+      }
+      if (out instanceof SocketOutputStream) {
+        ((SocketOutputStream) out).uncork();
+      } else {
+        out.flush();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (!committed
+          && getHeaderValue(Constants.HEADER_CONTENT_LENGTH) == null
+          && (count > 0 || mayHaveBody())) {
+        // The whole body is known, so send it with its length.
+        putHeader(Constants.HEADER_CONTENT_LENGTH, "" + count);
+      }
+      try {
+        writeBuffer();
+      } finally {
+        releaseBuffer();
+      }
+      if (!committed) {
+        writeHead();
+        committed = true;
+      }
+      if (chunked) {
+        writeLastChunk(null);
+      }
+
+      complete = true;
+      if (keepAlive == null) {
+        out.close();
+        return;
+      }
+      out.flush();
+    }
+
+    private void writeBuffer() throws IOException {
+      if (count > 0) {
+        int n = count;
+        count = 0;
+        writeData(buffer, 0, n);
+      }
+    }
+
+    void releaseBuffer() {
+      if (buffer != null) {
+        BUFFERS.release(buffer);
+        buffer = null;
+      }
+    }
+
+    /**
+     * Writes body data, preceded by the head if it has not yet been written.
+     */
+    private void writeData(byte[] b, int off, int len) throws IOException {
+      ByteBuffer headBytes = null;
+      if (!committed) {
+        headBytes = encodeHead(true);
+        committed = true;
+      }
+      try {
+        if (chunked) {
+          writeChunk(headBytes, b, off, len);
+        } else if (headBytes != null) {
+          writeBuffers(headBytes, ByteBuffer.wrap(b, off, len));
+        } else {
+          out.write(b, off, len);
+        }
+      } finally {
+        releaseHead();
+      }
+    }
   }
 }
@@ -12,6 +12,9 @@ public final class SocketConfig {
     private Integer receiveBufferSize;
     private Integer sendBufferSize;
     private Boolean tcpNoDelay;
+    private Boolean nonBlocking;
+    private Integer idleTimeout;
+    private Integer maxRequestsPerConnection;
 
     public Builder setKeepAlive(Boolean keepAlive) {
       this.keepAlive = keepAlive;
@@ -38,9 +41,41 @@ public final class SocketConfig {
       return this;
     }
 
+    /**
+     * When true the server accepts and reads from connections with a non-blocking selector loop
+     * rather than dedicating a request thread to each connection. Defaults to false.
+     *
+     * <p>The selector loop buffers each request body in memory before dispatching it, so bodies
+     * must be delimited by Content-Length and are limited in size. Requests sent with any
+     * Transfer-Encoding, including chunked uploads, are answered with 411 Length Required and the
+     * connection closed. Use the default blocking mode to accept chunked or streamed uploads.
+     */
+    public Builder setNonBlocking(Boolean nonBlocking) {
+      this.nonBlocking = nonBlocking;
+      return this;
+    }
+
+    /**
+     * Time in milliseconds a persistent connection may wait for its next request before being
+     * closed.
+     */
+    public Builder setIdleTimeout(Integer idleTimeout) {
+      this.idleTimeout = idleTimeout;
+      return this;
+    }
+
+    /**
+     * Number of requests served on a single connection before it is closed. A value of 1 disables
+     * persistent connections.
+     */
+    public Builder setMaxRequestsPerConnection(Integer maxRequestsPerConnection) {
+      this.maxRequestsPerConnection = maxRequestsPerConnection;
+      return this;
+    }
+
     public SocketConfig build() {
       return new SocketConfig(keepAlive, socketTimeout, receiveBufferSize, sendBufferSize,
-          tcpNoDelay);
+          tcpNoDelay, nonBlocking, idleTimeout, maxRequestsPerConnection);
     }
   }
 
@@ -49,14 +84,21 @@ public final class SocketConfig {
   private final Integer receiveBufferSize;
   private final Integer sendBufferSize;
   private final Boolean tcpNoDelay;
+  private final Boolean nonBlocking;
+  private final Integer idleTimeout;
+  private final Integer maxRequestsPerConnection;
 
   private SocketConfig(Boolean keepAlive, Integer socketTimeout, Integer receiveBufferSize,
-      Integer sendBufferSize, Boolean tcpNoDelay) {
+      Integer sendBufferSize, Boolean tcpNoDelay, Boolean nonBlocking, Integer idleTimeout,
+      Integer maxRequestsPerConnection) {
     this.keepAlive = keepAlive;
     this.socketTimeout = socketTimeout;
     this.receiveBufferSize = receiveBufferSize;
     this.sendBufferSize = sendBufferSize;
     this.tcpNoDelay = tcpNoDelay;
+    this.nonBlocking = nonBlocking;
+    this.idleTimeout = idleTimeout;
+    this.maxRequestsPerConnection = maxRequestsPerConnection;
   }
 
   public Boolean getKeepAlive() {
@@ -78,4 +120,16 @@ public final class SocketConfig {
   public Boolean getTcpNoDelay() {
     return tcpNoDelay;
   }
+
+  public Boolean getNonBlocking() {
+    return nonBlocking;
+  }
+
+  public Integer getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  public Integer getMaxRequestsPerConnection() {
+    return maxRequestsPerConnection;
+  }
 }
@@ -1,22 +1,70 @@
 package spikedog.casual.server;
 
+import spikedog.casual.server.util.Constants;
+
+import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 
 /**
  * Immutable representation of HTTP status line. {@link #toString} returns a string suitable for use
  * in an HTTP response.
  *
+ * <p>The encoded form of a status line is computed once on construction, so instances are best
+ * shared, e.g. the constants below for common statuses.
+ *
  * <p>See http://www.w3.org/Protocols/rfc2616/rfc2616-sec6.html#sec6.1
  */
 public final class StatusLine {
+  public static final StatusLine OK = new StatusLine(Constants.VERISON_HTTP_1_1, 200, "OK");
+
+  public static final StatusLine NO_CONTENT =
+      new StatusLine(Constants.VERISON_HTTP_1_1, 204, "No Content");
+
+  public static final StatusLine PARTIAL_CONTENT =
+      new StatusLine(Constants.VERISON_HTTP_1_1, 206, "Partial Content");
+
+  public static final StatusLine NOT_MODIFIED =
+      new StatusLine(Constants.VERISON_HTTP_1_1, 304, "Not Modified");
+
+  public static final StatusLine BAD_REQUEST =
+      new StatusLine(Constants.VERISON_HTTP_1_1, 400, "Bad Request");
+
+  public static final StatusLine NOT_FOUND =
+      new StatusLine(Constants.VERISON_HTTP_1_1, 404, "Not Found");
+
+  public static final StatusLine METHOD_NOT_ALLOWED =
+      new StatusLine(Constants.VERISON_HTTP_1_1, 405, "Method Not Allowed");
+
+  public static final StatusLine RANGE_NOT_SATISFIABLE =
+      new StatusLine(Constants.VERISON_HTTP_1_1, 416, "Requested Range Not Satisfiable");
+
+  public static final StatusLine INTERNAL_SERVER_ERROR =
+      new StatusLine(Constants.VERISON_HTTP_1_1, 500, "Internal Server Error");
+
   private final String httpVersion;
   private final int statusCode;
   private final String reasonPhrase;
 
+  // Status line followed by CRLF, as written to the wire.
+  private final byte[] encoded;
+
   public StatusLine(String httpVersion, int statusCode, String reasonPhrase) {
     this.httpVersion = httpVersion;
     this.statusCode = statusCode;
     this.reasonPhrase = reasonPhrase;
+    this.encoded = (toString() + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  public String getHttpVersion() {
+    return httpVersion;
+  }
+
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  public String getReasonPhrase() {
+    return reasonPhrase;
   }
 
   /**
@@ -24,7 +72,14 @@ public final class StatusLine {
    */
   @Override
   public String toString() {
-    return String.format("%s %s %s", httpVersion, statusCode, reasonPhrase);
+    return httpVersion + " " + statusCode + " " + reasonPhrase;
+  }
+
+  /**
+   * @return The status line encoded as ISO-8859-1 and terminated by CRLF. Must not be modified.
+   */
+  byte[] getEncoded() {
+    return encoded;
   }
 
   @Override
@@ -0,0 +1,86 @@
+package spikedog.casual.server.internal;
+
+/**
+ * Growable byte buffer for assembling protocol text such as response heads. Characters are
+ * encoded as ISO-8859-1, with characters outside that range replaced by '?'.
+ *
+ * <p>Storage is taken from a {@link BufferPool}, so a buffer must be {@link #release() released}
+ * once no longer used.
+ *
+ * <p><em>Not</em> thread-safe.
+ */
+public final class AsciiBuffer {
+  private static final int INITIAL_SIZE = 512;
+
+  private final BufferPool pool;
+  private byte[] bytes;
+  private int length;
+
+  /**
+   * Creates a buffer whose storage is acquired from {@code pool}.
+   */
+  public AsciiBuffer(BufferPool pool) {
+    this.pool = pool;
+    this.bytes = pool.acquire(INITIAL_SIZE);
+  }
+
+  public AsciiBuffer append(byte[] value) {
+    ensureCapacity(value.length);
+    System.arraycopy(value, 0, bytes, length, value.length);
+    length += value.length;
+    return this;
+  }
+
+  public AsciiBuffer append(String value) {
+    int n = value.length();
+    ensureCapacity(n);
+    for (int i = 0; i < n; i++) {
+      char c = value.charAt(i);
+      bytes[length++] = c < 256 ? (byte) c : (byte) '?';
+    }
+    return this;
+  }
+
+  public AsciiBuffer append(char value) {
+    ensureCapacity(1);
+    bytes[length++] = value < 256 ? (byte) value : (byte) '?';
+    return this;
+  }
+
+  /**
+   * @return The backing array. Only the first {@link #length()} bytes are valid.
+   */
+  public byte[] array() {
+    return bytes;
+  }
+
+  public int length() {
+    return length;
+  }
+
+  /**
+   * Returns the buffer's storage to its pool. The buffer must not be used afterwards.
+   */
+  public void release() {
+    if (bytes != null) {
+      pool.release(bytes);
+    }
+    bytes = null;
+  }
+
+  private void ensureCapacity(int extra) {
+    if (length + extra > bytes.length) {
+      replaceStorage(Math.max(bytes.length * 2, length + extra));
+    }
+  }
+
+  /**
+   * Moves the content into new storage of at least {@code size} bytes.
+   */
+  private void replaceStorage(int size) {
+    byte[] replacement = pool.acquire(size);
+    System.arraycopy(bytes, 0, replacement, 0, length);
+    pool.release(bytes);
+    bytes = replacement;
+  }
+}
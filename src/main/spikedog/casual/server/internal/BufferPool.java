@@ -0,0 +1,133 @@
+package spikedog.casual.server.internal;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of reusable byte arrays for request parsing and response writing, so that serving a
+ * request need not allocate buffers which become garbage as soon as it has been served.
+ *
+ * <p>Arrays come in power-of-two size classes from {@value #MIN_SIZE} to {@value #MAX_SIZE} bytes,
+ * each class holding on to a limited number of released arrays. Larger requests are allocated
+ * and left to the garbage collector as usual.
+ *
+ * <p>The number of pooled arrays acquired and not yet released is counted, so tests can check
+ * that code returns every buffer it takes, see {@link #getOutstanding()}.
+ *
+ * <p>Thread-safe, the {@link #getDefault() default} instance is shared by all connections.
+ */
+public final class BufferPool {
+  /** Smallest array handed out, in bytes. */
+  public static final int MIN_SIZE = 512;
+
+  /** Largest array which is pooled, in bytes. */
+  public static final int MAX_SIZE = 64 * 1024;
+
+  // Most released arrays held per size class.
+  private static final int DEFAULT_MAX_RETAINED = 256;
+
+  private static final BufferPool DEFAULT = new BufferPool(DEFAULT_MAX_RETAINED);
+
+  private final SizeClass[] sizeClasses;
+  private final int maxRetained;
+  private final AtomicLong outstanding = new AtomicLong();
+
+  /**
+   * @param maxRetained Most released arrays held for reuse in each size class.
+   */
+  public BufferPool(int maxRetained) {
+    this.maxRetained = maxRetained;
+    int count = Integer.numberOfTrailingZeros(MAX_SIZE) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    sizeClasses = new SizeClass[count + 1];
+    for (int i = 0; i < sizeClasses.length; i++) {
+      sizeClasses[i] = new SizeClass(MIN_SIZE << i);
+    }
+  }
+
+  /**
+   * @return The pool shared by the server's connections.
+   */
+  public static BufferPool getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * @return An array of at least {@code minSize} bytes, whose content is undefined. It should be
+   *     {@link #release released} once no longer used.
+   */
+  public byte[] acquire(int minSize) {
+    SizeClass sizeClass = getSizeClass(minSize);
+    if (sizeClass == null) {
+      return new byte[minSize];
+    }
+    outstanding.incrementAndGet();
+    byte[] buffer = sizeClass.poll();
+    return buffer != null ? buffer : new byte[sizeClass.size];
+  }
+
+  /**
+   * Returns an array to the pool. It must not be used again by the caller, nor released twice.
+   * Arrays larger than the pooled sizes are ignored.
+   */
+  public void release(byte[] buffer) {
+    SizeClass sizeClass = getSizeClass(buffer.length);
+    if (sizeClass == null || sizeClass.size != buffer.length) {
+      return;
+    }
+    outstanding.decrementAndGet();
+    sizeClass.offer(buffer);
+  }
+
+  /**
+   * @return The number of pooled arrays acquired and not yet released. Leaks show up as this
+   *     growing without bound.
+   */
+  public long getOutstanding() {
+    return outstanding.get();
+  }
+
+  private SizeClass getSizeClass(int size) {
+    if (size > MAX_SIZE) {
+      return null;
+    }
+    if (size <= MIN_SIZE) {
+      return sizeClasses[0];
+    }
+    // Index of the smallest power of two which fits, relative to MIN_SIZE.
+    int bits = 32 - Integer.numberOfLeadingZeros(size - 1);
+    return sizeClasses[bits - Integer.numberOfTrailingZeros(MIN_SIZE)];
+  }
+
+  private final class SizeClass {
+    final int size;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Guarded by lock.
+    private final ArrayDeque<byte[]> free = new ArrayDeque<byte[]>();
+
+    SizeClass(int size) {
+      this.size = size;
+    }
+
+    byte[] poll() {
+      lock.lock();
+      try {
+        return free.poll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    void offer(byte[] buffer) {
+      lock.lock();
+      try {
+        if (free.size() < maxRetained) {
+          // Most recently released first, as it is most likely to still be in cache.
+          free.push(buffer);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
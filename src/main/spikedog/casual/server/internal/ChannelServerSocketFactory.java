@@ -0,0 +1,45 @@
+package spikedog.casual.server.internal;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+
+import javax.net.ServerSocketFactory;
+
+/**
+ * Creates server sockets backed by a {@link ServerSocketChannel}, so that accepted sockets have a
+ * channel which files can be transferred to directly.
+ */
+public final class ChannelServerSocketFactory extends ServerSocketFactory {
+  private static final int DEFAULT_BACKLOG = 50;
+
+  @Override
+  public ServerSocket createServerSocket() throws IOException {
+    return ServerSocketChannel.open().socket();
+  }
+
+  @Override
+  public ServerSocket createServerSocket(int port) throws IOException {
+    return createServerSocket(port, DEFAULT_BACKLOG);
+  }
+
+  @Override
+  public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+    return createServerSocket(port, backlog, null);
+  }
+
+  @Override
+  public ServerSocket createServerSocket(int port, int backlog, InetAddress ifAddress)
+      throws IOException {
+    ServerSocket socket = createServerSocket();
+    try {
+      socket.bind(new InetSocketAddress(ifAddress, port), backlog);
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+    return socket;
+  }
+}
@@ -0,0 +1,104 @@
+package spikedog.casual.server.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes a body sent with chunked transfer-coding, leaving the underlying stream positioned just
+ * after the last chunk and any trailers, which are discarded. Trailers are limited in total to the
+ * size of a request head. Closing has no effect on the underlying stream.
+ *
+ * <p>See http://www.w3.org/Protocols/rfc2616/rfc2616-sec3.html#sec3.6.1
+ */
+final class ChunkedInputStream extends InputStream {
+  // Longest accepted chunk-size or trailer line, in bytes.
+  private static final int MAX_LINE_LENGTH = 4096;
+
+  private final RequestInputStream in;
+
+  // Bytes left in the current chunk.
+  private long remaining;
+  private boolean finished;
+
+  ChunkedInputStream(RequestInputStream in) {
+    this.in = in;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    int n = read(b, 0, 1);
+    return n < 0 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (remaining == 0 && !nextChunk()) {
+      return -1;
+    }
+    int n = in.read(b, off, (int) Math.min(len, remaining));
+    if (n < 0) {
+      throw new EOFException("Stream ended within chunk");
+    }
+    remaining -= n;
+    if (remaining == 0) {
+      readLine();
+    }
+    return n;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return (int) Math.min(in.available(), remaining);
+  }
+
+  /**
+   * Reads the size line of the next chunk.
+   *
+   * @return False if the body has ended.
+   */
+  private boolean nextChunk() throws IOException {
+    if (finished) {
+      return false;
+    }
+
+    String sizeLine = readLine();
+    int extension = sizeLine.indexOf(';');
+    String size = (extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim();
+    try {
+      remaining = Long.parseLong(size, 16);
+    } catch (NumberFormatException e) {
+      throw new IOException("Malformed chunk size " + sizeLine);
+    }
+    if (remaining < 0) {
+      throw new IOException("Malformed chunk size " + sizeLine);
+    }
+
+    if (remaining == 0) {
+      // Last chunk, skip trailers up to the empty line which ends the body.
+      int trailerSize = 0;
+      String trailer;
+      while (!(trailer = readLine()).isEmpty()) {
+        trailerSize += trailer.length() + 2;
+        if (trailerSize > StreamRequestBuilder.MAX_HEAD_SIZE) {
+          throw new IOException(
+              "Trailers exceed " + StreamRequestBuilder.MAX_HEAD_SIZE + " bytes");
+        }
+      }
+      finished = true;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return The next line, without its line terminator.
+   */
+  private String readLine() throws IOException {
+    return in.readLine(MAX_LINE_LENGTH);
+  }
+}
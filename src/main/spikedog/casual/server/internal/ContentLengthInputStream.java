@@ -0,0 +1,47 @@
+package spikedog.casual.server.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Exposes a fixed number of bytes from an underlying stream, leaving the underlying stream
+ * positioned just after them. Closing has no effect on the underlying stream.
+ */
+final class ContentLengthInputStream extends InputStream {
+  private final InputStream in;
+  private long remaining;
+
+  ContentLengthInputStream(InputStream in, long length) {
+    this.in = in;
+    this.remaining = length;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (remaining <= 0) {
+      return -1;
+    }
+    int b = in.read();
+    if (b >= 0) {
+      remaining--;
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (remaining <= 0) {
+      return -1;
+    }
+    int n = in.read(b, off, (int) Math.min(len, remaining));
+    if (n > 0) {
+      remaining -= n;
+    }
+    return n;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return (int) Math.min(in.available(), remaining);
+  }
+}
@@ -0,0 +1,16 @@
+package spikedog.casual.server.internal;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Implemented by connection output streams which can send part of a file straight to the socket,
+ * without copying it through a user-space buffer.
+ */
+public interface FileTransferTarget {
+  /**
+   * Sends {@code count} bytes of {@code file} starting at {@code position}, after any output
+   * already written to the stream. Returns once the file is no longer needed.
+   */
+  void transferFrom(FileChannel file, long position, long count) throws IOException;
+}
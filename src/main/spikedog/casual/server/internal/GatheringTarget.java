@@ -0,0 +1,16 @@
+package spikedog.casual.server.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Implemented by connection output streams which can send several buffers to the socket with a
+ * single gathering write, so that a response head and a small body leave in one segment.
+ */
+public interface GatheringTarget {
+  /**
+   * Writes the remaining bytes of each buffer, in order, after any output already written to the
+   * stream. Returns once the buffers are no longer needed.
+   */
+  void writeGathered(ByteBuffer[] buffers) throws IOException;
+}
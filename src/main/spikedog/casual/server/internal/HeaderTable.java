@@ -0,0 +1,266 @@
+package spikedog.casual.server.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Request headers as they were received, kept as a single copy of the header lines and a table of
+ * offsets into it. Names and values only become strings when they are looked up, so headers which
+ * no handler reads cost no allocations beyond the copy. Names are compared ignoring ASCII case.
+ *
+ * <p>Values are split into list elements on commas outside quoted strings, see RFC 7230 section 7,
+ * except for headers which hold a single value that may itself contain commas, such as dates,
+ * cookies and user agents, whose lines are each kept whole. Lines repeating a header name are
+ * combined, their values listed in the order received.
+ *
+ * <p><em>Not</em> thread-safe.
+ */
+public final class HeaderTable {
+  private static final byte CARRIAGE_RETURN_BYTE = (byte) '\r';
+  private static final byte LINE_FEED_BYTE = (byte) '\n';
+  private static final byte COLON_BYTE = (byte) ':';
+
+  // Ints per entry: name start and end, value start and end, and the hash of the name.
+  private static final int STRIDE = 5;
+  private static final int INITIAL_ENTRIES = 16;
+
+  // Headers whose values are not comma separated lists, and their hashes.
+  private static final String[] SINGLE_VALUED = {
+    "Authorization", "Content-Disposition", "Content-Type", "Cookie", "Date", "Expires", "From",
+    "Host", "If-Modified-Since", "If-Range", "If-Unmodified-Since", "Last-Modified", "Location",
+    "Proxy-Authorization", "Referer", "Retry-After", "Set-Cookie", "User-Agent"
+  };
+  private static final int[] SINGLE_VALUED_HASHES = new int[SINGLE_VALUED.length];
+
+  static {
+    for (int i = 0; i < SINGLE_VALUED.length; i++) {
+      SINGLE_VALUED_HASHES[i] = hash(SINGLE_VALUED[i]);
+    }
+  }
+
+  // The header lines, copied as the buffer they were read into is reused.
+  private final byte[] data;
+  private int[] entries = new int[INITIAL_ENTRIES * STRIDE];
+  private int size;
+  // Values by the index of the first entry with the name, once looked up.
+  private Object[] values;
+
+  private HeaderTable(byte[] data) {
+    this.data = data;
+  }
+
+  /**
+   * Indexes the header lines held in {@code buffer[from, to)}, each terminated by CRLF, up to an
+   * empty line or the end of the range.
+   *
+   * @throws IllegalArgumentException If a line is not a name and value separated by a colon.
+   */
+  public static HeaderTable parse(byte[] buffer, int from, int to) {
+    HeaderTable table = new HeaderTable(Arrays.copyOfRange(buffer, from, to));
+    byte[] data = table.data;
+    int lineStart = 0;
+    while (lineStart < data.length) {
+      int lineEnd = findLineEnd(data, lineStart);
+      if (lineEnd == lineStart) {
+        // Empty line, end of headers.
+        break;
+      }
+
+      int split = lineStart;
+      while (split < lineEnd && data[split] != COLON_BYTE) {
+        split++;
+      }
+      if (split == lineEnd) {
+        throw new IllegalArgumentException("Malformed header line "
+            + new String(data, lineStart, lineEnd - lineStart, StandardCharsets.ISO_8859_1));
+      }
+      table.add(trimStart(data, lineStart, split), trimEnd(data, lineStart, split),
+          trimStart(data, split + 1, lineEnd), trimEnd(data, split + 1, lineEnd));
+      lineStart = lineEnd + 2;
+    }
+    return table;
+  }
+
+  /**
+   * @return The number of header lines.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return The values of the header, from every line with its name, or null if there is none.
+   *     The list must not be modified.
+   */
+  public List<String> getValues(String name) {
+    int hash = hash(name);
+    int first = -1;
+    for (int i = 0; i < size; i++) {
+      if (entries[i * STRIDE + 4] == hash && nameEquals(i, name)) {
+        first = i;
+        break;
+      }
+    }
+    if (first < 0) {
+      return null;
+    }
+    if (values != null && values[first] != null) {
+      @SuppressWarnings("unchecked")
+      List<String> cached = (List<String>) values[first];
+      return cached;
+    }
+
+    boolean list = !isSingleValued(name, hash);
+    List<String> result = new ArrayList<String>();
+    for (int i = first; i < size; i++) {
+      if (entries[i * STRIDE + 4] == hash && nameEquals(i, name)) {
+        addValues(i, list, result);
+      }
+    }
+    result = Collections.unmodifiableList(result);
+    if (values == null) {
+      values = new Object[size];
+    }
+    values[first] = result;
+    return result;
+  }
+
+  /**
+   * @return Every header, by lower-case name, in the order first received.
+   */
+  public Map<String, List<String>> toMap() {
+    Map<String, List<String>> map = new LinkedHashMap<String, List<String>>();
+    for (int i = 0; i < size; i++) {
+      String name = lowerCaseName(i);
+      if (!map.containsKey(name)) {
+        map.put(name, getValues(name));
+      }
+    }
+    return map;
+  }
+
+  private void add(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+    if ((size + 1) * STRIDE > entries.length) {
+      entries = Arrays.copyOf(entries, entries.length * 2);
+    }
+    int base = size * STRIDE;
+    entries[base] = nameStart;
+    entries[base + 1] = nameEnd;
+    entries[base + 2] = valueStart;
+    entries[base + 3] = valueEnd;
+    int hash = 0;
+    for (int i = nameStart; i < nameEnd; i++) {
+      hash = 31 * hash + toLowerCase(data[i] & 0xff);
+    }
+    entries[base + 4] = hash;
+    size++;
+  }
+
+  /**
+   * Adds the value of an entry to {@code result}, split into its elements if it is a list. Empty
+   * elements are dropped, but an empty value is kept so that the header is seen to be present.
+   */
+  private void addValues(int index, boolean list, List<String> result) {
+    int start = entries[index * STRIDE + 2];
+    int end = entries[index * STRIDE + 3];
+    if (!list || start == end) {
+      result.add(new String(data, start, end - start, StandardCharsets.ISO_8859_1));
+      return;
+    }
+
+    int elementStart = start;
+    boolean quoted = false;
+    for (int i = start; i <= end; i++) {
+      if (i == end || (data[i] == ',' && !quoted)) {
+        int elementEnd = trimEnd(data, elementStart, i);
+        elementStart = trimStart(data, elementStart, elementEnd);
+        if (elementEnd > elementStart) {
+          result.add(new String(
+              data, elementStart, elementEnd - elementStart, StandardCharsets.ISO_8859_1));
+        }
+        elementStart = i + 1;
+      } else if (data[i] == '"') {
+        quoted = !quoted;
+      } else if (data[i] == '\\' && quoted && i + 1 < end) {
+        // Skip the escaped character, which may be a quote.
+        i++;
+      }
+    }
+  }
+
+  private static boolean isSingleValued(String name, int hash) {
+    for (int i = 0; i < SINGLE_VALUED.length; i++) {
+      if (SINGLE_VALUED_HASHES[i] == hash && SINGLE_VALUED[i].equalsIgnoreCase(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean nameEquals(int index, String name) {
+    int start = entries[index * STRIDE];
+    int length = entries[index * STRIDE + 1] - start;
+    if (length != name.length()) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (toLowerCase(data[start + i] & 0xff) != toLowerCase(name.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String lowerCaseName(int index) {
+    int start = entries[index * STRIDE];
+    char[] name = new char[entries[index * STRIDE + 1] - start];
+    for (int i = 0; i < name.length; i++) {
+      name[i] = (char) toLowerCase(data[start + i] & 0xff);
+    }
+    return new String(name);
+  }
+
+  private static int hash(String name) {
+    int hash = 0;
+    for (int i = 0; i < name.length(); i++) {
+      hash = 31 * hash + toLowerCase(name.charAt(i));
+    }
+    return hash;
+  }
+
+  private static int toLowerCase(int c) {
+    return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+  }
+
+  private static int trimStart(byte[] data, int from, int to) {
+    while (from < to && (data[from] == ' ' || data[from] == '\t')) {
+      from++;
+    }
+    return from;
+  }
+
+  private static int trimEnd(byte[] data, int from, int to) {
+    while (to > from && (data[to - 1] == ' ' || data[to - 1] == '\t')) {
+      to--;
+    }
+    return to;
+  }
+
+  /**
+   * @return The index of the next carriage return and line feed pair, or the end of the data if
+   *     there is none.
+   */
+  private static int findLineEnd(byte[] data, int from) {
+    for (int i = from; i < data.length - 1; i++) {
+      if (data[i] == CARRIAGE_RETURN_BYTE && data[i + 1] == LINE_FEED_BYTE) {
+        return i;
+      }
+    }
+    return data.length;
+  }
+}
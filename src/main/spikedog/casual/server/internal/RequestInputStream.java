@@ -0,0 +1,211 @@
+package spikedog.casual.server.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Buffers the input of a connection so that request heads can be read in bulk rather than a byte
+ * at a time. Bytes buffered beyond the end of a head are returned by the {@code read} methods
+ * before anything more is read from the underlying stream, so the stream can be handed on as the
+ * start of the request body and then used for the next request on the connection.
+ *
+ * <p><em>Not</em> thread-safe.
+ */
+public final class RequestInputStream extends InputStream {
+  private static final byte CARRIAGE_RETURN_BYTE = (byte) '\r';
+  private static final byte LINE_FEED_BYTE = (byte) '\n';
+
+  private final InputStream in;
+  // Set while the buffer belongs to a pool.
+  private BufferPool pool;
+  private byte[] buffer;
+  // Bytes of the buffer used, which may be less than its length if it came from the pool.
+  private final int capacity;
+
+  // Buffered bytes are those in [position, limit).
+  private int position;
+  private int limit;
+
+  public RequestInputStream(InputStream in) {
+    this(in, StreamRequestBuilder.MAX_HEAD_SIZE);
+  }
+
+  /**
+   * Takes the buffer from {@code pool}, to be returned by {@link #release()} once the connection
+   * has ended.
+   */
+  public RequestInputStream(InputStream in, BufferPool pool) {
+    this.in = in;
+    this.pool = pool;
+    this.capacity = StreamRequestBuilder.MAX_HEAD_SIZE;
+    this.buffer = pool.acquire(capacity);
+  }
+
+  RequestInputStream(InputStream in, int bufferSize) {
+    this.in = in;
+    this.pool = null;
+    this.capacity = bufferSize;
+    this.buffer = new byte[bufferSize];
+  }
+
+  /**
+   * Blocks until at least one byte can be read without consuming it.
+   *
+   * @return False if the underlying stream ended first.
+   */
+  public boolean awaitData() throws IOException {
+    if (position < limit) {
+      return true;
+    }
+    position = 0;
+    limit = 0;
+    int n = in.read(buffer, 0, capacity);
+    if (n <= 0) {
+      return false;
+    }
+    limit = n;
+    return true;
+  }
+
+  /**
+   * Buffers input until it contains a complete request head, which will begin at index 0 of
+   * {@link #getBuffer()}.
+   *
+   * @return The index one past the end of the head.
+   * @throws IOException If the stream ends before the head does, or the head does not fit in the
+   *     buffer.
+   */
+  int fillHead() throws IOException {
+    if (position > 0) {
+      System.arraycopy(buffer, position, buffer, 0, limit - position);
+      limit -= position;
+      position = 0;
+    }
+
+    int scanFrom = 0;
+    while (true) {
+      int headEnd = StreamRequestBuilder.findHeadEnd(buffer, scanFrom, limit);
+      if (headEnd >= 0) {
+        return headEnd;
+      }
+      if (limit == capacity) {
+        throw new IOException("Request head exceeds " + capacity + " bytes");
+      }
+
+      scanFrom = Math.max(0, limit - 3);
+      int n = in.read(buffer, limit, capacity - limit);
+      if (n < 0) {
+        throw new EOFException("Stream ended before end of request head");
+      }
+      limit += n;
+    }
+  }
+
+  /**
+   * Reads a line terminated by LF, such as a chunk-size line, filling the buffer from the
+   * underlying stream in bulk rather than reading a byte at a time.
+   *
+   * @return The line without its terminator, or the CR before it, decoded as ISO-8859-1.
+   * @throws IOException If the stream ends before the line does, or the line is longer than
+   *     {@code maxLength} bytes.
+   */
+  String readLine(int maxLength) throws IOException {
+    int scanFrom = position;
+    while (true) {
+      for (int i = scanFrom; i < limit; i++) {
+        if (buffer[i] == LINE_FEED_BYTE) {
+          if (i - position > maxLength) {
+            throw new IOException("Line exceeds " + maxLength + " bytes");
+          }
+          int end = i > position && buffer[i - 1] == CARRIAGE_RETURN_BYTE ? i - 1 : i;
+          String line = new String(buffer, position, end - position, StandardCharsets.ISO_8859_1);
+          position = i + 1;
+          return line;
+        }
+      }
+      if (limit - position > maxLength) {
+        throw new IOException("Line exceeds " + maxLength + " bytes");
+      }
+
+      if (limit == Math.min(buffer.length, capacity)) {
+        // Make room after the partial line.
+        System.arraycopy(buffer, position, buffer, 0, limit - position);
+        limit -= position;
+        position = 0;
+        if (buffer.length < capacity) {
+          // Only once released, when the buffer holds no more than was left buffered.
+          buffer = Arrays.copyOf(buffer, capacity);
+        }
+      }
+      scanFrom = limit;
+      int n = in.read(buffer, limit, Math.min(buffer.length, capacity) - limit);
+      if (n < 0) {
+        throw new EOFException("Stream ended within line");
+      }
+      limit += n;
+    }
+  }
+
+  byte[] getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * Marks the first {@code count} bytes of the buffer as consumed.
+   */
+  void skipBuffered(int count) {
+    position = count;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (position < limit) {
+      return buffer[position++] & 0xff;
+    }
+    return in.read();
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (position < limit) {
+      int n = Math.min(len, limit - position);
+      System.arraycopy(buffer, position, b, off, n);
+      position += n;
+      return n;
+    }
+    // Nothing buffered, read straight into the caller's array rather than copying twice.
+    return in.read(b, off, len);
+  }
+
+  @Override
+  public int available() throws IOException {
+    return (limit - position) + in.available();
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * Returns the buffer to the pool it came from, once no further requests are to be read. Bytes
+   * still buffered are kept, as a request body may be read after the connection has ended.
+   */
+  public void release() {
+    if (pool == null) {
+      return;
+    }
+    byte[] pooled = buffer;
+    buffer = Arrays.copyOfRange(pooled, position, limit);
+    limit -= position;
+    position = 0;
+    pool.release(pooled);
+    pool = null;
+  }
+}
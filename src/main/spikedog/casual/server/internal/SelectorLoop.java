@@ -0,0 +1,650 @@
+package spikedog.casual.server.internal;
+
+import spikedog.casual.server.Request;
+import spikedog.casual.server.util.Constants;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Non-blocking alternative to a blocking accept loop. A single selector thread accepts connections
+ * and reads request heads and bodies incrementally; only complete {@link Request}s are handed to
+ * the request executor. Responses are written by the executor into a per-connection output queue
+ * which is drained as the socket becomes writable, so a slow client never holds on to a request
+ * thread while it trickles bytes in or out.
+ *
+ * <p>Request bodies are delimited by the Content-Length header and buffered in memory up to
+ * {@link #MAX_BODY_SIZE} bytes. Requests without a Content-Length have an empty body, and those
+ * with a Transfer-Encoding are rejected with 411 Length Required.
+ *
+ * <p>Connections are reused for further requests when the handler allows it, subject to the idle
+ * timeout and request limit of the {@link SocketConfigResolver}. Requests are handled one at a
+ * time per connection, but once a handler returns, any request the client has pipelined behind
+ * it is parsed and dispatched while the previous response is still being sent. Output is queued
+ * in order, so responses are always sent in the order the requests arrived.
+ */
+public final class SelectorLoop {
+  /**
+   * Receives complete requests from a {@link SelectorLoop}. Always called on the request executor.
+   */
+  public interface RequestHandler {
+    /**
+     * @param out Stream to write the response to. Closing it has no effect on the connection.
+     * @param keepAlive Whether the connection may be reused after this request.
+     * @return True if the connection should be kept open for another request once all output has
+     *     been sent, false to close it.
+     */
+    boolean handleRequest(Request request, OutputStream out, boolean keepAlive);
+  }
+
+  /** Largest accepted request body, in bytes. */
+  public static final int MAX_BODY_SIZE = 1 << 20;
+
+  // How often, in milliseconds, connections are checked for exceeding the idle timeout.
+  private static final long IDLE_CHECK_INTERVAL = 1000;
+
+  // Size of the chunks response output is queued in.
+  private static final int OUTPUT_CHUNK_SIZE = 8192;
+
+  // Output chunks are taken from here and returned once sent.
+  private static final BufferPool BUFFERS = BufferPool.getDefault();
+
+  // Handler threads block once this much response output is waiting to be sent.
+  private static final int MAX_PENDING_OUTPUT = 256 * 1024;
+
+  private static final byte[] BAD_REQUEST_BYTES =
+      "HTTP/1.1 400 Bad request\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+  private static final byte[] LENGTH_REQUIRED_BYTES =
+      "HTTP/1.1 411 Length required\r\nConnection: close\r\n\r\n"
+          .getBytes(StandardCharsets.US_ASCII);
+
+  private static final byte[] TOO_LARGE_BYTES =
+      "HTTP/1.1 413 Request too large\r\nConnection: close\r\n\r\n"
+          .getBytes(StandardCharsets.US_ASCII);
+
+  private final int port;
+  private final Executor requestExecutor;
+  private final SocketConfigResolver socketConfigResolver;
+  private final RequestHandler handler;
+
+  // Connections whose interest set must be updated by the selector thread.
+  private final Queue<Connection> pendingUpdates = new ConcurrentLinkedQueue<Connection>();
+
+  private long lastIdleCheck = System.currentTimeMillis();
+
+  private volatile boolean running;
+  private volatile ServerSocketChannel serverChannel;
+  private volatile Selector selector;
+
+  public SelectorLoop(
+      int port,
+      Executor requestExecutor,
+      SocketConfigResolver socketConfigResolver,
+      RequestHandler handler) {
+    this.port = port;
+    this.requestExecutor = requestExecutor;
+    this.socketConfigResolver = socketConfigResolver;
+    this.handler = handler;
+  }
+
+  /**
+   * Binds to the port and runs the selector loop on the calling thread until {@link #stop()} is
+   * called.
+   */
+  public void run() throws IOException {
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress(port));
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    running = true;
+
+    try {
+      while (running) {
+        selector.select(IDLE_CHECK_INTERVAL);
+
+        Connection pending;
+        while ((pending = pendingUpdates.poll()) != null) {
+          try {
+            pending.updateInterest();
+          } catch (IOException e) {
+            pending.close();
+          }
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - lastIdleCheck >= IDLE_CHECK_INTERVAL) {
+          lastIdleCheck = now;
+          closeIdleConnections(now);
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+
+          Connection connection = (Connection) key.attachment();
+          try {
+            if (key.isWritable()) {
+              connection.writeOutput();
+            }
+            if (key.isValid() && key.isReadable()) {
+              connection.read();
+            }
+          } catch (IOException e) {
+            connection.close();
+          }
+        }
+      }
+    } finally {
+      for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+        Object attachment = key.attachment();
+        if (attachment instanceof Connection) {
+          // Also wakes handlers waiting to queue output, which then fail.
+          ((Connection) attachment).close();
+        } else {
+          try {
+            key.channel().close();
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+      }
+      selector.close();
+    }
+  }
+
+  /**
+   * Stops accepting connections and closes any open ones.
+   */
+  public void stop() throws IOException {
+    running = false;
+    if (serverChannel != null) {
+      serverChannel.close();
+    }
+    if (selector != null) {
+      selector.wakeup();
+    }
+  }
+
+  /**
+   * @return The port the loop is listening on, or -1 if it has not yet bound.
+   */
+  public int getLocalPort() {
+    ServerSocketChannel channel = serverChannel;
+    if (channel == null || !running) {
+      return -1;
+    }
+    return channel.socket().getLocalPort();
+  }
+
+  private void closeIdleConnections(long now) {
+    for (SelectionKey key : selector.keys()) {
+      Object attachment = key.attachment();
+      if (attachment instanceof Connection && ((Connection) attachment).isIdle(now)) {
+        ((Connection) attachment).close();
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel;
+    while ((channel = serverChannel.accept()) != null) {
+      try {
+        socketConfigResolver.configureSocket(channel.socket());
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+      } catch (IOException e) {
+        e.printStackTrace();
+        channel.close();
+      }
+    }
+  }
+
+  /**
+   * State for a single client connection. Request parsing is only ever done on the selector
+   * thread. Output may be queued from any thread and is guarded by {@link #outputLock}.
+   */
+  private final class Connection {
+    private final SocketChannel channel;
+    private SelectionKey key;
+
+    // Request parsing state, selector thread only.
+    private final ByteBuffer headBuffer = ByteBuffer.allocate(StreamRequestBuilder.MAX_HEAD_SIZE);
+    private int headScanPosition;
+    private Request.Builder requestBuilder;
+    private ByteBuffer body;
+    private boolean dispatched;
+    private boolean inputEnded;
+    private int requestCount;
+    private long lastActive = System.currentTimeMillis();
+
+    // Response output state.
+    private final ReentrantLock outputLock = new ReentrantLock();
+    private final Condition outputDrained = outputLock.newCondition();
+    private final ArrayDeque<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+    private final ConnectionOutputStream outputStream = new ConnectionOutputStream();
+    private int pendingOutput;
+    // File being transferred once the queued output has been written.
+    private FileChannel file;
+    private long filePosition;
+    private long fileEnd;
+    // Set once the connection should close after the queued output has been sent.
+    private boolean closeAfterOutput;
+    private boolean resumeReading;
+    private boolean closed;
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    void read() throws IOException {
+      ByteBuffer target = body == null ? headBuffer : body;
+      int n = channel.read(target);
+      if (n < 0) {
+        // The client may have pipelined its requests and shut down its side, so finish sending
+        // responses before closing.
+        inputEnded = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        outputLock.lock();
+        try {
+          closeAfterOutput = true;
+          writeOutput();
+        } finally {
+          outputLock.unlock();
+        }
+        return;
+      }
+      lastActive = System.currentTimeMillis();
+      parse();
+    }
+
+    boolean isIdle(long now) {
+      if (dispatched || now - lastActive <= socketConfigResolver.getIdleTimeout()) {
+        return false;
+      }
+      outputLock.lock();
+      try {
+        // A response may still be being sent to a slow reader.
+        return output.isEmpty() && file == null;
+      } finally {
+        outputLock.unlock();
+      }
+    }
+
+    private void parse() throws IOException {
+      if (body == null) {
+        readHead();
+      }
+      if (body != null && !body.hasRemaining()) {
+        dispatch();
+      }
+    }
+
+    private void readHead() throws IOException {
+      byte[] bytes = headBuffer.array();
+      int headEnd =
+          StreamRequestBuilder.findHeadEnd(bytes, headScanPosition, headBuffer.position());
+      if (headEnd < 0) {
+        if (!headBuffer.hasRemaining()) {
+          reject(TOO_LARGE_BYTES);
+        } else {
+          headScanPosition = Math.max(0, headBuffer.position() - 3);
+        }
+        return;
+      }
+
+      long contentLength;
+      try {
+        requestBuilder = StreamRequestBuilder.parseHead(bytes, 0, headEnd);
+        Request head = requestBuilder.build();
+        if (head.getFirstHeaderValue(Constants.HEADER_TRANSFER_ENCODING) != null) {
+          reject(LENGTH_REQUIRED_BYTES);
+          return;
+        }
+        contentLength = StreamRequestBuilder.parseContentLength(head);
+      } catch (RuntimeException e) {
+        reject(BAD_REQUEST_BYTES);
+        return;
+      }
+      if (contentLength > MAX_BODY_SIZE) {
+        reject(TOO_LARGE_BYTES);
+        return;
+      }
+
+      body = ByteBuffer.allocate((int) Math.max(contentLength, 0));
+      int bodyBytes = Math.min(headBuffer.position() - headEnd, body.capacity());
+      body.put(bytes, headEnd, bodyBytes);
+
+      // Keep anything beyond this request for the next one.
+      headBuffer.limit(headBuffer.position());
+      headBuffer.position(headEnd + bodyBytes);
+      headBuffer.compact();
+      headScanPosition = 0;
+    }
+
+    private void dispatch() {
+      // No more reading until the response has been sent.
+      dispatched = true;
+      key.interestOps(0);
+      requestCount++;
+      requestBuilder.setBody(new ByteArrayInputStream(body.array()));
+      final Request request = requestBuilder.build();
+      final boolean allowKeepAlive =
+          requestCount < socketConfigResolver.getMaxRequestsPerConnection();
+      requestBuilder = null;
+      body = null;
+      try {
+        requestExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            boolean reuse = false;
+            try {
+              reuse = handler.handleRequest(request, outputStream, allowKeepAlive);
+            } finally {
+              finishResponse(reuse);
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        e.printStackTrace();
+        close();
+      }
+    }
+
+    private void reject(byte[] response) throws IOException {
+      dispatched = true;
+      key.interestOps(0);
+      outputLock.lock();
+      try {
+        // Read-only, so that it is not mistaken for a pooled chunk.
+        output.add(ByteBuffer.wrap(response).asReadOnlyBuffer());
+        pendingOutput += response.length;
+        closeAfterOutput = true;
+      } finally {
+        outputLock.unlock();
+      }
+      updateInterest();
+    }
+
+    /**
+     * Queues a chunk of response output and attempts to send it immediately.
+     */
+    void queueOutput(ByteBuffer chunk) throws IOException {
+      outputLock.lock();
+      try {
+        while (pendingOutput >= MAX_PENDING_OUTPUT && !closed) {
+          outputDrained.awaitUninterruptibly();
+        }
+        if (closed) {
+          releaseChunk(chunk);
+          throw new IOException("Connection closed");
+        }
+        output.add(chunk);
+        pendingOutput += chunk.remaining();
+        writeOutput();
+      } finally {
+        outputLock.unlock();
+      }
+    }
+
+    /**
+     * Queues part of a file to be sent after the output already queued, and waits until it has
+     * been sent.
+     */
+    void queueFile(FileChannel file, long position, long count) throws IOException {
+      outputLock.lock();
+      try {
+        if (closed) {
+          throw new IOException("Connection closed");
+        }
+        this.file = file;
+        this.filePosition = position;
+        this.fileEnd = position + count;
+        writeOutput();
+        while (this.file != null && !closed) {
+          outputDrained.awaitUninterruptibly();
+        }
+        if (this.file != null) {
+          this.file = null;
+          throw new IOException("Connection closed");
+        }
+      } finally {
+        outputLock.unlock();
+      }
+    }
+
+    void finishResponse(boolean reuse) {
+      try {
+        outputStream.flush();
+      } catch (IOException e) {
+        // Connection already gone.
+      }
+      outputLock.lock();
+      try {
+        if (reuse) {
+          // Move on to the next request without waiting for this response to be sent.
+          resumeReading = true;
+        } else {
+          closeAfterOutput = true;
+        }
+        writeOutput();
+      } catch (IOException e) {
+        close();
+      } finally {
+        outputLock.unlock();
+      }
+    }
+
+    /**
+     * Writes as much queued output as the socket accepts without blocking. Output which cannot be
+     * written is left for the selector thread.
+     */
+    void writeOutput() throws IOException {
+      outputLock.lock();
+      try {
+        if (closed) {
+          return;
+        }
+        if (!output.isEmpty()) {
+          long written = channel.write(output.toArray(new ByteBuffer[output.size()]));
+          pendingOutput -= written;
+          while (!output.isEmpty() && !output.peek().hasRemaining()) {
+            releaseChunk(output.poll());
+          }
+          outputDrained.signalAll();
+        }
+        if (output.isEmpty() && file != null) {
+          long n = file.transferTo(filePosition, fileEnd - filePosition, channel);
+          filePosition += n;
+          if (filePosition >= fileEnd) {
+            file = null;
+            outputDrained.signalAll();
+          } else if (n == 0 && filePosition >= file.size()) {
+            throw new IOException("File truncated during transfer");
+          }
+        }
+
+        boolean hasOutput = !output.isEmpty() || file != null;
+        if (!hasOutput && closeAfterOutput) {
+          close();
+          return;
+        }
+        if (resumeReading || hasOutput) {
+          pendingUpdates.add(this);
+          selector.wakeup();
+        }
+      } finally {
+        outputLock.unlock();
+      }
+    }
+
+    /**
+     * Brings the interest set up to date with the connection state. Selector thread only.
+     */
+    void updateInterest() throws IOException {
+      boolean resume;
+      outputLock.lock();
+      try {
+        resume = resumeReading;
+        resumeReading = false;
+      } finally {
+        outputLock.unlock();
+      }
+
+      if (!key.isValid()) {
+        return;
+      }
+      if (resume) {
+        dispatched = false;
+        lastActive = System.currentTimeMillis();
+        // The client may already have sent the next request.
+        if (headBuffer.position() > 0) {
+          parse();
+        }
+      }
+      if (key.isValid()) {
+        // Only read now, as parsing may have queued a rejection.
+        boolean hasOutput;
+        outputLock.lock();
+        try {
+          hasOutput = !output.isEmpty() || file != null;
+        } finally {
+          outputLock.unlock();
+        }
+        int ops = hasOutput ? SelectionKey.OP_WRITE : 0;
+        if (!dispatched && !inputEnded) {
+          ops |= SelectionKey.OP_READ;
+        }
+        key.interestOps(ops);
+      }
+    }
+
+    void close() {
+      outputLock.lock();
+      try {
+        closed = true;
+        outputDrained.signalAll();
+        // Output which will now never be sent.
+        ByteBuffer chunk;
+        while ((chunk = output.poll()) != null) {
+          releaseChunk(chunk);
+        }
+        pendingOutput = 0;
+        key.cancel();
+        channel.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      } finally {
+        outputLock.unlock();
+      }
+    }
+
+    /**
+     * Returns a chunk to the pool once written or abandoned. Direct and read-only buffers are
+     * queued as they were handed over, so are not the connection's to release.
+     */
+    private void releaseChunk(ByteBuffer chunk) {
+      if (chunk.hasArray()) {
+        BUFFERS.release(chunk.array());
+      }
+    }
+
+    /**
+     * Collects handler output into fixed size chunks which are queued on the connection. Files are
+     * transferred from the selector thread straight to the socket, and direct buffers, such as
+     * mapped files, are queued as they are rather than copied.
+     */
+    private final class ConnectionOutputStream extends OutputStream
+        implements FileTransferTarget, GatheringTarget {
+      private ByteBuffer chunk;
+
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+          if (chunk == null) {
+            chunk = ByteBuffer.wrap(BUFFERS.acquire(OUTPUT_CHUNK_SIZE));
+          }
+          int n = Math.min(len, chunk.remaining());
+          chunk.put(b, off, n);
+          off += n;
+          len -= n;
+          if (!chunk.hasRemaining()) {
+            flush();
+          }
+        }
+      }
+
+      @Override
+      public void flush() throws IOException {
+        if (chunk != null && chunk.position() > 0) {
+          chunk.flip();
+          ByteBuffer queued = chunk;
+          chunk = null;
+          queueOutput(queued);
+        }
+      }
+
+      @Override
+      public void writeGathered(ByteBuffer[] buffers) throws IOException {
+        for (ByteBuffer buffer : buffers) {
+          if (buffer.isDirect()) {
+            flush();
+            queueOutput(buffer.slice());
+          } else if (buffer.hasArray()) {
+            write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+          } else {
+            byte[] copy = new byte[buffer.remaining()];
+            buffer.duplicate().get(copy);
+            write(copy, 0, copy.length);
+          }
+          buffer.position(buffer.limit());
+        }
+      }
+
+      @Override
+      public void transferFrom(FileChannel file, long position, long count) throws IOException {
+        flush();
+        queueFile(file, position, count);
+      }
+
+      @Override
+      public void close() throws IOException {
+        flush();
+      }
+    }
+  }
+}
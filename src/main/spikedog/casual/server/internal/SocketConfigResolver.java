@@ -12,18 +12,58 @@ import java.net.SocketException;
  * <p>This class is thread-safe.
  */
 public final class SocketConfigResolver {
-  private final SocketConfig config;
+  /** Idle timeout for persistent connections when none is configured, in milliseconds. */
+  public static final int DEFAULT_IDLE_TIMEOUT = 15000;
+
+  /** Requests served per connection when no limit is configured. */
+  public static final int DEFAULT_MAX_REQUESTS_PER_CONNECTION = 100;
 
-  private boolean configResolved = false;
+  private final SocketConfig config;
+  private final int idleTimeout;
+  private final int maxRequestsPerConnection;
 
-  private boolean keepAlive;
-  private int socketTimeout;
-  private int receiveBufferSize;
-  private int sendBufferSize;
-  private boolean tcpNoDelay;
+  // Null until the first socket has been configured. Resolution is idempotent, so threads racing
+  // to resolve simply publish equal values rather than blocking on a lock.
+  private volatile ResolvedConfig resolved;
 
   public SocketConfigResolver(SocketConfig config) {
     this.config = config;
+
+    Integer configIdleTimeout = config == null ? null : config.getIdleTimeout();
+    idleTimeout = configIdleTimeout == null ? DEFAULT_IDLE_TIMEOUT : configIdleTimeout;
+
+    Integer configMaxRequests = config == null ? null : config.getMaxRequestsPerConnection();
+    maxRequestsPerConnection =
+        configMaxRequests == null ? DEFAULT_MAX_REQUESTS_PER_CONNECTION : configMaxRequests;
+  }
+
+  /**
+   * @return Whether connections should be served by a non-blocking selector loop.
+   */
+  public boolean isNonBlocking() {
+    return config != null && Boolean.TRUE.equals(config.getNonBlocking());
+  }
+
+  /**
+   * @return Time in milliseconds a persistent connection may sit idle between requests.
+   */
+  public int getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  /**
+   * @return Number of requests which may be served on a single connection.
+   */
+  public int getMaxRequestsPerConnection() {
+    return maxRequestsPerConnection;
+  }
+
+  /**
+   * @return The read timeout applied to sockets while a request is being read. Only valid once
+   *     {@link #configureSocket(Socket)} has been called.
+   */
+  public int getSocketTimeout() {
+    return resolved.socketTimeout;
   }
 
   /**
@@ -32,41 +72,59 @@ public final class SocketConfigResolver {
    * time the config has been resolved.
    */
   public void configureSocket(Socket socket) throws SocketException {
-    if (!configResolved) {
-      synchronized (this) {
-        if (!configResolved) {
-          keepAlive = socket.getKeepAlive();
-          socketTimeout = socket.getSoTimeout();
-          receiveBufferSize = socket.getReceiveBufferSize();
-          sendBufferSize = socket.getSendBufferSize();
-          tcpNoDelay = socket.getTcpNoDelay();
-
-          if (config != null) {
-            Boolean configKeepAlive = config.getKeepAlive();
-            keepAlive = configKeepAlive == null ? keepAlive : configKeepAlive;
-
-            Integer configSocketTimeout = config.getSocketTimeout();
-            socketTimeout = configSocketTimeout == null ? socketTimeout : configSocketTimeout;
-
-            Integer configReceiveBufferSize = config.getReceiveBufferSize();
-            receiveBufferSize = configReceiveBufferSize == null
-                ? receiveBufferSize : configReceiveBufferSize;
-
-            Integer configSendBufferSize = config.getSendBufferSize();
-            sendBufferSize = configSendBufferSize == null ? sendBufferSize : configSendBufferSize;
-
-            Boolean configTcpNoDelay = config.getTcpNoDelay();
-            tcpNoDelay = configTcpNoDelay == null ? tcpNoDelay : configTcpNoDelay;
-          }
-          configResolved = true;
-        }
-      }
+    ResolvedConfig resolved = this.resolved;
+    if (resolved == null) {
+      resolved = new ResolvedConfig(socket, config);
+      this.resolved = resolved;
     }
 
-    socket.setKeepAlive(keepAlive);
-    socket.setSoTimeout(socketTimeout);
-    socket.setReceiveBufferSize(receiveBufferSize);
-    socket.setSendBufferSize(sendBufferSize);
-    socket.setTcpNoDelay(tcpNoDelay);
+    socket.setKeepAlive(resolved.keepAlive);
+    socket.setSoTimeout(resolved.socketTimeout);
+    socket.setReceiveBufferSize(resolved.receiveBufferSize);
+    socket.setSendBufferSize(resolved.sendBufferSize);
+    socket.setTcpNoDelay(resolved.tcpNoDelay);
+  }
+
+  /**
+   * Immutable socket settings with system defaults filled in for values missing from the config.
+   */
+  private static final class ResolvedConfig {
+    private final boolean keepAlive;
+    private final int socketTimeout;
+    private final int receiveBufferSize;
+    private final int sendBufferSize;
+    private final boolean tcpNoDelay;
+
+    ResolvedConfig(Socket socket, SocketConfig config) throws SocketException {
+      boolean keepAlive = socket.getKeepAlive();
+      int socketTimeout = socket.getSoTimeout();
+      int receiveBufferSize = socket.getReceiveBufferSize();
+      int sendBufferSize = socket.getSendBufferSize();
+      boolean tcpNoDelay = socket.getTcpNoDelay();
+
+      if (config != null) {
+        Boolean configKeepAlive = config.getKeepAlive();
+        keepAlive = configKeepAlive == null ? keepAlive : configKeepAlive;
+
+        Integer configSocketTimeout = config.getSocketTimeout();
+        socketTimeout = configSocketTimeout == null ? socketTimeout : configSocketTimeout;
+
+        Integer configReceiveBufferSize = config.getReceiveBufferSize();
+        receiveBufferSize = configReceiveBufferSize == null
+            ? receiveBufferSize : configReceiveBufferSize;
+
+        Integer configSendBufferSize = config.getSendBufferSize();
+        sendBufferSize = configSendBufferSize == null ? sendBufferSize : configSendBufferSize;
+
+        Boolean configTcpNoDelay = config.getTcpNoDelay();
+        tcpNoDelay = configTcpNoDelay == null ? tcpNoDelay : configTcpNoDelay;
+      }
+
+      this.keepAlive = keepAlive;
+      this.socketTimeout = socketTimeout;
+      this.receiveBufferSize = receiveBufferSize;
+      this.sendBufferSize = sendBufferSize;
+      this.tcpNoDelay = tcpNoDelay;
+    }
   }
 }
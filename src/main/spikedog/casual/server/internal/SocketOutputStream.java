@@ -0,0 +1,213 @@
+package spikedog.casual.server.internal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Output stream for a blocking socket. If the socket has a channel, file regions are sent with
+ * {@link FileChannel#transferTo} so the kernel can copy them directly to the socket, and multiple
+ * buffers are sent with a single gathering write.
+ *
+ * <p>The stream can be {@link #cork() corked} while responses to pipelined requests are being
+ * written, so that they are sent together rather than one write per response.
+ *
+ * <p><em>Not</em> thread-safe.
+ */
+public final class SocketOutputStream extends OutputStream
+    implements FileTransferTarget, GatheringTarget {
+  // Most output held back while corked, in bytes. Larger writes go straight to the socket.
+  private static final int CORK_BUFFER_SIZE = 16 * 1024;
+
+  private static final BufferPool BUFFERS = BufferPool.getDefault();
+
+  private final OutputStream out;
+  private final SocketChannel channel;
+
+  private boolean corked;
+  private byte[] pending;
+  private int pendingLength;
+
+  public SocketOutputStream(Socket socket) throws IOException {
+    this.out = socket.getOutputStream();
+    this.channel = socket.getChannel();
+  }
+
+  /**
+   * Sends part of a file to a channel, looping until the whole region has been transferred.
+   *
+   * @throws IOException If the file ends before the region does.
+   */
+  public static void transfer(
+      FileChannel file, long position, long count, WritableByteChannel target)
+      throws IOException {
+    long end = position + count;
+    while (position < end) {
+      long n = file.transferTo(position, end - position, target);
+      if (n <= 0 && position >= file.size()) {
+        throw new IOException("File truncated during transfer");
+      }
+      position += n;
+    }
+  }
+
+  /**
+   * Holds back output, including flushes, until {@link #uncork()} is called or more output is
+   * written than can be held.
+   */
+  public void cork() {
+    corked = true;
+  }
+
+  /**
+   * Sends any held back output and stops holding back further output.
+   */
+  public void uncork() throws IOException {
+    corked = false;
+    flush();
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (corked && hold(b, off, len)) {
+      return;
+    }
+    send(new ByteBuffer[] {ByteBuffer.wrap(b, off, len)});
+  }
+
+  @Override
+  public void writeGathered(ByteBuffer[] buffers) throws IOException {
+    if (corked) {
+      long length = 0;
+      for (ByteBuffer buffer : buffers) {
+        length += buffer.remaining();
+      }
+      if (pendingLength + length <= CORK_BUFFER_SIZE) {
+        if (pending == null) {
+          pending = BUFFERS.acquire(CORK_BUFFER_SIZE);
+        }
+        for (ByteBuffer buffer : buffers) {
+          int n = buffer.remaining();
+          buffer.get(pending, pendingLength, n);
+          pendingLength += n;
+        }
+        return;
+      }
+    }
+    send(buffers);
+  }
+
+  @Override
+  public void transferFrom(FileChannel file, long position, long count) throws IOException {
+    flushPending();
+    out.flush();
+    transfer(file, position, count, channel != null ? channel : Channels.newChannel(out));
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (!corked) {
+      flushPending();
+      out.flush();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flushPending();
+      out.close();
+    } finally {
+      if (pending != null) {
+        BUFFERS.release(pending);
+        pending = null;
+        pendingLength = 0;
+      }
+    }
+  }
+
+  /**
+   * Writes held back output followed by {@code buffers}, with a single gathering write where the
+   * socket has a channel.
+   */
+  private void send(ByteBuffer[] buffers) throws IOException {
+    if (pendingLength > 0) {
+      // Send held back output in the same write.
+      ByteBuffer[] all = new ByteBuffer[buffers.length + 1];
+      all[0] = ByteBuffer.wrap(pending, 0, pendingLength);
+      System.arraycopy(buffers, 0, all, 1, buffers.length);
+      pendingLength = 0;
+      buffers = all;
+    }
+
+    if (channel == null) {
+      byte[] copyBuffer = null;
+      try {
+        for (ByteBuffer buffer : buffers) {
+          if (buffer.hasArray()) {
+            out.write(
+                buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            continue;
+          }
+          // Direct buffers have no array to write from, so are copied out a piece at a time.
+          if (copyBuffer == null) {
+            copyBuffer = BUFFERS.acquire(CORK_BUFFER_SIZE);
+          }
+          while (buffer.hasRemaining()) {
+            int n = Math.min(copyBuffer.length, buffer.remaining());
+            buffer.get(copyBuffer, 0, n);
+            out.write(copyBuffer, 0, n);
+          }
+        }
+      } finally {
+        if (copyBuffer != null) {
+          BUFFERS.release(copyBuffer);
+        }
+      }
+      return;
+    }
+
+    out.flush();
+    long remaining = 0;
+    for (ByteBuffer buffer : buffers) {
+      remaining += buffer.remaining();
+    }
+    while (remaining > 0) {
+      remaining -= channel.write(buffers);
+    }
+  }
+
+  /**
+   * Copies bytes into the held back output if they fit.
+   *
+   * @return False if they did not fit.
+   */
+  private boolean hold(byte[] b, int off, int len) {
+    if (pendingLength + len > CORK_BUFFER_SIZE) {
+      return false;
+    }
+    if (pending == null) {
+      pending = BUFFERS.acquire(CORK_BUFFER_SIZE);
+    }
+    System.arraycopy(b, off, pending, pendingLength, len);
+    pendingLength += len;
+    return true;
+  }
+
+  private void flushPending() throws IOException {
+    if (pendingLength > 0) {
+      send(new ByteBuffer[0]);
+    }
+  }
+}
@@ -1,11 +1,13 @@
 package spikedog.casual.server.internal;
 
+import spikedog.casual.server.Method;
 import spikedog.casual.server.Request;
 import spikedog.casual.server.RequestLine;
+import spikedog.casual.server.util.Constants;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 /**
@@ -14,55 +16,263 @@ import java.util.List;
 public class StreamRequestBuilder {
   private static final byte CARRIAGE_RETURN_BYTE = (byte) '\r';
   private static final byte LINE_FEED_BYTE = (byte) '\n';
+  private static final byte SPACE_BYTE = (byte) ' ';
+
+  // Indexed by ASCII byte, whether it is a token character.
+  private static final boolean[] TOKEN_BYTES = new boolean[128];
+
+  static {
+    String tokenCharacters = "!#$%&'*+-.^_`|~0123456789"
+        + "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    for (int i = 0; i < tokenCharacters.length(); i++) {
+      TOKEN_BYTES[tokenCharacters.charAt(i)] = true;
+    }
+  }
+
+  /** Largest accepted request line plus headers, in bytes. */
+  public static final int MAX_HEAD_SIZE = 8192;
 
   // Static helper methods only.
   private StreamRequestBuilder() {
   }
 
   /**
-   * Constructs a {@link Request} from the data provided by an {@link InputStream}.
+   * Constructs a {@link Request} from the data provided by an {@link InputStream}. The body of the
+   * request is delimited as described in {@link #buildDelimitedRequestFromStream}.
    */
   public static Request buildRequestFromStream(InputStream in) throws IOException {
-    Request.Builder requestBuilder = new Request.Builder();
-    RequestLine requestLine = RequestLine.fromString(readLine(in));
-    requestBuilder.setRequestLine(requestLine);
+    RequestInputStream requestIn = in instanceof RequestInputStream
+        ? (RequestInputStream) in : new RequestInputStream(in);
+    return buildDelimitedRequestFromStream(requestIn);
+  }
 
-    while (true) {
-      String headerLine = readLine(in);
-      if (headerLine.equals("")) {
-        break;
+  /**
+   * Constructs a {@link Request} whose body is delimited by its Content-Length header, or decoded
+   * from chunked transfer-coding, so that the stream is positioned at the start of the next
+   * request once the body has been read. Requests with neither have an empty body, unless they
+   * declare some other Transfer-Encoding, in which case the body runs to the end of the stream
+   * (see {@link #hasDelimitedBody(Request)}).
+   */
+  public static Request buildDelimitedRequestFromStream(RequestInputStream in)
+      throws IOException {
+    Request.Builder requestBuilder = readHead(in);
+    Request request = requestBuilder.build();
+    if (isChunked(request)) {
+      requestBuilder.setBody(new ChunkedInputStream(in));
+    } else if (hasDelimitedBody(request)) {
+      long contentLength = Math.max(parseContentLength(request), 0);
+      requestBuilder.setBody(new ContentLengthInputStream(in, contentLength));
+    } else {
+      requestBuilder.setBody(in);
+    }
+    return requestBuilder.build();
+  }
+
+  /**
+   * @return The length of the request body given by its Content-Length header, or -1 if it has
+   *     none.
+   * @throws IllegalArgumentException If the header has differing values, or one which is not a
+   *     decimal number, as the end of the body and so the start of the next request on the
+   *     connection cannot then be trusted.
+   */
+  static long parseContentLength(Request request) {
+    List<String> values = request.getHeaderValues(Constants.HEADER_CONTENT_LENGTH);
+    if (values == null || values.isEmpty()) {
+      return -1;
+    }
+    String value = values.get(0);
+    for (String other : values) {
+      if (!other.equals(value)) {
+        throw new IllegalArgumentException("Conflicting Content-Length " + values);
+      }
+    }
+    // At most 18 digits, so that the value fits in a long.
+    if (value.isEmpty() || value.length() > 18) {
+      throw new IllegalArgumentException("Invalid Content-Length " + value);
+    }
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9') {
+        throw new IllegalArgumentException("Invalid Content-Length " + value);
       }
+    }
+    return Long.parseLong(value);
+  }
+
+  /**
+   * @return Whether the end of the request body can be determined without reading to the end of
+   *     the stream.
+   */
+  public static boolean hasDelimitedBody(Request request) {
+    return request.getFirstHeaderValue(Constants.HEADER_TRANSFER_ENCODING) == null
+        || isChunked(request);
+  }
+
+  /**
+   * @return Whether the request body is sent with chunked transfer-coding, which must be the last
+   *     coding applied.
+   */
+  public static boolean isChunked(Request request) {
+    List<String> codings = request.getHeaderValues(Constants.HEADER_TRANSFER_ENCODING);
+    return codings != null
+        && !codings.isEmpty()
+        && codings.get(codings.size() - 1).equalsIgnoreCase(Constants.TRANSFER_ENCODING_CHUNKED);
+  }
 
-      int split = headerLine.indexOf(':');
-      String name = headerLine.substring(0, split).trim();
-      String valueSection = headerLine.substring(split + 1);
-      List<String> values = new ArrayList<String>();
-      String[] valueParts = valueSection.split(",");
-      for (String value : valueParts) {
-        values.add(value.trim());
+  /**
+   * Finds the end of a request head, i.e. the position just after the empty line which terminates
+   * the headers. The head is assumed to start at index 0.
+   *
+   * @param from Index to begin scanning from. Bytes before this index are assumed to have been
+   *     scanned by a previous call.
+   * @param to Index one past the last byte of data in the buffer.
+   * @return The index of the first byte after the head, or -1 if the head is not yet complete.
+   */
+  static int findHeadEnd(byte[] buffer, int from, int to) {
+    for (int i = Math.max(from, 3); i < to; i++) {
+      if (buffer[i] == LINE_FEED_BYTE
+          && buffer[i - 1] == CARRIAGE_RETURN_BYTE
+          && buffer[i - 2] == LINE_FEED_BYTE
+          && buffer[i - 3] == CARRIAGE_RETURN_BYTE) {
+        return i + 1;
       }
-      requestBuilder.setHeader(name, values);
     }
+    return -1;
+  }
 
-    requestBuilder.setBody(in);
-    return requestBuilder.build();
+  /**
+   * Buffers and parses a request line and headers, leaving the stream positioned at the start of
+   * the message body. The body of the returned builder is not set.
+   */
+  static Request.Builder readHead(RequestInputStream in) throws IOException {
+    int headEnd = in.fillHead();
+    Request.Builder requestBuilder = parseHead(in.getBuffer(), 0, headEnd);
+    in.skipBuffered(headEnd);
+    return requestBuilder;
   }
 
-  private static String readLine(InputStream stream) throws IOException {
-    StringBuilder headerLineBuilder = new StringBuilder();
-    int b = -1;
+  /**
+   * Parses the request line and headers held in {@code buffer[offset, end)}. The body of the
+   * returned builder is not set.
+   *
+   * @throws IllegalArgumentException If the head is malformed.
+   */
+  static Request.Builder parseHead(byte[] buffer, int offset, int end) {
+    Request.Builder requestBuilder = new Request.Builder();
+    int lineEnd = findLineEnd(buffer, offset, end);
+    requestBuilder.setRequestLine(parseRequestLine(buffer, offset, lineEnd));
+    requestBuilder.setRawHeaders(buffer, Math.min(lineEnd + 2, end), end);
+    return requestBuilder;
+  }
+
+  /**
+   * Parses and validates the request line held in {@code buffer[from, to)} in a single pass over
+   * the bytes. Strings are only created for the URI, and for methods and versions which are not
+   * spelled as the usual constants; the buffer is reused for the next request, so nothing may
+   * refer to it once the head has been parsed.
+   *
+   * @throws IllegalArgumentException If the line is not a method token, a URI and an HTTP version
+   *     separated by single spaces.
+   */
+  static RequestLine parseRequestLine(byte[] buffer, int from, int to) {
+    int methodEnd = from;
+    while (methodEnd < to && isTokenByte(buffer[methodEnd])) {
+      methodEnd++;
+    }
+    int uriStart = methodEnd + 1;
+    int uriEnd = uriStart;
+    while (uriEnd < to && isUriByte(buffer[uriEnd])) {
+      uriEnd++;
+    }
+    int versionStart = uriEnd + 1;
+    if (methodEnd == from
+        || uriEnd == uriStart
+        || uriEnd >= to
+        || buffer[methodEnd] != SPACE_BYTE
+        || buffer[uriEnd] != SPACE_BYTE
+        || !isHttpVersion(buffer, versionStart, to)) {
+      throw new IllegalArgumentException(
+          "Malformed request line " + asciiString(buffer, from, Math.min(to, from + 256)));
+    }
+
+    String uri = asciiString(buffer, uriStart, uriEnd);
+    String version;
+    if (matches(buffer, versionStart, Constants.VERISON_HTTP_1_1)) {
+      version = Constants.VERISON_HTTP_1_1;
+    } else if (matches(buffer, versionStart, Constants.VERSION_HTTP_1_0)) {
+      version = Constants.VERSION_HTTP_1_0;
+    } else {
+      version = asciiString(buffer, versionStart, to);
+    }
+
+    Method method = Method.fromBytes(buffer, from, methodEnd);
+    if (method != Method.OTHER && matches(buffer, from, method.getMethodName())) {
+      return new RequestLine(method, uri, version);
+    }
+    return new RequestLine(asciiString(buffer, from, methodEnd), uri, version);
+  }
+
+  /**
+   * @return Whether the byte may appear in a method, see RFC 7230 section 3.2.6.
+   */
+  private static boolean isTokenByte(byte b) {
+    return b > 0 && TOKEN_BYTES[b];
+  }
+
+  /**
+   * @return Whether the byte may appear in a request URI. Bytes outside ASCII are let through, as
+   *     clients send them unescaped, but spaces and control characters are not.
+   */
+  private static boolean isUriByte(byte b) {
+    return b < 0 || (b > SPACE_BYTE && b != 0x7f);
+  }
+
+  /**
+   * @return Whether {@code buffer[from, to)} is {@code HTTP/} followed by a major and minor digit.
+   */
+  private static boolean isHttpVersion(byte[] buffer, int from, int to) {
+    return to - from == 8
+        && buffer[from] == 'H'
+        && buffer[from + 1] == 'T'
+        && buffer[from + 2] == 'T'
+        && buffer[from + 3] == 'P'
+        && buffer[from + 4] == '/'
+        && isDigit(buffer[from + 5])
+        && buffer[from + 6] == '.'
+        && isDigit(buffer[from + 7]);
+  }
+
+  private static boolean isDigit(byte b) {
+    return b >= '0' && b <= '9';
+  }
 
-    byte lastByte = -1;
-    // Wow! Such efficient!
-    while ((b = stream.read()) != -1) {
-      if (lastByte == CARRIAGE_RETURN_BYTE && b == LINE_FEED_BYTE) {
-        break;
+  /**
+   * @return Whether the bytes from {@code from} are the ASCII characters of {@code s}. The buffer
+   *     must hold at least as many bytes.
+   */
+  private static boolean matches(byte[] buffer, int from, String s) {
+    for (int i = 0; i < s.length(); i++) {
+      if (buffer[from + i] != s.charAt(i)) {
+        return false;
       }
-      if (lastByte > -1) {
-        headerLineBuilder.append((char) lastByte);
+    }
+    return true;
+  }
+
+  /**
+   * @return The index of the next carriage return and line feed pair, or {@code to} if there is
+   *     none.
+   */
+  private static int findLineEnd(byte[] buffer, int from, int to) {
+    for (int i = from; i < to - 1; i++) {
+      if (buffer[i] == CARRIAGE_RETURN_BYTE && buffer[i + 1] == LINE_FEED_BYTE) {
+        return i;
       }
-      lastByte = (byte) b;
     }
-    return headerLineBuilder.toString();
+    return to;
+  }
+
+  private static String asciiString(byte[] buffer, int from, int to) {
+    return new String(buffer, from, to - from, StandardCharsets.ISO_8859_1);
   }
 }
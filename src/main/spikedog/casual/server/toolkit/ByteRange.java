@@ -0,0 +1,98 @@
+package spikedog.casual.server.toolkit;
+
+import spikedog.casual.server.Request;
+import spikedog.casual.server.util.Constants;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Inclusive range of byte positions in a file, as requested with a Range header.
+ *
+ * <p>See http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.35
+ */
+final class ByteRange {
+  // Requests for more ranges than this are served in full, rather than as many small parts.
+  private static final int MAX_RANGES = 16;
+  private static final String BYTES_UNIT = "bytes=";
+
+  final long first;
+  final long last;
+
+  ByteRange(long first, long last) {
+    this.first = first;
+    this.last = last;
+  }
+
+  long getLength() {
+    return last - first + 1;
+  }
+
+  /**
+   * @return The Content-Range value for this range of a file of {@code length} bytes.
+   */
+  String toContentRange(long length) {
+    return "bytes " + first + "-" + last + "/" + length;
+  }
+
+  /**
+   * @param length Length of the file the ranges are of.
+   * @return The satisfiable ranges requested, which is empty if there are none, or null if the
+   *     request has no Range header or it should be ignored because it is malformed.
+   */
+  static List<ByteRange> parse(Request request, long length) {
+    List<String> values = request.getHeaderValues(Constants.HEADER_RANGE);
+    if (values == null || values.isEmpty()) {
+      return null;
+    }
+    // The first range spec follows the unit, the rest have been split off on commas.
+    String first = values.get(0);
+    if (!first.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+      return null;
+    }
+    if (values.size() > MAX_RANGES) {
+      return null;
+    }
+
+    List<ByteRange> ranges = new ArrayList<ByteRange>(values.size());
+    for (int i = 0; i < values.size(); i++) {
+      String spec = (i == 0 ? first.substring(BYTES_UNIT.length()) : values.get(i)).trim();
+      if (spec.isEmpty()) {
+        continue;
+      }
+      int dash = spec.indexOf('-');
+      if (dash < 0) {
+        return null;
+      }
+      try {
+        long rangeFirst;
+        long rangeLast;
+        if (dash == 0) {
+          // Suffix range, the final N bytes.
+          long suffixLength = Long.parseLong(spec.substring(1));
+          if (suffixLength == 0) {
+            continue;
+          }
+          rangeFirst = Math.max(0, length - suffixLength);
+          rangeLast = length - 1;
+        } else {
+          rangeFirst = Long.parseLong(spec.substring(0, dash));
+          rangeLast = dash == spec.length() - 1
+              ? length - 1 : Math.min(Long.parseLong(spec.substring(dash + 1)), length - 1);
+          if (rangeLast < rangeFirst && rangeFirst < length) {
+            return null;
+          }
+        }
+        if (rangeFirst < 0) {
+          return null;
+        }
+        if (rangeFirst < length) {
+          ranges.add(new ByteRange(rangeFirst, rangeLast));
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+    return ranges;
+  }
+}
@@ -0,0 +1,109 @@
+package spikedog.casual.server.toolkit;
+
+import spikedog.casual.server.Request;
+import spikedog.casual.server.util.Constants;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Negotiates and applies the gzip and deflate content-codings.
+ *
+ * <p>See http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.3
+ */
+final class ContentCoding {
+  /**
+   * @return The coding most preferred by the request's Accept-Encoding header, or null if it
+   *     accepts neither gzip nor deflate. Gzip is chosen when both are equally preferred.
+   */
+  static String select(Request request) {
+    float gzip = getQuality(request, Constants.CONTENT_CODING_GZIP);
+    float deflate = getQuality(request, Constants.CONTENT_CODING_DEFLATE);
+    if (gzip > 0 && gzip >= deflate) {
+      return Constants.CONTENT_CODING_GZIP;
+    }
+    return deflate > 0 ? Constants.CONTENT_CODING_DEFLATE : null;
+  }
+
+  /**
+   * @return The quality value the request's Accept-Encoding header gives {@code coding}, 0 if the
+   *     coding is not acceptable.
+   */
+  static float getQuality(Request request, String coding) {
+    List<String> accepted = request.getHeaderValues(Constants.HEADER_ACCEPT_ENCODING);
+    if (accepted == null) {
+      return 0;
+    }
+
+    float wildcard = 0;
+    for (String value : accepted) {
+      int parametersStart = value.indexOf(';');
+      String name = (parametersStart >= 0 ? value.substring(0, parametersStart) : value).trim();
+      float quality = parametersStart >= 0 ? parseQuality(value.substring(parametersStart + 1)) : 1;
+      if (name.equalsIgnoreCase(coding)) {
+        return quality;
+      }
+      if (name.equals("*")) {
+        wildcard = quality;
+      }
+    }
+    return wildcard;
+  }
+
+  /**
+   * @return True for textual content types, which are worth compressing. Most other types served
+   *     are images which are already compressed.
+   */
+  static boolean isCompressible(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    int parametersStart = contentType.indexOf(';');
+    String mediaType =
+        (parametersStart >= 0 ? contentType.substring(0, parametersStart) : contentType).trim();
+    return mediaType.startsWith("text/")
+        || mediaType.equals("application/javascript")
+        || mediaType.equals("application/json")
+        || mediaType.equals("image/svg+xml");
+  }
+
+  /**
+   * @return A stream which encodes what is written to it onto {@code out}. Closing it closes
+   *     {@code out}.
+   */
+  static OutputStream encode(OutputStream out, String coding) throws IOException {
+    if (coding.equals(Constants.CONTENT_CODING_GZIP)) {
+      return new GZIPOutputStream(out, 4096);
+    }
+    if (coding.equals(Constants.CONTENT_CODING_DEFLATE)) {
+      return new DeflaterOutputStream(out);
+    }
+    throw new IllegalArgumentException("Unsupported content-coding " + coding);
+  }
+
+  static byte[] encode(byte[] content, String coding) throws IOException {
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream(content.length / 2 + 64);
+    OutputStream out = encode(encoded, coding);
+    out.write(content);
+    out.close();
+    return encoded.toByteArray();
+  }
+
+  private static float parseQuality(String parameters) {
+    for (String parameter : parameters.split(";")) {
+      int equals = parameter.indexOf('=');
+      if (equals > 0 && parameter.substring(0, equals).trim().equalsIgnoreCase("q")) {
+        try {
+          return Float.parseFloat(parameter.substring(equals + 1).trim());
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
+  }
+}
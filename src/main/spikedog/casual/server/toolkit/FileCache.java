@@ -0,0 +1,186 @@
+package spikedog.casual.server.toolkit;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds the contents of recently served files in memory so that they can be served without being
+ * opened and read again. Entries are keyed by canonical path, dropped once the file's modification
+ * time or length changes, and evicted least recently used first once the total size of cached
+ * contents exceeds a limit. Compressed variants of files are cached alongside their plain contents
+ * so that hot files need only be compressed once.
+ *
+ * <p>Thread-safe, a single instance is intended to be shared by all requests.
+ */
+public final class FileCache {
+  /** Default limit on the total size of cached contents, in bytes. */
+  public static final long DEFAULT_MAX_SIZE = 32 * 1024 * 1024;
+
+  /** Default size, in bytes, above which files are not cached. */
+  public static final long DEFAULT_MAX_FILE_SIZE = 1024 * 1024;
+
+  private final long maxSize;
+  private final long maxFileSize;
+  private final ReentrantLock lock = new ReentrantLock();
+
+  // Guarded by lock. Iterates from least to most recently used.
+  private final LinkedHashMap<String, Entry> entries =
+      new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private long size;
+
+  public FileCache() {
+    this(DEFAULT_MAX_SIZE, DEFAULT_MAX_FILE_SIZE);
+  }
+
+  /**
+   * @param maxSize Limit on the total size of cached contents, in bytes.
+   * @param maxFileSize Size, in bytes, above which files are not cached.
+   */
+  public FileCache(long maxSize, long maxFileSize) {
+    if (maxFileSize > maxSize || maxFileSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Invalid max file size " + maxFileSize);
+    }
+    this.maxSize = maxSize;
+    this.maxFileSize = maxFileSize;
+  }
+
+  /**
+   * @return The current contents of {@code file}, loading them into the cache if they are not
+   *     already held, or null if the file does not exist or is too large to cache. The returned
+   *     array must not be modified.
+   */
+  public byte[] getContent(File file) throws IOException {
+    return getContent(file, null);
+  }
+
+  /**
+   * @param coding Content-coding to apply, "gzip" or "deflate", or null for the plain contents.
+   * @return The contents of {@code file} encoded with {@code coding}, loading them into the cache
+   *     if they are not already held, or null if the file does not exist or is too large to cache.
+   *     The returned array must not be modified.
+   */
+  public byte[] getContent(File file, String coding) throws IOException {
+    long lastModified = file.lastModified();
+    long length = file.length();
+    if (lastModified == 0 || length > maxFileSize || !file.isFile()) {
+      return null;
+    }
+    return getContent(file, file.getCanonicalPath(), length, lastModified, coding);
+  }
+
+  /**
+   * As {@link #getContent(File, String)}, but trusting the metadata held by {@code handle} rather
+   * than checking the file again.
+   */
+  byte[] getContent(FileHandleCache.Handle handle, String coding) throws IOException {
+    long lastModified = handle.getLastModified();
+    long length = handle.getLength();
+    if (lastModified == 0 || length > maxFileSize || !handle.exists()) {
+      return null;
+    }
+    return getContent(handle.getFile(), handle.getPath(), length, lastModified, coding);
+  }
+
+  private byte[] getContent(File file, String path, long length, long lastModified, String coding)
+      throws IOException {
+    String key = coding != null ? path + '\0' + coding : path;
+    lock.lock();
+    try {
+      Entry entry = entries.get(key);
+      if (entry != null && entry.lastModified == lastModified && entry.fileLength == length) {
+        return entry.content;
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    // Read outside the lock so that loading one file does not hold up requests for others.
+    byte[] content = readFile(file, (int) length);
+    if (coding != null) {
+      content = ContentCoding.encode(content, coding);
+    }
+    if (file.lastModified() != lastModified) {
+      // Changed while being read, serve what was read but don't keep it.
+      return content;
+    }
+
+    lock.lock();
+    try {
+      Entry previous = entries.put(key, new Entry(content, lastModified, length));
+      if (previous != null) {
+        size -= previous.content.length;
+      }
+      size += content.length;
+
+      Iterator<Entry> iterator = entries.values().iterator();
+      while (size > maxSize && iterator.hasNext()) {
+        size -= iterator.next().content.length;
+        iterator.remove();
+      }
+    } finally {
+      lock.unlock();
+    }
+    return content;
+  }
+
+  /**
+   * @return The total size of cached contents, in bytes.
+   */
+  public long getSize() {
+    lock.lock();
+    try {
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Drops all cached contents.
+   */
+  public void clear() {
+    lock.lock();
+    try {
+      entries.clear();
+      size = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static byte[] readFile(File file, int length) throws IOException {
+    byte[] content = new byte[length];
+    FileInputStream in = new FileInputStream(file);
+    try {
+      int read = 0;
+      while (read < length) {
+        int n = in.read(content, read, length - read);
+        if (n < 0) {
+          throw new EOFException("File truncated while being read " + file.getPath());
+        }
+        read += n;
+      }
+    } finally {
+      in.close();
+    }
+    return content;
+  }
+
+  private static final class Entry {
+    final byte[] content;
+    final long lastModified;
+    // Length of the file, which differs from that of the content if it is compressed.
+    final long fileLength;
+
+    Entry(byte[] content, long lastModified, long fileLength) {
+      this.content = content;
+      this.lastModified = lastModified;
+      this.fileLength = fileLength;
+    }
+  }
+}
@@ -0,0 +1,355 @@
+package spikedog.casual.server.toolkit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps files served recently open, along with their metadata, so that serving them again needs
+ * no calls to stat or open them. Entries are looked up by absolute path, which needs no file system
+ * calls, and carry the canonical path by which {@link FileCache} holds the file's contents,
+ * resolved along with the metadata. They are trusted for a time to live after which the file's
+ * metadata is checked again, and the least recently used are evicted once more than a limit are
+ * held. Handles are reference counted so that concurrent requests for a file
+ * share one channel, which is closed once it has been evicted and every request has released it.
+ *
+ * <p>Optionally, files of at least a given size are mapped into memory once and served to every
+ * request from the mapping, so concurrent downloads share the page cache without reading or
+ * copying the file per request.
+ *
+ * <p>Within the time to live, changes to a file may go unnoticed, so files which are replaced
+ * should be replaced by renaming a new file into place rather than rewriting them. A mapped file
+ * must never be truncated while in use, since reading past its new end crashes the reader.
+ *
+ * <p>Thread-safe, a single instance is intended to be shared by all requests.
+ */
+public final class FileHandleCache {
+  /** Default limit on the number of files held. */
+  public static final int DEFAULT_MAX_HANDLES = 256;
+
+  /** Default time, in milliseconds, for which a file's metadata is trusted without checking. */
+  public static final long DEFAULT_TTL_MILLIS = 1000;
+
+  // Largest region of a file mapped by a single buffer, in bytes. Buffers are indexed by int.
+  private static final long MAP_REGION_SIZE = 1L << 30;
+
+  private final int maxHandles;
+  private final long ttlNanos;
+  private final long mapMinSize;
+  private final ReentrantLock lock = new ReentrantLock();
+
+  // Guarded by lock. Iterates from least to most recently used.
+  private final LinkedHashMap<String, Handle> handles =
+      new LinkedHashMap<String, Handle>(16, 0.75f, true);
+
+  public FileHandleCache() {
+    this(DEFAULT_MAX_HANDLES, DEFAULT_TTL_MILLIS);
+  }
+
+  /**
+   * @param maxHandles Limit on the number of files held.
+   * @param ttlMillis Time, in milliseconds, for which a file's metadata is trusted without
+   *     checking.
+   */
+  public FileHandleCache(int maxHandles, long ttlMillis) {
+    this(maxHandles, ttlMillis, Long.MAX_VALUE);
+  }
+
+  /**
+   * @param maxHandles Limit on the number of files held.
+   * @param ttlMillis Time, in milliseconds, for which a file's metadata is trusted without
+   *     checking.
+   * @param mapMinSize Size, in bytes, from which files are served from a memory mapping.
+   */
+  public FileHandleCache(int maxHandles, long ttlMillis, long mapMinSize) {
+    if (maxHandles < 1) {
+      throw new IllegalArgumentException("Invalid max handles " + maxHandles);
+    }
+    if (mapMinSize < 1) {
+      throw new IllegalArgumentException("Invalid map min size " + mapMinSize);
+    }
+    this.maxHandles = maxHandles;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    this.mapMinSize = mapMinSize;
+  }
+
+  /**
+   * @return The number of files held.
+   */
+  public int size() {
+    lock.lock();
+    try {
+      return handles.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Drops all held files. Channels still in use are closed once released.
+   */
+  public void clear() {
+    lock.lock();
+    try {
+      for (Handle handle : handles.values()) {
+        evict(handle);
+      }
+      handles.clear();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return A handle for {@code file}, which must be {@link Handle#release() released} once no
+   *     longer needed. Files which do not exist are held too, so that repeated lookups are cheap.
+   */
+  Handle acquire(File file) throws IOException {
+    String key = file.getAbsolutePath();
+    long now = System.nanoTime();
+    Handle previous;
+    lock.lock();
+    try {
+      previous = handles.get(key);
+      if (previous != null && now - previous.checkedAt < ttlNanos) {
+        previous.references++;
+        return previous;
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    // Check the file outside the lock so that a slow disk does not hold up other requests.
+    Handle current = new Handle(this, file, now);
+    lock.lock();
+    try {
+      previous = handles.get(key);
+      if (previous != null && previous.isSameFileAs(current)) {
+        // Unchanged, keep the open channel.
+        previous.checkedAt = now;
+        previous.references++;
+        return previous;
+      }
+      if (previous != null) {
+        evict(previous);
+      }
+      handles.put(key, current);
+      current.references++;
+
+      Iterator<Handle> iterator = handles.values().iterator();
+      while (handles.size() > maxHandles && iterator.hasNext()) {
+        evict(iterator.next());
+        iterator.remove();
+      }
+      return current;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return A handle for {@code file} which is not cached, and whose channel is closed once it is
+   *     released.
+   */
+  static Handle uncached(File file) throws IOException {
+    Handle handle = new Handle(null, file, System.nanoTime());
+    handle.references = 1;
+    handle.evicted = true;
+    return handle;
+  }
+
+  // Guarded by lock.
+  private static void evict(Handle handle) {
+    handle.evicted = true;
+    if (handle.references == 0) {
+      handle.closeChannel();
+    }
+  }
+
+  /**
+   * A file's metadata, as it was when last checked, and its channel once opened.
+   */
+  static final class Handle {
+    private final FileHandleCache cache;
+    private final File file;
+    private final String path;
+    private final boolean exists;
+    private final long length;
+    private final long lastModified;
+    private final String contentType;
+
+    // Guarded by the cache's lock, or only used by one request if not cached.
+    private long checkedAt;
+    private int references;
+    private boolean evicted;
+
+    // Held while opening, mapping or closing the file. A lock rather than synchronized, since
+    // opening and mapping block on disk and must not pin a virtual thread to its carrier.
+    private final ReentrantLock channelLock = new ReentrantLock();
+
+    // Guarded by channelLock.
+    private FileChannel channel;
+    private boolean closed;
+    // Mapping of the whole file, one buffer per region, once mapped.
+    private ByteBuffer[] regions;
+
+    private Handle(FileHandleCache cache, File file, long checkedAt) throws IOException {
+      this.cache = cache;
+      this.file = file;
+      this.path = file.getCanonicalPath();
+      // All of the metadata from a single stat.
+      BasicFileAttributes attributes;
+      try {
+        attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+      } catch (IOException e) {
+        attributes = null;
+      }
+      this.exists = attributes != null && attributes.isRegularFile();
+      this.length = exists ? attributes.size() : 0;
+      this.lastModified = exists ? attributes.lastModifiedTime().toMillis() : 0;
+      this.contentType = exists ? FileServeHelper.getContentType(file) : null;
+      this.checkedAt = checkedAt;
+    }
+
+    File getFile() {
+      return file;
+    }
+
+    /**
+     * @return The file's canonical path, as resolved when the handle was created.
+     */
+    String getPath() {
+      return path;
+    }
+
+    boolean exists() {
+      return exists;
+    }
+
+    long getLength() {
+      return length;
+    }
+
+    long getLastModified() {
+      return lastModified;
+    }
+
+    /**
+     * @return The MIME type for the file's extension, or null if it is not known.
+     */
+    String getContentType() {
+      return contentType;
+    }
+
+    /**
+     * @return The file's channel, opened on first use. It is shared, so must only be used for
+     *     positioned reads and transfers, and not closed.
+     */
+    FileChannel getChannel() throws IOException {
+      channelLock.lock();
+      try {
+        if (closed) {
+          throw new IllegalStateException("Handle has been released");
+        }
+        if (channel == null) {
+          channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        return channel;
+      } finally {
+        channelLock.unlock();
+      }
+    }
+
+    /**
+     * Gives up this use of the handle, closing its channel if it is no longer cached or in use.
+     */
+    void release() {
+      if (cache == null) {
+        closeChannel();
+        return;
+      }
+      cache.lock.lock();
+      try {
+        references--;
+        if (evicted && references == 0) {
+          closeChannel();
+        }
+      } finally {
+        cache.lock.unlock();
+      }
+    }
+
+    /**
+     * @return Read-only buffers over a part of the file, from its memory mapping, or null if the
+     *     file is not to be mapped. The file is mapped on first use and the mapping shared by all
+     *     requests.
+     */
+    ByteBuffer[] getMapped(long position, long count) throws IOException {
+      channelLock.lock();
+      try {
+        if (cache == null || length < cache.mapMinSize) {
+          return null;
+        }
+        if (regions == null) {
+          FileChannel file = getChannel();
+          regions = new ByteBuffer[(int) ((length + MAP_REGION_SIZE - 1) / MAP_REGION_SIZE)];
+          for (int i = 0; i < regions.length; i++) {
+            long regionStart = i * MAP_REGION_SIZE;
+            regions[i] = file.map(
+                FileChannel.MapMode.READ_ONLY,
+                regionStart,
+                Math.min(MAP_REGION_SIZE, length - regionStart));
+          }
+        }
+
+        int first = (int) (position / MAP_REGION_SIZE);
+        int last = (int) ((position + count - 1) / MAP_REGION_SIZE);
+        ByteBuffer[] slices = new ByteBuffer[Math.max(0, last - first + 1)];
+        long end = position + count;
+        for (int i = 0; i < slices.length; i++) {
+          long regionStart = (first + i) * MAP_REGION_SIZE;
+          ByteBuffer slice = regions[first + i].duplicate();
+          slice.position((int) (Math.max(position, regionStart) - regionStart));
+          slice.limit((int) (Math.min(end, regionStart + slice.capacity()) - regionStart));
+          slices[i] = slice.slice();
+        }
+        return slices;
+      } finally {
+        channelLock.unlock();
+      }
+    }
+
+    private boolean isSameFileAs(Handle other) {
+      return exists == other.exists
+          && length == other.length
+          && lastModified == other.lastModified;
+    }
+
+    private void closeChannel() {
+      channelLock.lock();
+      try {
+        closed = true;
+        if (channel != null) {
+          try {
+            channel.close();
+          } catch (IOException e) {
+            // Only reading, so nothing is lost.
+          }
+          channel = null;
+        }
+        // Mappings stay valid until collected, so may still be being sent.
+        regions = null;
+      } finally {
+        channelLock.unlock();
+      }
+    }
+  }
+}
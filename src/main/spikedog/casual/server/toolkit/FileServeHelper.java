@@ -1,19 +1,43 @@
 package spikedog.casual.server.toolkit;
 
+import spikedog.casual.server.Request;
 import spikedog.casual.server.Response;
 import spikedog.casual.server.StatusLine;
+import spikedog.casual.server.internal.BufferPool;
 import spikedog.casual.server.util.Constants;
+import spikedog.casual.server.util.HttpDates;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Assists in serving files as responses.
+ *
+ * <p>Given the request, textual files are compressed with gzip or deflate when the client accepts
+ * them, and a precompressed sibling such as {@code app.js.gz} is served in place of the file when
+ * one exists and is no older. Conditional requests are answered from file metadata, and Range
+ * requests with 206 responses which read only the requested parts of the file.
+ *
+ * <p>Given a {@link FileHandleCache}, files are served from already open channels, or from memory
+ * mappings for large files if the cache is configured to map them.
  */
 public final class FileServeHelper {
+  // Files smaller than this, in bytes, are not worth compressing.
+  private static final int MIN_COMPRESS_SIZE = 256;
+  private static final String PRECOMPRESSED_SUFFIX = ".gz";
+  private static final int COPY_BUFFER_SIZE = 8192;
+
   private static final Map<String, String> MIME_TYPE_MAP = new HashMap<String, String>();
   static {
     MIME_TYPE_MAP.put("css", "text/css");
@@ -22,53 +46,500 @@ public final class FileServeHelper {
     MIME_TYPE_MAP.put("jpeg", "image/jpeg");
     MIME_TYPE_MAP.put("jpg", "image/jpeg");
     MIME_TYPE_MAP.put("js", "text/javascript; charset=UTF-8");
+    MIME_TYPE_MAP.put("json", "application/json");
     MIME_TYPE_MAP.put("png", "image/png");
+    MIME_TYPE_MAP.put("svg", "image/svg+xml");
     MIME_TYPE_MAP.put("text", "text/plain; charset=UTF-8");
   }
 
   public static void serveFile(File file, Response response) throws IOException {
-    String contentType = null;
-    String path = file.getPath();
-    int extensionSplit = path.lastIndexOf('.');
-    if (extensionSplit > 0 && extensionSplit < path.length() - 1) {
-      String extension = path.substring(path.lastIndexOf('.') + 1);
-      if (MIME_TYPE_MAP.containsKey(extension.toLowerCase())) {
-        contentType = MIME_TYPE_MAP.get(extension);
-      }
-    }
-    serveFile(file, response, contentType);
+    serveFile(file, response, getContentType(file), null);
   }
 
   public static void serveFile(File file, Response response, String contentType)
       throws IOException {
-    if (!file.isFile() || !file.exists()) {
+    serveFile(file, response, contentType, null);
+  }
+
+  /**
+   * Serves a file, from memory if {@code cache} holds its current contents.
+   */
+  public static void serveFile(File file, Response response, FileCache cache)
+      throws IOException {
+    serveFile(file, response, getContentType(file), cache);
+  }
+
+  /**
+   * Serves a file, from memory if {@code cache} holds its current contents.
+   *
+   * @param cache May be null, in which case the file is always read from disk.
+   */
+  public static void serveFile(File file, Response response, String contentType, FileCache cache)
+      throws IOException {
+    serveFile(file, null, response, contentType, cache);
+  }
+
+  /**
+   * Serves a file, compressed if {@code request} accepts a content-coding for it, and from memory
+   * if {@code cache} holds its current contents.
+   */
+  public static void serveFile(File file, Request request, Response response, FileCache cache)
+      throws IOException {
+    serveFile(file, request, response, getContentType(file), cache);
+  }
+
+  /**
+   * Serves a file, compressed if {@code request} accepts a content-coding for it, and from memory
+   * if {@code cache} holds its current contents.
+   *
+   * @param request May be null, in which case the file is served uncompressed.
+   * @param cache May be null, in which case the file is always read from disk and compressed as it
+   *     is sent.
+   */
+  public static void serveFile(
+      File file, Request request, Response response, String contentType, FileCache cache)
+      throws IOException {
+    serveFile(file, request, response, contentType, cache, null);
+  }
+
+  /**
+   * Serves a file with the content type for its extension, which is held by {@code handles} along
+   * with the file's other metadata.
+   */
+  public static void serveFile(
+      File file, Request request, Response response, FileCache cache, FileHandleCache handles)
+      throws IOException {
+    FileHandleCache.Handle handle =
+        handles != null ? handles.acquire(file) : FileHandleCache.uncached(file);
+    serveHandle(handle, request, response, handle.getContentType(), cache, handles);
+  }
+
+  /**
+   * Serves a file, compressed if {@code request} accepts a content-coding for it, from memory if
+   * {@code cache} holds its current contents, and otherwise from an already open channel if
+   * {@code handles} holds one.
+   *
+   * @param request May be null, in which case the file is served uncompressed.
+   * @param cache May be null, in which case the file is always read from disk and compressed as it
+   *     is sent.
+   * @param handles May be null, in which case the file is checked and opened for each request.
+   */
+  public static void serveFile(
+      File file,
+      Request request,
+      Response response,
+      String contentType,
+      FileCache cache,
+      FileHandleCache handles)
+      throws IOException {
+    FileHandleCache.Handle handle =
+        handles != null ? handles.acquire(file) : FileHandleCache.uncached(file);
+    serveHandle(handle, request, response, contentType, cache, handles);
+  }
+
+  /**
+   * Serves the file a handle is for, releasing the handle once done.
+   */
+  private static void serveHandle(
+      FileHandleCache.Handle handle,
+      Request request,
+      Response response,
+      String contentType,
+      FileCache cache,
+      FileHandleCache handles)
+      throws IOException {
+    File file = handle.getFile();
+    if (!handle.exists()) {
+      handle.release();
       System.err.println("Attempt to serve file at " + file.getAbsolutePath() + ". Not found.");
-      response.setStatusLine(new StatusLine(Constants.VERISON_HTTP_1_1, 404, "No such resource"));
+      response.setStatusLine(StatusLine.NOT_FOUND);
       response.flush();
       return;
     }
 
-    FileInputStream fileInputStream = null;
+    // The file itself, or a precompressed sibling sent in its place.
+    FileHandleCache.Handle source = handle;
+    String streamCoding = null;
     try {
-      fileInputStream = new FileInputStream(file);
-      long contentLength = fileInputStream.getChannel().size();
+      // Work out what to send, the file itself, a precompressed sibling or a compressed variant.
+      String coding = null;
+      boolean vary = false;
+      String entityTag = null;
+      boolean acceptRanges = false;
+      List<ByteRange> ranges = null;
+      if (request != null) {
+        boolean compressible = ContentCoding.isCompressible(contentType);
+        // The sibling is looked for whatever the request accepts, since a response for a file
+        // with one depends on Accept-Encoding even when it is not sent.
+        File precompressedFile = new File(file.getPath() + PRECOMPRESSED_SUFFIX);
+        FileHandleCache.Handle precompressed = handles != null
+            ? handles.acquire(precompressedFile) : FileHandleCache.uncached(precompressedFile);
+        boolean hasPrecompressed = precompressed.exists()
+            && precompressed.getLastModified() >= handle.getLastModified();
+        if (hasPrecompressed
+            && ContentCoding.getQuality(request, Constants.CONTENT_CODING_GZIP) > 0) {
+          source = precompressed;
+          coding = Constants.CONTENT_CODING_GZIP;
+        } else {
+          precompressed.release();
+        }
+        if (source == handle
+            && compressible
+            && handle.getLength() >= MIN_COMPRESS_SIZE
+            && request.getHeaderValues(Constants.HEADER_RANGE) == null) {
+          // Ranges can only be served from a file, so range requests are not compressed.
+          coding = ContentCoding.select(request);
+        }
+        vary = compressible || hasPrecompressed;
 
-      if (contentType != null) {
-        response.addHeader(Constants.HEADER_CONTENT_TYPE, contentType);
+        // Validators are taken from file metadata, so revalidation never opens the file.
+        entityTag = getEntityTag(source, coding);
+        if (isNotModified(request, entityTag, source.getLastModified())) {
+          addEntityHeaders(response, contentType, vary, entityTag, source);
+          response.setStatusLine(StatusLine.NOT_MODIFIED);
+          return;
+        }
+
+        acceptRanges = coding == null || source != handle;
+        if (acceptRanges && isRangeCurrent(request, entityTag, source.getLastModified())) {
+          ranges = ByteRange.parse(request, source.getLength());
+        }
       }
+      String cacheCoding = source == handle ? coding : null;
 
-      response.addHeader(Constants.HEADER_CONTENT_LENGTH, "" + contentLength);
-      response.setBody(fileInputStream);
-      response.setStatusLine(new StatusLine(Constants.VERISON_HTTP_1_1, 200, "OK"));
+      // Whatever the body is read from is opened before any headers are added, so that a file
+      // which can no longer be read is answered with a bare 500.
+      long length = source.getLength();
+      byte[] cachedContent = null;
+      ByteBuffer[] mapped = null;
+      FileChannel channel = null;
+      if (ranges != null) {
+        if (ranges.size() == 1) {
+          mapped = source.getMapped(ranges.get(0).first, ranges.get(0).getLength());
+        }
+        if (mapped == null && !ranges.isEmpty()) {
+          channel = source.getChannel();
+        }
+      } else {
+        cachedContent = cache != null ? cache.getContent(source, cacheCoding) : null;
+        if (cachedContent == null) {
+          mapped = cacheCoding == null ? source.getMapped(0, length) : null;
+          channel = mapped == null ? source.getChannel() : null;
+        }
+      }
+
+      addEntityHeaders(response, contentType, vary, entityTag, source);
+      if (acceptRanges) {
+        response.addHeader(Constants.HEADER_ACCEPT_RANGES, "bytes");
+      }
+      if (coding != null) {
+        response.addHeader(Constants.HEADER_CONTENT_ENCODING, coding);
+      }
+
+      if (ranges != null) {
+        setRangesBody(length, ranges, contentType, mapped, channel, response);
+        return;
+      }
+      if (cachedContent != null) {
+        response.addHeader(Constants.HEADER_CONTENT_LENGTH, "" + cachedContent.length);
+        response.setBody(new ByteArrayInputStream(cachedContent));
+      } else if (cacheCoding != null) {
+        // Compressed length is not known up front, so the body is compressed as it is sent.
+        streamCoding = cacheCoding;
+      } else {
+        response.addHeader(Constants.HEADER_CONTENT_LENGTH, "" + length);
+        setRegionBody(mapped, channel, 0, length, response);
+      }
+      response.setStatusLine(StatusLine.OK);
     } catch (Exception e) {
       e.printStackTrace();
-      response.setStatusLine(new StatusLine(Constants.VERISON_HTTP_1_1, 500, e.getMessage()));
+      streamCoding = null;
+      response.clearAllHeaders();
+      response.setStatusLine(StatusLine.INTERNAL_SERVER_ERROR);
       response.setBody(null);
     } finally {
-      response.flush();
-      if (fileInputStream != null) {
-        fileInputStream.close();
+      if (streamCoding == null) {
+        try {
+          response.flush();
+        } finally {
+          releaseAll(handle, source);
+        }
+      }
+    }
+
+    if (streamCoding != null) {
+      try {
+        writeEncoded(source, response, streamCoding);
+      } finally {
+        releaseAll(handle, source);
+      }
+    }
+  }
+
+  /**
+   * Adds the headers describing the representation, which are sent with 304 responses too.
+   *
+   * @param entityTag Null if there was no request, in which case no validators are added.
+   */
+  private static void addEntityHeaders(
+      Response response, String contentType, boolean vary, String entityTag,
+      FileHandleCache.Handle source) {
+    if (contentType != null) {
+      response.addHeader(Constants.HEADER_CONTENT_TYPE, contentType);
+    }
+    if (vary) {
+      response.addHeader(Constants.HEADER_VARY, Constants.HEADER_ACCEPT_ENCODING);
+    }
+    if (entityTag != null) {
+      response.addHeader(Constants.HEADER_ETAG, entityTag);
+      response.addHeader(
+          Constants.HEADER_LAST_MODIFIED, HttpDates.format(source.getLastModified()));
+    }
+  }
+
+  private static void releaseAll(FileHandleCache.Handle handle, FileHandleCache.Handle source) {
+    handle.release();
+    if (source != handle) {
+      source.release();
+    }
+  }
+
+  /**
+   * Sets the requested ranges of a file as the body of a 206 response, or responds 416 if none of
+   * them are satisfiable. Several ranges are sent as a multipart/byteranges body.
+   *
+   * @param mapped The mapping of a single range, or null to read from {@code channel}.
+   */
+  private static void setRangesBody(
+      long length, List<ByteRange> ranges, String contentType, ByteBuffer[] mapped,
+      FileChannel channel, Response response) {
+    if (ranges.isEmpty()) {
+      response.setStatusLine(StatusLine.RANGE_NOT_SATISFIABLE);
+      response.addHeader(Constants.HEADER_CONTENT_RANGE, "bytes */" + length);
+      return;
+    }
+
+    response.setStatusLine(StatusLine.PARTIAL_CONTENT);
+    if (ranges.size() == 1) {
+      ByteRange range = ranges.get(0);
+      response.addHeader(Constants.HEADER_CONTENT_RANGE, range.toContentRange(length));
+      response.addHeader(Constants.HEADER_CONTENT_LENGTH, "" + range.getLength());
+      setRegionBody(mapped, channel, range.first, range.getLength(), response);
+      return;
+    }
+
+    String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    byte[][] partHeads = new byte[ranges.size() + 1][];
+    long contentLength = 0;
+    for (int i = 0; i < ranges.size(); i++) {
+      ByteRange range = ranges.get(i);
+      StringBuilder partHead = new StringBuilder("\r\n--").append(boundary).append("\r\n");
+      if (contentType != null) {
+        partHead.append(Constants.HEADER_CONTENT_TYPE).append(": ").append(contentType)
+            .append("\r\n");
+      }
+      partHead.append(Constants.HEADER_CONTENT_RANGE).append(": ")
+          .append(range.toContentRange(length)).append("\r\n\r\n");
+      partHeads[i] = partHead.toString().getBytes(StandardCharsets.ISO_8859_1);
+      contentLength += partHeads[i].length + range.getLength();
+    }
+    partHeads[ranges.size()] =
+        ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    contentLength += partHeads[ranges.size()].length;
+
+    response.setHeader(
+        Constants.HEADER_CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+    response.addHeader(Constants.HEADER_CONTENT_LENGTH, "" + contentLength);
+    response.setBody(new RangesInputStream(channel, ranges, partHeads));
+  }
+
+  /**
+   * Sets a region of a file as the body, from the file's memory mapping if it has one.
+   */
+  private static void setRegionBody(
+      ByteBuffer[] mapped, FileChannel channel, long position, long count, Response response) {
+    if (mapped != null) {
+      response.setBodyBuffers(mapped);
+    } else {
+      response.setBody(channel, position, count);
+    }
+  }
+
+  private static void writeEncoded(
+      FileHandleCache.Handle handle, Response response, String coding) throws IOException {
+    FileChannel file = handle.getChannel();
+    OutputStream out = ContentCoding.encode(response.getOutputStream(), coding);
+    byte[] buffer = BufferPool.getDefault().acquire(COPY_BUFFER_SIZE);
+    try {
+      long position = 0;
+      long length = handle.getLength();
+      while (position < length) {
+        int count = (int) Math.min(buffer.length, length - position);
+        int n = file.read(ByteBuffer.wrap(buffer, 0, count), position);
+        if (n < 0) {
+          throw new EOFException("File truncated while being sent");
+        }
+        out.write(buffer, 0, n);
+        position += n;
+      }
+    } finally {
+      BufferPool.getDefault().release(buffer);
+    }
+    out.close();
+  }
+
+  /**
+   * @return A strong entity tag derived from the file's length and modification time, and the
+   *     content-coding applied to it.
+   */
+  private static String getEntityTag(FileHandleCache.Handle file, String coding) {
+    StringBuilder entityTag = new StringBuilder("\"")
+        .append(Long.toHexString(file.getLength()))
+        .append('-')
+        .append(Long.toHexString(file.getLastModified()));
+    if (coding != null) {
+      entityTag.append('-').append(coding);
+    }
+    return entityTag.append('"').toString();
+  }
+
+  /**
+   * @return True if the request's conditional headers show that the client already holds the
+   *     current representation. If-None-Match takes precedence over If-Modified-Since.
+   *
+   * <p>See http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.26
+   */
+  private static boolean isNotModified(Request request, String entityTag, long lastModified) {
+    List<String> ifNoneMatch = request.getHeaderValues(Constants.HEADER_IF_NONE_MATCH);
+    if (ifNoneMatch != null) {
+      for (String value : ifNoneMatch) {
+        String candidate = value.trim();
+        if (candidate.startsWith("W/")) {
+          // Weak comparison is allowed for GET.
+          candidate = candidate.substring(2);
+        }
+        if (candidate.equals("*") || candidate.equals(entityTag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    // Dates contain a comma, so the value may have been split into several.
+    List<String> ifModifiedSince = request.getHeaderValues(Constants.HEADER_IF_MODIFIED_SINCE);
+    if (ifModifiedSince == null) {
+      return false;
+    }
+    long since = HttpDates.parse(joinValues(ifModifiedSince));
+    // HTTP dates have a resolution of seconds.
+    return since >= 0 && lastModified / 1000 <= since / 1000;
+  }
+
+  /**
+   * @return False if the request's If-Range header shows that the client holds a different
+   *     version of the file than the current one, in which case the whole file should be sent.
+   */
+  private static boolean isRangeCurrent(Request request, String entityTag, long lastModified) {
+    List<String> ifRange = request.getHeaderValues(Constants.HEADER_IF_RANGE);
+    if (ifRange == null || ifRange.isEmpty()) {
+      return true;
+    }
+    String validator = ifRange.get(0);
+    if (validator.startsWith("\"") || validator.startsWith("W/")) {
+      // Only a strong comparison will do, so weak tags never match.
+      return validator.equals(entityTag);
+    }
+    long date = HttpDates.parse(joinValues(ifRange));
+    return date >= 0 && lastModified / 1000 == date / 1000;
+  }
+
+  /**
+   * @return Header values joined back together, in case a date was split on its comma by whoever
+   *     built the request.
+   */
+  private static String joinValues(List<String> values) {
+    StringBuilder joined = new StringBuilder();
+    for (String value : values) {
+      if (joined.length() > 0) {
+        joined.append(", ");
+      }
+      joined.append(value);
+    }
+    return joined.toString();
+  }
+
+  /**
+   * @return The MIME type for the file's extension, or null if it is not known.
+   */
+  static String getContentType(File file) {
+    String path = file.getPath();
+    int extensionSplit = path.lastIndexOf('.');
+    if (extensionSplit > 0 && extensionSplit < path.length() - 1) {
+      String extension = path.substring(extensionSplit + 1).toLowerCase();
+      return MIME_TYPE_MAP.get(extension);
+    }
+    return null;
+  }
+
+  /**
+   * Body of a multipart/byteranges response, which reads each range from the file with positioned
+   * reads as it is sent.
+   */
+  private static final class RangesInputStream extends InputStream {
+    private final FileChannel file;
+    private final List<ByteRange> ranges;
+    // Part heads, where the head at index i precedes range i and the last closes the body.
+    private final byte[][] partHeads;
+
+    private int index;
+    private int headPosition;
+    private long rangePosition = -1;
+
+    RangesInputStream(FileChannel file, List<ByteRange> ranges, byte[][] partHeads) {
+      this.file = file;
+      this.ranges = ranges;
+      this.partHeads = partHeads;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int n = read(b, 0, 1);
+      return n < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      while (index < partHeads.length) {
+        if (rangePosition < 0) {
+          byte[] partHead = partHeads[index];
+          if (headPosition < partHead.length) {
+            int n = Math.min(len, partHead.length - headPosition);
+            System.arraycopy(partHead, headPosition, b, off, n);
+            headPosition += n;
+            return n;
+          }
+          if (index == ranges.size()) {
+            break;
+          }
+          rangePosition = ranges.get(index).first;
+        }
+
+        ByteRange range = ranges.get(index);
+        if (rangePosition <= range.last) {
+          int count = (int) Math.min(len, range.last - rangePosition + 1);
+          int n = file.read(ByteBuffer.wrap(b, off, count), rangePosition);
+          if (n < 0) {
+            throw new EOFException("File truncated while sending range");
+          }
+          rangePosition += n;
+          return n;
+        }
+        index++;
+        headPosition = 0;
+        rangePosition = -1;
       }
+      return -1;
     }
   }
 }
@@ -0,0 +1,490 @@
+package spikedog.casual.server.toolkit;
+
+import spikedog.casual.server.Request;
+import spikedog.casual.server.util.Constants;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses a multipart/form-data request body incrementally, using a fixed size buffer however large
+ * the parts are.
+ *
+ * <p>Parts may be read one at a time as streams straight from the body with {@link #nextPart()},
+ * or all collected with {@link #readAllParts(long, File)}, which keeps small parts in memory and
+ * spills larger ones to temporary files.
+ *
+ * <p>See https://www.ietf.org/rfc/rfc7578.txt
+ *
+ * <p><em>Not</em> thread-safe.
+ */
+public final class MultipartParser {
+  /** Default size, in bytes, above which {@link #readAllParts} writes a part to disk. */
+  public static final long DEFAULT_SPILL_THRESHOLD = 64 * 1024;
+
+  private static final String MULTIPART_FORM_DATA = "multipart/form-data";
+  private static final int BUFFER_SIZE = 8192;
+  // Longest accepted part head, in bytes.
+  private static final int MAX_PART_HEAD_SIZE = 8192;
+  private static final int COPY_BUFFER_SIZE = 8192;
+
+  private final InputStream in;
+  // CRLF, two dashes and the boundary. The first delimiter is not preceded by CRLF, so the buffer
+  // starts out holding a CRLF to let it be found like any other.
+  private final byte[] delimiter;
+  private final byte[] buffer;
+  // Buffered bytes are those in [position, limit).
+  private int position;
+  private int limit = 2;
+  private boolean inputEnded;
+
+  private PartInputStream currentPart;
+  private boolean finished;
+
+  /**
+   * @param body Multipart body, which is read no further than its closing delimiter.
+   * @param boundary Boundary parameter of the body's Content-Type.
+   */
+  public MultipartParser(InputStream body, String boundary) {
+    if (boundary.isEmpty() || boundary.length() > 70) {
+      throw new IllegalArgumentException("Invalid multipart boundary " + boundary);
+    }
+    this.in = body;
+    this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+    this.buffer = new byte[Math.max(BUFFER_SIZE, delimiter.length * 2)];
+    buffer[0] = '\r';
+    buffer[1] = '\n';
+  }
+
+  /**
+   * Creates a parser for the body of a multipart/form-data request.
+   *
+   * @throws IllegalArgumentException If the request is not multipart/form-data or has no boundary.
+   */
+  public static MultipartParser forRequest(Request request) {
+    List<String> contentType = request.getHeaderValues(Constants.HEADER_CONTENT_TYPE);
+    if (contentType == null) {
+      throw new IllegalArgumentException("Request has no Content-Type");
+    }
+
+    // Received Content-Type values are kept whole, but values set on a Request.Builder may have
+    // been split on commas, which may appear in a boundary.
+    StringBuilder value = new StringBuilder();
+    for (String part : contentType) {
+      if (value.length() > 0) {
+        value.append(',');
+      }
+      value.append(part);
+    }
+    String type = value.toString();
+    int parametersStart = type.indexOf(';');
+    String mediaType = parametersStart >= 0 ? type.substring(0, parametersStart) : type;
+    if (!mediaType.trim().equalsIgnoreCase(MULTIPART_FORM_DATA)) {
+      throw new IllegalArgumentException("Request is not " + MULTIPART_FORM_DATA + ": " + type);
+    }
+    String boundary = parametersStart >= 0
+        ? parseParameters(type.substring(parametersStart + 1)).get("boundary") : null;
+    if (boundary == null) {
+      throw new IllegalArgumentException("No boundary in Content-Type " + type);
+    }
+    return new MultipartParser(request.getBody(), boundary);
+  }
+
+  /**
+   * Advances to the next part, skipping whatever is left of the current one. The part's content
+   * is read straight from the body, so must be read before the following part is requested.
+   *
+   * @return The next part, or null if there are no more.
+   * @throws IOException If the body is malformed or ends before the closing delimiter.
+   */
+  public Part nextPart() throws IOException {
+    if (finished) {
+      return null;
+    }
+
+    // Skip the preamble, or the remainder of the current part.
+    PartInputStream skipped = currentPart != null ? currentPart : new PartInputStream();
+    byte[] discard = new byte[COPY_BUFFER_SIZE];
+    while (skipped.read(discard, 0, discard.length) >= 0) {
+      // Discard.
+    }
+    currentPart = null;
+
+    // The delimiter is followed by two dashes if it closes the body, otherwise by the line break
+    // which ends it, perhaps after some whitespace.
+    ensureBuffered(2);
+    if (limit - position >= 2 && buffer[position] == '-' && buffer[position + 1] == '-') {
+      finished = true;
+      return null;
+    }
+    String delimiterLine = readLine();
+    if (!delimiterLine.trim().isEmpty()) {
+      throw new IOException("Malformed multipart delimiter line");
+    }
+
+    Map<String, String> headers = new HashMap<String, String>();
+    int headSize = 0;
+    String line;
+    while (!(line = readLine()).isEmpty()) {
+      headSize += line.length();
+      if (headSize > MAX_PART_HEAD_SIZE) {
+        throw new IOException("Multipart part head exceeds " + MAX_PART_HEAD_SIZE + " bytes");
+      }
+      int split = line.indexOf(':');
+      if (split <= 0) {
+        throw new IOException("Malformed multipart header " + line);
+      }
+      headers.put(line.substring(0, split).trim().toLowerCase(), line.substring(split + 1).trim());
+    }
+
+    currentPart = new PartInputStream();
+    return new Part(headers, currentPart, -1, null, null);
+  }
+
+  /**
+   * Reads every remaining part. Parts smaller than {@code spillThreshold} bytes are held in memory,
+   * larger ones are written to temporary files which should be removed with {@link Part#delete()}
+   * once no longer needed.
+   *
+   * @param tempDir Directory for temporary files, or null for the system default.
+   * @throws IllegalArgumentException If {@code spillThreshold} is negative.
+   */
+  public List<Part> readAllParts(long spillThreshold, File tempDir) throws IOException {
+    if (spillThreshold < 0) {
+      throw new IllegalArgumentException("Invalid spill threshold " + spillThreshold);
+    }
+    List<Part> parts = new ArrayList<Part>();
+    try {
+      Part part;
+      while ((part = nextPart()) != null) {
+        parts.add(storePart(part, spillThreshold, tempDir));
+      }
+    } catch (IOException e) {
+      for (Part stored : parts) {
+        stored.delete();
+      }
+      throw e;
+    }
+    return parts;
+  }
+
+  private Part storePart(Part part, long spillThreshold, File tempDir) throws IOException {
+    InputStream content = part.getInputStream();
+    byte[] memory = new byte[(int) Math.min(spillThreshold, COPY_BUFFER_SIZE)];
+    int memoryLength = 0;
+    int n = 0;
+    while (n >= 0) {
+      if (memoryLength == memory.length) {
+        if (memoryLength >= spillThreshold) {
+          break;
+        }
+        memory = Arrays.copyOf(memory, (int) Math.min(spillThreshold, memory.length * 2L));
+      }
+      n = content.read(memory, memoryLength, memory.length - memoryLength);
+      if (n > 0) {
+        memoryLength += n;
+      }
+    }
+    if (n < 0) {
+      return new Part(part.headers, null, memoryLength, Arrays.copyOf(memory, memoryLength), null);
+    }
+
+    // Too large for memory, move what has been read so far to disk and stream the rest after it.
+    File file = File.createTempFile("casual-multipart", ".part", tempDir);
+    long size = memoryLength;
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(memory, 0, memoryLength);
+      byte[] copyBuffer = new byte[COPY_BUFFER_SIZE];
+      while ((n = content.read(copyBuffer)) >= 0) {
+        out.write(copyBuffer, 0, n);
+        size += n;
+      }
+    } catch (IOException e) {
+      out.close();
+      file.delete();
+      throw e;
+    }
+    out.close();
+    return new Part(part.headers, null, size, null, file);
+  }
+
+  /**
+   * Buffers at least {@code count} bytes unless the input ends first.
+   */
+  private void ensureBuffered(int count) throws IOException {
+    if (limit - position >= count) {
+      return;
+    }
+    if (position > 0) {
+      System.arraycopy(buffer, position, buffer, 0, limit - position);
+      limit -= position;
+      position = 0;
+    }
+    while (limit < count && !inputEnded) {
+      int n = in.read(buffer, limit, buffer.length - limit);
+      if (n < 0) {
+        inputEnded = true;
+      } else {
+        limit += n;
+      }
+    }
+  }
+
+  /**
+   * @return The next line of a part head, without its line terminator.
+   */
+  private String readLine() throws IOException {
+    StringBuilder line = new StringBuilder();
+    while (true) {
+      if (position == limit) {
+        ensureBuffered(1);
+        if (position == limit) {
+          throw new EOFException("Multipart body ended within part head");
+        }
+      }
+      byte b = buffer[position++];
+      if (b == '\n') {
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+          line.setLength(length - 1);
+        }
+        return line.toString();
+      }
+      if (line.length() > MAX_PART_HEAD_SIZE) {
+        throw new IOException("Multipart header line exceeds " + MAX_PART_HEAD_SIZE + " bytes");
+      }
+      line.append((char) (b & 0xff));
+    }
+  }
+
+  /**
+   * Parses {@code name=value} pairs separated by semicolons, where values may be quoted.
+   * Parameter names are lower-cased.
+   */
+  static Map<String, String> parseParameters(String parameters) {
+    Map<String, String> result = new HashMap<String, String>();
+    int i = 0;
+    int length = parameters.length();
+    while (i < length) {
+      int equals = parameters.indexOf('=', i);
+      int semicolon = parameters.indexOf(';', i);
+      if (equals < 0 || (semicolon >= 0 && semicolon < equals)) {
+        // Parameter without a value.
+        i = semicolon < 0 ? length : semicolon + 1;
+        continue;
+      }
+      String name = parameters.substring(i, equals).trim().toLowerCase();
+
+      StringBuilder value = new StringBuilder();
+      i = equals + 1;
+      while (i < length && parameters.charAt(i) == ' ') {
+        i++;
+      }
+      if (i < length && parameters.charAt(i) == '"') {
+        for (i++; i < length && parameters.charAt(i) != '"'; i++) {
+          char c = parameters.charAt(i);
+          if (c == '\\' && i + 1 < length) {
+            c = parameters.charAt(++i);
+          }
+          value.append(c);
+        }
+        int next = parameters.indexOf(';', i);
+        i = next < 0 ? length : next + 1;
+      } else {
+        int end = parameters.indexOf(';', i);
+        if (end < 0) {
+          end = length;
+        }
+        value.append(parameters.substring(i, end).trim());
+        i = end + 1;
+      }
+      result.put(name, value.toString());
+    }
+    return result;
+  }
+
+  /**
+   * Content of the current part, read up to the next delimiter. Reads past the delimiter itself,
+   * so that the parser is positioned at whatever follows it.
+   */
+  private final class PartInputStream extends InputStream {
+    private boolean ended;
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int n = read(b, 0, 1);
+      return n < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (ended) {
+        return -1;
+      }
+      if (len == 0) {
+        return 0;
+      }
+
+      while (true) {
+        int match = indexOfDelimiter();
+        if (match == position) {
+          position += delimiter.length;
+          ended = true;
+          return -1;
+        }
+
+        // Bytes before a possible delimiter, or which cannot be the start of one, are content.
+        int available = match >= 0 ? match : limit - delimiter.length + 1;
+        if (available > position) {
+          int n = Math.min(len, available - position);
+          System.arraycopy(buffer, position, b, off, n);
+          position += n;
+          return n;
+        }
+
+        if (inputEnded) {
+          throw new EOFException("Multipart body ended before closing delimiter");
+        }
+        ensureBuffered(limit - position + 1);
+      }
+    }
+
+    /**
+     * @return The index in the buffer of the next complete delimiter, or -1 if there is none.
+     */
+    private int indexOfDelimiter() {
+      int last = limit - delimiter.length;
+      for (int i = position; i <= last; i++) {
+        if (buffer[i] == delimiter[0] && matchesDelimiter(i)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private boolean matchesDelimiter(int index) {
+      for (int j = 1; j < delimiter.length; j++) {
+        if (buffer[index + j] != delimiter[j]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * A single part of a multipart body.
+   */
+  public static final class Part {
+    private final Map<String, String> headers;
+    private final InputStream stream;
+    private final long size;
+    private final byte[] content;
+    private final File file;
+
+    private Part(
+        Map<String, String> headers, InputStream stream, long size, byte[] content, File file) {
+      this.headers = Collections.unmodifiableMap(headers);
+      this.stream = stream;
+      this.size = size;
+      this.content = content;
+      this.file = file;
+    }
+
+    /**
+     * @return The value of a header of the part, or null if it has none.
+     */
+    public String getHeader(String name) {
+      return headers.get(name.toLowerCase());
+    }
+
+    /**
+     * @return The headers of the part, with lower-case names.
+     */
+    public Map<String, String> getAllHeaders() {
+      return headers;
+    }
+
+    /**
+     * @return The form field name, from the Content-Disposition header.
+     */
+    public String getName() {
+      return getDispositionParameter("name");
+    }
+
+    /**
+     * @return The file name given by the client, or null if the part is not a file.
+     */
+    public String getFileName() {
+      return getDispositionParameter("filename");
+    }
+
+    public String getContentType() {
+      return getHeader(Constants.HEADER_CONTENT_TYPE);
+    }
+
+    /**
+     * @return The size of the content in bytes, or -1 if the part is being streamed.
+     */
+    public long getSize() {
+      return size;
+    }
+
+    /**
+     * @return The temporary file holding the content, or null if it is not on disk.
+     */
+    public File getFile() {
+      return file;
+    }
+
+    /**
+     * @return The content of the part. For a streamed part, the same stream is returned each
+     *     time and must be read before the next part is requested.
+     */
+    public InputStream getInputStream() throws IOException {
+      if (stream != null) {
+        return stream;
+      }
+      if (file != null) {
+        return new FileInputStream(file);
+      }
+      return new ByteArrayInputStream(content);
+    }
+
+    /**
+     * Removes the temporary file holding the content, if there is one.
+     */
+    public void delete() {
+      if (file != null) {
+        file.delete();
+      }
+    }
+
+    private String getDispositionParameter(String name) {
+      String disposition = getHeader("Content-Disposition");
+      if (disposition == null) {
+        return null;
+      }
+      int parametersStart = disposition.indexOf(';');
+      if (parametersStart < 0) {
+        return null;
+      }
+      return parseParameters(disposition.substring(parametersStart + 1)).get(name);
+    }
+  }
+}
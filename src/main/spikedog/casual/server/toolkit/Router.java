@@ -0,0 +1,383 @@
+package spikedog.casual.server.toolkit;
+
+import spikedog.casual.server.Request;
+import spikedog.casual.server.Response;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Dispatches requests to handlers by method and path, so that servers with many endpoints need not
+ * compare the request URI against each in turn. Routes are compiled into a trie with one level per
+ * path segment, whose literal children are found through a hash table keyed by the characters of
+ * the segment in place, so matching neither splits the path nor allocates per segment.
+ *
+ * <p>Patterns are paths of {@code /} separated segments, each of which is either:
+ * <ul>
+ *   <li>literal text, matched exactly;
+ *   <li>{@code {name}}, matching any non-empty segment, available from
+ *       {@link Match#getParameter(String)};
+ *   <li>{@code *} as the last segment, matching the rest of the path, available from
+ *       {@link Match#getWildcard()}.
+ * </ul>
+ * Where several patterns match, literal segments are preferred over parameters and parameters over
+ * wildcards, segment by segment. Methods are compared ignoring case and any query is ignored.
+ * Parameters are as they appear in the URI, without percent-decoding.
+ *
+ * <p>Routes must all be added before requests are served, after which matching is thread-safe.
+ * See {@link RoutingServer} for a server which dispatches through a router.
+ */
+public final class Router {
+  /**
+   * Handles requests for a route.
+   */
+  public interface Handler {
+    void handle(Request request, Response response, Match match) throws IOException;
+  }
+
+  private static final String WILDCARD = "*";
+
+  private final Node root = new Node();
+  // Every method with a route, as first added.
+  private final List<String> methods = new ArrayList<String>();
+  // Most parameters in any one route.
+  private int maxParameters;
+
+  /**
+   * Adds a route.
+   *
+   * @throws IllegalArgumentException If the pattern is malformed or the route has already been
+   *     added.
+   */
+  public Router add(String method, String pattern, Handler handler) {
+    if (method == null || handler == null) {
+      throw new NullPointerException();
+    }
+    if (pattern == null || !pattern.startsWith("/")) {
+      throw new IllegalArgumentException("Pattern must start with /: " + pattern);
+    }
+
+    String[] segments = splitPattern(pattern);
+    List<String> parameterNames = new ArrayList<String>();
+    Node node = root;
+    boolean wildcard = false;
+    for (int i = 0; i < segments.length; i++) {
+      String segment = segments[i];
+      if (segment.equals(WILDCARD)) {
+        if (i != segments.length - 1) {
+          throw new IllegalArgumentException("Wildcard must be the last segment: " + pattern);
+        }
+        wildcard = true;
+      } else if (segment.startsWith("{") && segment.endsWith("}")) {
+        String name = segment.substring(1, segment.length() - 1);
+        if (name.isEmpty() || parameterNames.contains(name)) {
+          throw new IllegalArgumentException("Invalid parameter " + segment + " in " + pattern);
+        }
+        parameterNames.add(name);
+        if (node.parameter == null) {
+          node.parameter = new Node();
+        }
+        node = node.parameter;
+      } else if (segment.indexOf('{') >= 0 || segment.indexOf('}') >= 0
+          || segment.indexOf('*') >= 0) {
+        throw new IllegalArgumentException("Invalid segment " + segment + " in " + pattern);
+      } else {
+        node = node.addLiteral(segment);
+      }
+    }
+
+    Route route = new Route(
+        method, pattern, parameterNames.toArray(new String[parameterNames.size()]), handler);
+    if (wildcard) {
+      node.wildcardRoutes = addRoute(node.wildcardRoutes, route);
+    } else {
+      node.routes = addRoute(node.routes, route);
+    }
+    maxParameters = Math.max(maxParameters, parameterNames.size());
+    if (!containsIgnoreCase(methods, method)) {
+      methods.add(method);
+    }
+    return this;
+  }
+
+  /**
+   * @param method The request method, or null to match routes for any method.
+   * @param uri The request URI. Only its path is matched.
+   * @return The matching route, or null if there is none.
+   */
+  public Match match(String method, String uri) {
+    if (uri.isEmpty() || uri.charAt(0) != '/') {
+      return null;
+    }
+    int end = uri.indexOf('?');
+    if (end < 0) {
+      end = uri.length();
+    }
+    // The path "/" has no segments, otherwise each '/' starts one.
+    int start = end > 1 ? 1 : -1;
+    // Start and end of each parameter, then the start of the wildcard.
+    int[] offsets = new int[maxParameters * 2 + 1];
+    Route route = match(root, method, uri, start, end, offsets, 0);
+    return route != null ? new Match(route, uri, offsets, end) : null;
+  }
+
+  /**
+   * @param uri The request URI. Only its path is matched.
+   * @return The methods for which a route matches the path, in the order they were first added,
+   *     for the Allow header of a 405 response. Empty if no route matches.
+   */
+  public List<String> getAllowedMethods(String uri) {
+    List<String> allowed = new ArrayList<String>();
+    for (String method : methods) {
+      if (match(method, uri) != null) {
+        allowed.add(method);
+      }
+    }
+    return allowed;
+  }
+
+  /**
+   * Passes a request to the handler of its route.
+   *
+   * @return False if no route matches the request, in which case nothing has been written.
+   */
+  public boolean route(Request request, Response response) throws IOException {
+    Match match =
+        match(request.getRequestLine().getMethod(), request.getRequestLine().getUri());
+    if (match == null) {
+      return false;
+    }
+    match.route.handler.handle(request, response, match);
+    return true;
+  }
+
+  /**
+   * Finds the route for the path segments from {@code start}, literal children first and then
+   * backtracking to parameters and wildcards.
+   *
+   * @param start Start of the current segment, or -1 if the path has no segments left.
+   * @param parameterCount Parameters matched so far.
+   */
+  private static Route match(
+      Node node, String method, String path, int start, int end, int[] offsets,
+      int parameterCount) {
+    if (start < 0) {
+      Route route = find(node.routes, method);
+      if (route == null) {
+        // A wildcard also matches an empty rest of the path.
+        route = find(node.wildcardRoutes, method);
+        offsets[offsets.length - 1] = end;
+      }
+      return route;
+    }
+
+    int segmentEnd = path.indexOf('/', start);
+    if (segmentEnd < 0 || segmentEnd > end) {
+      segmentEnd = end;
+    }
+    int next = segmentEnd < end ? segmentEnd + 1 : -1;
+
+    Node literal = node.findLiteral(path, start, segmentEnd);
+    if (literal != null) {
+      Route route = match(literal, method, path, next, end, offsets, parameterCount);
+      if (route != null) {
+        return route;
+      }
+    }
+    if (node.parameter != null && segmentEnd > start) {
+      offsets[parameterCount * 2] = start;
+      offsets[parameterCount * 2 + 1] = segmentEnd;
+      Route route = match(node.parameter, method, path, next, end, offsets, parameterCount + 1);
+      if (route != null) {
+        return route;
+      }
+    }
+    Route route = find(node.wildcardRoutes, method);
+    if (route != null) {
+      offsets[offsets.length - 1] = start;
+    }
+    return route;
+  }
+
+  private static Route find(Route[] routes, String method) {
+    if (routes == null) {
+      return null;
+    }
+    for (Route route : routes) {
+      if (method == null || route.method.equalsIgnoreCase(method)) {
+        return route;
+      }
+    }
+    return null;
+  }
+
+  private static Route[] addRoute(Route[] routes, Route route) {
+    if (routes == null) {
+      return new Route[] {route};
+    }
+    for (Route existing : routes) {
+      if (existing.method.equalsIgnoreCase(route.method)) {
+        throw new IllegalArgumentException(
+            "Route " + route.method + " " + route.pattern + " conflicts with " + existing.pattern);
+      }
+    }
+    Route[] added = Arrays.copyOf(routes, routes.length + 1);
+    added[routes.length] = route;
+    return added;
+  }
+
+  private static boolean containsIgnoreCase(List<String> list, String s) {
+    for (String element : list) {
+      if (element.equalsIgnoreCase(s)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String[] splitPattern(String pattern) {
+    return pattern.length() == 1 ? new String[0] : pattern.substring(1).split("/", -1);
+  }
+
+  /**
+   * Hash of part of a string, equal to that of the substring.
+   */
+  private static int hash(String s, int start, int end) {
+    int h = 0;
+    for (int i = start; i < end; i++) {
+      h = 31 * h + s.charAt(i);
+    }
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * A route which matched a request, and the parts of the path matched by its parameters.
+   */
+  public static final class Match {
+    private final Route route;
+    private final String path;
+    private final int[] offsets;
+    private final int end;
+
+    private Match(Route route, String path, int[] offsets, int end) {
+      this.route = route;
+      this.path = path;
+      this.offsets = offsets;
+      this.end = end;
+    }
+
+    /**
+     * @return The pattern of the route.
+     */
+    public String getPattern() {
+      return route.pattern;
+    }
+
+    /**
+     * @return The segment matched by the parameter {@code {name}}, or null if the route has no
+     *     such parameter.
+     */
+    public String getParameter(String name) {
+      String[] names = route.parameterNames;
+      for (int i = 0; i < names.length; i++) {
+        if (names[i].equals(name)) {
+          return path.substring(offsets[i * 2], offsets[i * 2 + 1]);
+        }
+      }
+      return null;
+    }
+
+    /**
+     * @return The rest of the path matched by a wildcard, without its leading {@code /}, or null
+     *     if the route has no wildcard.
+     */
+    public String getWildcard() {
+      return route.pattern.endsWith(WILDCARD)
+          ? path.substring(offsets[offsets.length - 1], end) : null;
+    }
+  }
+
+  private static final class Route {
+    final String method;
+    final String pattern;
+    // In the order they appear in the pattern.
+    final String[] parameterNames;
+    final Handler handler;
+
+    Route(String method, String pattern, String[] parameterNames, Handler handler) {
+      this.method = method;
+      this.pattern = pattern;
+      this.parameterNames = parameterNames;
+      this.handler = handler;
+    }
+  }
+
+  /**
+   * Routes ending at a segment, and the nodes for the segments which may follow it.
+   */
+  private static final class Node {
+    // Literal children, open addressed by hash with linear probing. Kept at most half full.
+    private String[] literalKeys;
+    private Node[] literalNodes;
+    private int literalCount;
+
+    Node parameter;
+    Route[] routes;
+    Route[] wildcardRoutes;
+
+    Node findLiteral(String path, int start, int end) {
+      if (literalKeys == null) {
+        return null;
+      }
+      int length = end - start;
+      int mask = literalKeys.length - 1;
+      for (int i = hash(path, start, end) & mask; literalKeys[i] != null; i = (i + 1) & mask) {
+        String key = literalKeys[i];
+        if (key.length() == length && path.regionMatches(start, key, 0, length)) {
+          return literalNodes[i];
+        }
+      }
+      return null;
+    }
+
+    Node addLiteral(String segment) {
+      Node existing = findLiteral(segment, 0, segment.length());
+      if (existing != null) {
+        return existing;
+      }
+      if (literalKeys == null || (literalCount + 1) * 2 > literalKeys.length) {
+        resize(literalKeys == null ? 4 : literalKeys.length * 2);
+      }
+      Node node = new Node();
+      put(segment, node);
+      literalCount++;
+      return node;
+    }
+
+    private void resize(int capacity) {
+      String[] keys = literalKeys;
+      Node[] nodes = literalNodes;
+      literalKeys = new String[capacity];
+      literalNodes = new Node[capacity];
+      if (keys != null) {
+        for (int i = 0; i < keys.length; i++) {
+          if (keys[i] != null) {
+            put(keys[i], nodes[i]);
+          }
+        }
+      }
+    }
+
+    private void put(String key, Node node) {
+      int mask = literalKeys.length - 1;
+      int i = hash(key, 0, key.length()) & mask;
+      while (literalKeys[i] != null) {
+        i = (i + 1) & mask;
+      }
+      literalKeys[i] = key;
+      literalNodes[i] = node;
+    }
+  }
+}
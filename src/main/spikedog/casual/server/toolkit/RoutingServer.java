@@ -0,0 +1,112 @@
+package spikedog.casual.server.toolkit;
+
+import spikedog.casual.server.CasualServer;
+import spikedog.casual.server.Request;
+import spikedog.casual.server.Response;
+import spikedog.casual.server.SocketConfig;
+import spikedog.casual.server.StatusLine;
+import spikedog.casual.server.util.Constants;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Server which dispatches requests through a {@link Router} rather than by overriding
+ * {@link #onGet} and friends. Requests for methods without a handler of their own, such as PATCH,
+ * are routed too. Requests which no route matches are passed to
+ * {@link #onUnrouted(Request, Response)}.
+ */
+public class RoutingServer extends CasualServer {
+  private final Router router;
+
+  /**
+   * Creates a server which executes all requests on a single thread.
+   *
+   * @param port The port which the server will bind to.
+   * @param router Routes, all of which must have been added before the server is started.
+   */
+  public RoutingServer(int port, Router router) {
+    super(port);
+    this.router = router;
+  }
+
+  /**
+   * Creates a server with custom configuration, see
+   * {@link CasualServer#CasualServer(int, ExecutorService, SocketConfig)}.
+   */
+  public RoutingServer(
+      int port, ExecutorService requestExecutor, SocketConfig config, Router router) {
+    super(port, requestExecutor, config);
+    this.router = router;
+  }
+
+  @Override
+  protected void onGet(Request request, Response response) throws IOException {
+    route(request, response);
+  }
+
+  @Override
+  protected void onPost(Request request, Response response) throws IOException {
+    route(request, response);
+  }
+
+  @Override
+  protected void onPut(Request request, Response response) throws IOException {
+    route(request, response);
+  }
+
+  @Override
+  protected void onDelete(Request request, Response response) throws IOException {
+    route(request, response);
+  }
+
+  @Override
+  protected void onHead(Request request, Response response) throws IOException {
+    route(request, response);
+  }
+
+  @Override
+  protected void onOptions(Request request, Response response) throws IOException {
+    route(request, response);
+  }
+
+  @Override
+  protected void onTrace(Request request, Response response) throws IOException {
+    route(request, response);
+  }
+
+  @Override
+  protected void onUnsupportedMethod(Request request, Response response) throws IOException {
+    route(request, response);
+  }
+
+  /**
+   * Writes a response with a 405 status code, listing the methods routed for the path in its Allow
+   * header, if a route matches the path for another method, or a 404 otherwise. May be overriden
+   * by subclasses to dictate the behaviour.
+   */
+  protected void onUnrouted(Request request, Response response) throws IOException {
+    List<String> allowed = router.getAllowedMethods(request.getRequestLine().getUri());
+    if (allowed.isEmpty()) {
+      response.setStatusLine(StatusLine.NOT_FOUND);
+    } else {
+      StringBuilder allow = new StringBuilder();
+      for (String method : allowed) {
+        if (allow.length() > 0) {
+          allow.append(", ");
+        }
+        allow.append(method);
+      }
+      response.setStatusLine(StatusLine.METHOD_NOT_ALLOWED);
+      response.addHeader(Constants.HEADER_ALLOW, allow.toString());
+    }
+    response.flush();
+  }
+
+  private void route(Request request, Response response) throws IOException {
+    if (!router.route(request, response)) {
+      onUnrouted(request, response);
+    }
+  }
+}
@@ -4,10 +4,46 @@ package spikedog.casual.server.util;
  * Protocol defined constants.
  */
 public class Constants {
+  public static final String CONNECTION_CLOSE = "close";
+
+  public static final String CONNECTION_KEEP_ALIVE = "keep-alive";
+
+  public static final String CONTENT_CODING_DEFLATE = "deflate";
+
+  public static final String CONTENT_CODING_GZIP = "gzip";
+
+  public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+
+  public static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+
+  public static final String HEADER_ALLOW = "Allow";
+
+  public static final String HEADER_CONNECTION = "Connection";
+
+  public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+
   public static final String HEADER_CONTENT_LENGTH = "Content-Length";
 
+  public static final String HEADER_CONTENT_RANGE = "Content-Range";
+
   public static final String HEADER_CONTENT_TYPE = "Content-Type";
 
+  public static final String HEADER_ETAG = "ETag";
+
+  public static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+  public static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+
+  public static final String HEADER_IF_RANGE = "If-Range";
+
+  public static final String HEADER_LAST_MODIFIED = "Last-Modified";
+
+  public static final String HEADER_RANGE = "Range";
+
+  public static final String HEADER_TRANSFER_ENCODING = "Transfer-Encoding";
+
+  public static final String HEADER_VARY = "Vary";
+
   public static final String METHOD_DELETE = "DELETE";
 
   public static final String METHOD_GET = "GET";
@@ -22,5 +58,9 @@ public class Constants {
 
   public static final String METHOD_TRACE = "TRACE";
 
+  public static final String TRANSFER_ENCODING_CHUNKED = "chunked";
+
+  public static final String VERSION_HTTP_1_0 = "HTTP/1.0";
+
   public static final String VERISON_HTTP_1_1 = "HTTP/1.1";
 }
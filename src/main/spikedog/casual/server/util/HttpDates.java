@@ -0,0 +1,62 @@
+package spikedog.casual.server.util;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+import java.util.Locale;
+
+/**
+ * Formats and parses the dates used in HTTP headers such as Last-Modified.
+ *
+ * <p>See http://www.w3.org/Protocols/rfc2616/rfc2616-sec3.html#sec3.3.1
+ */
+public final class HttpDates {
+  // RFC 1123 format, which is always sent. DateTimeFormatter.RFC_1123_DATE_TIME would drop the
+  // leading zero of the day of the month, which HTTP requires.
+  private static final DateTimeFormatter RFC_1123 =
+      DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+          .withZone(ZoneOffset.UTC);
+
+  // Formats accepted, RFC 1123 followed by the obsolete RFC 850 and asctime formats. Two digit
+  // years are taken to be from 1970 onwards.
+  private static final DateTimeFormatter[] PARSERS = {
+      DateTimeFormatter.RFC_1123_DATE_TIME,
+      new DateTimeFormatterBuilder()
+          .appendPattern("EEEE, dd-MMM-")
+          .appendValueReduced(ChronoField.YEAR, 2, 2, 1970)
+          .appendPattern(" HH:mm:ss 'GMT'")
+          .toFormatter(Locale.US)
+          .withZone(ZoneOffset.UTC),
+      DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.US).withZone(ZoneOffset.UTC)
+  };
+
+  // Static helper methods only.
+  private HttpDates() {
+  }
+
+  /**
+   * @return {@code millis} since the epoch as an RFC 1123 date, e.g.
+   *     {@code Sun, 06 Nov 1994 08:49:37 GMT}.
+   */
+  public static String format(long millis) {
+    return RFC_1123.format(Instant.ofEpochMilli(millis));
+  }
+
+  /**
+   * @return The date in milliseconds since the epoch, or -1 if it is not in any HTTP date format.
+   */
+  public static long parse(String date) {
+    String trimmed = date.trim();
+    for (DateTimeFormatter parser : PARSERS) {
+      try {
+        return Instant.from(parser.parse(trimmed)).toEpochMilli();
+      } catch (DateTimeException e) {
+        // Try the next format.
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,89 @@
+package spikedog.casual.server.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Factories for executors suited to running {@link spikedog.casual.server.CasualServer} requests.
+ */
+public final class RequestExecutors {
+  // Executors.newVirtualThreadPerTaskExecutor(), or null if the runtime has no virtual threads.
+  // Java 19 and 20 have the method as a preview feature, which fails unless enabled.
+  private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutorFactory();
+
+  // Static helper methods only.
+  private RequestExecutors() {
+  }
+
+  /**
+   * @return Whether the running JVM supports virtual threads (Java 21 and above).
+   */
+  public static boolean isVirtualThreadSupported() {
+    return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+  }
+
+  /**
+   * Creates an executor which runs every task on a new virtual thread. Passing it to
+   * {@link spikedog.casual.server.CasualServer}'s constructor serves each connection on its own
+   * virtual thread, so handlers may block without a pool size limiting concurrency. Handlers must
+   * be thread-safe.
+   *
+   * @throws UnsupportedOperationException If the JVM does not support virtual threads.
+   */
+  public static ExecutorService newVirtualThreadPerTaskExecutor() {
+    if (NEW_VIRTUAL_THREAD_EXECUTOR == null) {
+      throw new UnsupportedOperationException("Virtual threads require Java 21 or above");
+    }
+
+    try {
+      return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    } catch (InvocationTargetException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Creates an executor which serves each connection on its own thread, so that clients waiting
+   * between requests on persistent connections do not hold up others. Uses a virtual thread per
+   * task where the JVM supports them, and otherwise a pool of platform threads. Handlers must be
+   * thread-safe.
+   *
+   * @param maxPlatformThreads Size of the pool used without virtual threads, which limits the
+   *     number of connections served at once.
+   */
+  public static ExecutorService newPerConnectionExecutor(int maxPlatformThreads) {
+    return isVirtualThreadSupported()
+        ? newVirtualThreadPerTaskExecutor() : Executors.newFixedThreadPool(maxPlatformThreads);
+  }
+
+  private static Method findVirtualThreadExecutorFactory() {
+    if (getFeatureVersion() < 21) {
+      return null;
+    }
+    try {
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return The Java release running, as Runtime.version().feature() gives from Java 10 on.
+   */
+  private static int getFeatureVersion() {
+    String version = System.getProperty("java.specification.version", "");
+    if (version.startsWith("1.")) {
+      // 1.8 and before.
+      version = version.substring(2);
+    }
+    try {
+      return Integer.parseInt(version);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+}
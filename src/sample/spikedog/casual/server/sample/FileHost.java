@@ -3,16 +3,25 @@ package spikedog.casual.server.sample;
 import spikedog.casual.server.CasualServer;
 import spikedog.casual.server.Request;
 import spikedog.casual.server.Response;
+import spikedog.casual.server.toolkit.FileCache;
+import spikedog.casual.server.toolkit.FileHandleCache;
 import spikedog.casual.server.toolkit.FileServeHelper;
+import spikedog.casual.server.util.RequestExecutors;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Sample server which serves files from a provided root directory.
  */
 public class FileHost extends CasualServer {
+  // Request threads when virtual threads are not available.
+  private static final int MAX_THREADS = 32;
+
   private final String fileRootDir;
+  private final FileCache fileCache = new FileCache();
+  private final FileHandleCache fileHandles = new FileHandleCache();
 
   /**
    * @param args --root is the root directory to serve from, --port to set the port.
@@ -44,7 +53,15 @@ public class FileHost extends CasualServer {
   }
 
   public FileHost(String fileRootDir, int port) {
-    super(port);
+    this(fileRootDir, port, RequestExecutors.newPerConnectionExecutor(MAX_THREADS));
+  }
+
+  /**
+   * @param executor Serves each connection. Must run connections concurrently, as a kept-alive
+   *     connection holds its thread until it closes.
+   */
+  public FileHost(String fileRootDir, int port, ExecutorService executor) {
+    super(port, executor, null);
     this.fileRootDir = fileRootDir;
   }
 
@@ -58,6 +75,7 @@ public class FileHost extends CasualServer {
       fileUri = fileUri.substring(1);
     }
 
-    FileServeHelper.serveFile(new File(fileRootDir, fileUri), response);
+    FileServeHelper.serveFile(
+        new File(fileRootDir, fileUri), request, response, fileCache, fileHandles);
   }
 }
@@ -5,17 +5,21 @@ import spikedog.casual.server.Request;
 import spikedog.casual.server.Response;
 import spikedog.casual.server.StatusLine;
 import spikedog.casual.server.util.Constants;
+import spikedog.casual.server.util.RequestExecutors;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Super lame {@link CasualServer} demo.
  */
 public class HelloWorld extends CasualServer{
   private static final String BASIC_CONTENT = "<html><head></head><body><h1>yo!</hi></body></html>";
+  private static final byte[] BASIC_CONTENT_BYTES = BASIC_CONTENT.getBytes(StandardCharsets.UTF_8);
+  // Request threads when virtual threads are not available.
+  private static final int MAX_THREADS = 32;
 
   /**
    * @param args --port to specify the socket port.
@@ -39,29 +43,27 @@ public class HelloWorld extends CasualServer{
   }
 
   public HelloWorld(int port) {
-    super(port);
+    this(port, RequestExecutors.newPerConnectionExecutor(MAX_THREADS));
+  }
+
+  /**
+   * @param executor Serves each connection. Must run connections concurrently, as a kept-alive
+   *     connection holds its thread until it closes.
+   */
+  public HelloWorld(int port, ExecutorService executor) {
+    super(port, executor, null);
   }
 
   @Override
   protected void onGet(Request request, Response response) throws IOException {
     System.out.println(request);
-    try {
-      byte[] bodyBytes = BASIC_CONTENT.getBytes(StandardCharsets.UTF_8);
+    response.addHeader(Constants.HEADER_CONTENT_LENGTH, "" + BASIC_CONTENT_BYTES.length);
+    response.addHeader(Constants.HEADER_CONTENT_TYPE, "text/html; charset=utf-8");
+    response.setStatusLine(StatusLine.OK);
 
-      InputStream body = new ByteArrayInputStream(bodyBytes);
-      response.setBody(body);
-
-      response.addHeader(Constants.HEADER_CONTENT_LENGTH, "" + bodyBytes.length);
-      response.addHeader(Constants.HEADER_CONTENT_TYPE, "text/html; charset=utf-8");
-
-      StatusLine statusLine = new StatusLine(Constants.VERISON_HTTP_1_1, 200, "OK");
-      response.setStatusLine(statusLine);
-    } catch (Exception e) {
-      StatusLine statusLine = new StatusLine(Constants.VERISON_HTTP_1_1, 500, "Fail");
-      response.setStatusLine(statusLine);
-      response.setBody(null);
-    }
-    response.flush();
+    OutputStream body = response.getOutputStream();
+    body.write(BASIC_CONTENT_BYTES);
+    body.close();
     System.out.println("\n");
   }
 }
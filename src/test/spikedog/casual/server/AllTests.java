@@ -2,6 +2,7 @@ package spikedog.casual.server;
 
 import spikedog.casual.server.internal.InternalTestSuite;
 import spikedog.casual.server.toolkit.ToolkitTestSuite;
+import spikedog.casual.server.util.UtilTestSuite;
 
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
@@ -11,7 +12,8 @@ import org.junit.runners.Suite.SuiteClasses;
 @SuiteClasses({
   ServerTestSuite.class,
   InternalTestSuite.class,
-  ToolkitTestSuite.class
+  ToolkitTestSuite.class,
+  UtilTestSuite.class
 })
 public class AllTests {
 }
\ No newline at end of file
@@ -1,7 +1,10 @@
 package spikedog.casual.server;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import spikedog.casual.server.internal.SocketConfigResolver;
@@ -15,6 +18,7 @@ import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.concurrent.AbstractExecutorService;
 import java.util.concurrent.CountDownLatch;
@@ -60,6 +64,8 @@ public class CasualServerTest {
     String requestString =
         "GET / HTTP/1.1\r\n"
         + "Host: foo\r\n"
+        + "Content-Length: 7\r\n"
+        + "Connection: close\r\n"
         + "\r\n"
         + "content";
     makeFakeRequest(serverSocket, requestString);
@@ -83,6 +89,7 @@ public class CasualServerTest {
     String requestString =
         "POST / HTTP/1.1\r\n"
         + "time: never,ever\r\n"
+        + "Content-Length: 3\r\n"
         + "\r\n"
         + "foo";
     makeFakeRequest(serverSocket, requestString);
@@ -107,6 +114,7 @@ public class CasualServerTest {
         "PUT /create HTTP/1.1\r\n"
         + "time: never,ever\r\n"
         + "content-encoding: gzip\r\n"
+        + "Content-Length: 7\r\n"
         + "\r\n"
         + "foo\nbar";
     makeFakeRequest(serverSocket, requestString);
@@ -131,6 +139,7 @@ public class CasualServerTest {
     String requestString =
         "DELETE /foo HTTP/1.1\r\n"
         + "time: now\r\n"
+        + "Content-Length: 3\r\n"
         + "\r\n"
         + "foo";
     makeFakeRequest(serverSocket, requestString);
@@ -154,6 +163,7 @@ public class CasualServerTest {
     String requestString =
         "HEAD /foo HTTP/1.1\r\n"
         + "time: now\r\n"
+        + "Content-Length: 3\r\n"
         + "\r\n"
         + "foo";
     makeFakeRequest(serverSocket, requestString);
@@ -177,6 +187,7 @@ public class CasualServerTest {
     String requestString =
         "OPTIONS /foo HTTP/1.1\r\n"
         + "time: now\r\n"
+        + "Content-Length: 3\r\n"
         + "\r\n"
         + "foo";
     makeFakeRequest(serverSocket, requestString);
@@ -200,6 +211,7 @@ public class CasualServerTest {
     String requestString =
         "TRACE /foo HTTP/1.1\r\n"
         + "time: now\r\n"
+        + "Content-Length: 3\r\n"
         + "\r\n"
         + "foo";
     makeFakeRequest(serverSocket, requestString);
@@ -223,6 +235,8 @@ public class CasualServerTest {
     String requestString =
         "WAT /crazytown HTTP/1.1\r\n"
         + "time: now\r\n"
+        + "Content-Length: 3\r\n"
+        + "Connection: close\r\n"
         + "\r\n"
         + "foo";
     StringyOutputStream out = makeFakeRequest(serverSocket, requestString);
@@ -242,6 +256,88 @@ public class CasualServerTest {
     assertEquals(expectedOutStart, out.getString().substring(0, expectedOutStart.length()));
   }
 
+  @Test
+  public void testKeepAlive() throws Exception {
+    FakeServerSocket serverSocket = prepareServerSocket(fakeServerSocketFactory, testPort);
+    startServer(testServer);
+
+    String requestString =
+        "GET /first HTTP/1.1\r\n"
+        + "Content-Length: 3\r\n"
+        + "\r\n"
+        + "foo"
+        + "GET /second HTTP/1.1\r\n"
+        + "Connection: close\r\n"
+        + "\r\n";
+    StringyOutputStream out = makeFakeRequest(serverSocket, requestString);
+
+    Thread.sleep(500);
+
+    Request get = testServer.lastGet;
+    assertNotNull(get);
+    assertEquals("/second", get.getRequestLine().getUri());
+
+    // Both requests answered on the same connection, which is closed after the second.
+    String output = out.getString();
+    int secondResponse = output.indexOf("HTTP/1.1 200", 1);
+    assertTrue(output.startsWith("HTTP/1.1 200"));
+    assertTrue(secondResponse > 0);
+    assertFalse(output.substring(0, secondResponse).contains("close"));
+    assertTrue(output.substring(secondResponse).contains("close"));
+  }
+
+  @Test
+  public void testConflictingContentLength() throws Exception {
+    FakeServerSocket serverSocket = prepareServerSocket(fakeServerSocketFactory, testPort);
+    startServer(testServer);
+
+    // Were either length trusted, the body would be read as a request.
+    String requestString =
+        "POST /first HTTP/1.1\r\n"
+        + "Content-Length: 0\r\n"
+        + "Content-Length: 25\r\n"
+        + "\r\n"
+        + "GET /second HTTP/1.1\r\n"
+        + "\r\n";
+    StringyOutputStream out = makeFakeRequest(serverSocket, requestString);
+
+    Thread.sleep(500);
+
+    assertNull(testServer.lastPost);
+    assertNull(testServer.lastGet);
+    String output = out.getString();
+    assertTrue(output, output.startsWith("HTTP/1.1 400"));
+    assertTrue(output, output.contains("close"));
+    assertEquals(output.indexOf("HTTP/1.1"), output.lastIndexOf("HTTP/1.1"));
+  }
+
+    @Test
+  public void testFlushSentWhileHandling() throws Exception {
+    FakeServerSocket serverSocket = prepareServerSocket(fakeServerSocketFactory, testPort);
+    startServer(testServer);
+
+    // A body and a pipelined request are waiting, so responses are being batched.
+    String requestString =
+        "GET /stream HTTP/1.1\r\n"
+        + "Content-Length: 3\r\n"
+        + "\r\n"
+        + "foo"
+        + "GET /second HTTP/1.1\r\n"
+        + "Connection: close\r\n"
+        + "\r\n";
+    // The handler reads the output, so it is set before the request can be accepted.
+    testServer.socketOutput = new StringyOutputStream();
+    serverSocket.setSocket(
+        new FakeSocket(new StringyInputStream(requestString), testServer.socketOutput));
+
+    Thread.sleep(500);
+
+    // The flushed event reached the socket before the handler returned.
+    assertNotNull(testServer.outputWhenFlushed);
+    assertTrue(testServer.outputWhenFlushed.endsWith("event-1\r\n"));
+    assertTrue(testServer.socketOutput.getString().contains("event-2"));
+  }
+
   private static FakeServerSocket prepareServerSocket(FakeServerSocketFactory factory, int port)
       throws IOException {
     FakeServerSocket result = new FakeServerSocket();
@@ -282,6 +378,8 @@ public class CasualServerTest {
     private Request lastOptions;
     private Request lastTrace;
     private Request lastUnsupported;
+    private volatile StringyOutputStream socketOutput;
+    private volatile String outputWhenFlushed;
 
     public TestServer(
         int port,
@@ -295,6 +393,15 @@ public class CasualServerTest {
     protected void onGet(Request request, Response response) throws IOException {
       assertNotNull(response);
       lastGet = request;
+      response.setStatusLine(new StatusLine("HTTP/1.1", 200, "OK"));
+      if (request.getRequestLine().getUri().equals("/stream")) {
+        OutputStream body = response.getOutputStream();
+        body.write("event-1".getBytes(StandardCharsets.US_ASCII));
+        body.flush();
+        outputWhenFlushed = socketOutput.getString();
+        body.write("event-2".getBytes(StandardCharsets.US_ASCII));
+      }
+      response.flush();
     }
 
     @Override
@@ -0,0 +1,45 @@
+package spikedog.casual.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class MethodTest {
+  @Test
+  public void testFromString() {
+    for (Method method : Method.values()) {
+      if (method != Method.OTHER) {
+        assertEquals(method, Method.fromString(method.getMethodName()));
+        assertEquals(method, Method.fromString(method.getMethodName().toLowerCase()));
+      }
+    }
+    assertEquals(Method.GET, Method.fromString("gEt"));
+    assertEquals(Method.OTHER, Method.fromString(""));
+    assertEquals(Method.OTHER, Method.fromString("GETS"));
+    assertEquals(Method.OTHER, Method.fromString("PATCH"));
+    assertEquals(Method.OTHER, Method.fromString("PUSH"));
+    assertEquals(Method.OTHER, Method.fromString("CONNECT"));
+  }
+
+  @Test
+  public void testFromBytes() {
+    for (Method method : Method.values()) {
+      if (method != Method.OTHER) {
+        assertEquals(method, fromBytes(method.getMethodName()));
+        assertEquals(method, fromBytes(method.getMethodName().toLowerCase()));
+      }
+    }
+    assertEquals(Method.OTHER, fromBytes(""));
+    assertEquals(Method.OTHER, fromBytes("GE"));
+    assertEquals(Method.OTHER, fromBytes("PATCH"));
+    // Only letters match ignoring case.
+    assertEquals(Method.OTHER, fromBytes("G\u0005T"));
+  }
+
+  private static Method fromBytes(String method) {
+    byte[] bytes = ("x" + method + "x").getBytes(StandardCharsets.ISO_8859_1);
+    return Method.fromBytes(bytes, 1, bytes.length - 1);
+  }
+}
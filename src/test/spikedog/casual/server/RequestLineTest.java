@@ -11,11 +11,27 @@ public class RequestLineTest {
     RequestLine requestLine = RequestLine.fromString("GET / HTTP/1.1");
     assertEquals(new RequestLine("GET", "/", "HTTP/1.1"), requestLine);
 
-    try {
-      requestLine = RequestLine.fromString("GET HTTP/1.1");
-      fail("Request line should not be constructable from invalid string.");
-    } catch (IllegalArgumentException e) {
-      // Expected.
+    String[] invalid = {
+      "GET HTTP/1.1", "GET", "GET  / HTTP/1.1", " / HTTP/1.1", "GET / ", "a b c d"
+    };
+    for (String requestLineString : invalid) {
+      try {
+        requestLine = RequestLine.fromString(requestLineString);
+        fail("Request line should not be constructable from invalid string.");
+      } catch (IllegalArgumentException e) {
+        // Expected.
+      }
     }
   }
+
+  @Test
+  public void testMethodToken() {
+    assertEquals(Method.GET, new RequestLine("GET", "/", "HTTP/1.1").getMethodToken());
+    assertEquals(Method.POST, new RequestLine("post", "/", "HTTP/1.1").getMethodToken());
+    assertEquals(Method.OTHER, new RequestLine("PATCH", "/", "HTTP/1.1").getMethodToken());
+
+    RequestLine requestLine = new RequestLine(Method.OPTIONS, "*", "HTTP/1.1");
+    assertEquals("OPTIONS", requestLine.getMethod());
+    assertEquals(new RequestLine("OPTIONS", "*", "HTTP/1.1"), requestLine);
+  }
 }
@@ -4,7 +4,9 @@ import static org.junit.Assert.assertEquals;
 
 import spikedog.casual.server.util.Constants;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -66,6 +68,23 @@ public class RequestTest {
     assertEquals(newHeaderValuesList, headerMap.get(newHeaderName.toLowerCase()));
   }
 
+  @Test
+  public void testRawHeaders() {
+    Request.Builder builder = new Request.Builder();
+    byte[] head = "Content-Length: 5\r\nX-Foo: a, b\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    builder.setRawHeaders(head, 0, head.length);
+    builder.setHeader("x-foo", Arrays.asList("c"));
+    Request request = builder.build();
+
+    assertEquals(5L, request.getContentLength());
+    // Set headers replace those received.
+    assertEquals(Arrays.asList("c"), request.getHeaderValues("X-Foo"));
+    Map<String, List<String>> headerMap = request.getAllHeaders();
+    assertEquals(2, headerMap.size());
+    assertEquals(Arrays.asList("5"), headerMap.get("content-length"));
+    assertEquals(Arrays.asList("c"), headerMap.get("x-foo"));
+  }
+
   @Test
   public void testContentLength() {
     Request.Builder builder = new Request.Builder();
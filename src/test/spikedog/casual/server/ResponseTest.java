@@ -1,13 +1,22 @@
 package spikedog.casual.server;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import spikedog.casual.server.internal.BufferPool;
+import spikedog.casual.server.internal.GatheringTarget;
 import spikedog.casual.server.testutils.StringyOutputStream;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 import org.junit.Test;
@@ -21,10 +30,10 @@ public class ResponseTest {
     response.setStatusLine(statusLine);
     response.flush();
 
-    assertEquals("HTTP/1.1 200 OK\n", outputStream.getString());
+    assertEquals("HTTP/1.1 200 OK\r\n", outputStream.getString());
 
     response.flush();
-    assertEquals("HTTP/1.1 200 OK\n", outputStream.getString());
+    assertEquals("HTTP/1.1 200 OK\r\n", outputStream.getString());
 
     try {
       response.setStatusLine(new StatusLine("foo", 123, "hello"));
@@ -47,10 +56,10 @@ public class ResponseTest {
     response.setHeader("Date", "now");
     response.flush();
 
-    String expected = "HTTP/1.1 200 OK\n" +
-        "Content-Type: text/plain\n" +
-        "Content-Length: 51\n" +
-        "Date: now\n";
+    String expected = "HTTP/1.1 200 OK\r\n" +
+        "Content-Type: text/plain\r\n" +
+        "Content-Length: 51\r\n" +
+        "Date: now\r\n";
     assertEquals(expected, out.getString());
     response.flush();
 
@@ -78,8 +87,8 @@ public class ResponseTest {
     response.setHeader("Date", "now");
     response.flush();
 
-    String expected = "HTTP/1.1 200 OK\n" +
-        "Date: now\n";
+    String expected = "HTTP/1.1 200 OK\r\n" +
+        "Date: now\r\n";
     assertEquals(expected, out.getString());
     response.flush();
   }
@@ -95,7 +104,7 @@ public class ResponseTest {
     response.setBody(contentStream);
     response.flush();
 
-    String expected = "HTTP/1.1 200 OK\nContent-Type: text/plain\n\n" + content;
+    String expected = "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\n\r\n" + content;
     assertEquals(expected, out.getString());
 
     try {
@@ -105,4 +114,206 @@ public class ResponseTest {
       // Expected.
     }
   }
+
+  @Test
+  public void testFileBody() throws IOException {
+    File file = File.createTempFile("response", ".txt");
+    file.deleteOnExit();
+    FileOutputStream fileOut = new FileOutputStream(file);
+    fileOut.write("0123456789".getBytes(StandardCharsets.UTF_8));
+    fileOut.close();
+
+    FileInputStream fileIn = new FileInputStream(file);
+    try {
+      StringyOutputStream out = new StringyOutputStream();
+      Response response = new Response(out);
+      response.setStatusLine(new StatusLine("HTTP/1.1", 200, "OK"));
+      response.setBody(fileIn.getChannel(), 2, 5);
+      response.flush();
+
+      String expectedStart = "HTTP/1.1 200 OK";
+      assertEquals(expectedStart, out.getString().substring(0, expectedStart.length()));
+      assertTrue(out.getString().endsWith("\n23456"));
+    } finally {
+      fileIn.close();
+    }
+  }
+
+  @Test
+  public void testGatheredWrite() throws IOException {
+    GatheringOutputStream out = new GatheringOutputStream();
+    Response response = new Response(out);
+    response.setStatusLine(StatusLine.OK);
+    response.setHeader("Content-Length", "5");
+    response.setBody(new ByteArrayInputStream("hello".getBytes(StandardCharsets.UTF_8)));
+    response.flush();
+
+    assertEquals(1, out.gatheredWrites);
+    assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello", out.getString());
+  }
+
+  @Test
+  public void testBufferBody() throws IOException {
+    ByteBuffer direct = ByteBuffer.allocateDirect(5);
+    direct.put("world".getBytes(StandardCharsets.UTF_8)).flip();
+    StringyOutputStream out = new StringyOutputStream();
+    Response response = new Response(out);
+    response.setKeepAlive(true);
+    response.setStatusLine(StatusLine.OK);
+    response.setBodyBuffers(
+        ByteBuffer.wrap("hello ".getBytes(StandardCharsets.UTF_8)), direct.asReadOnlyBuffer());
+    response.flush();
+
+    assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 11\r\n\r\nhello world", out.getString());
+    // The buffers given are left as they were.
+    assertEquals(0, direct.position());
+  }
+
+  @Test
+  public void testChunkedBody() throws IOException {
+    StringyOutputStream out = new StringyOutputStream();
+    Response response = new Response(out);
+    response.setKeepAlive(true);
+    response.setChunkingAllowed(true);
+    response.setStatusLine(StatusLine.OK);
+    response.setBody(new ByteArrayInputStream(new byte[5000]) {
+      @Override
+      public synchronized int read(byte[] b, int off, int len) {
+        // Deliver the body in pieces, as a generated body would arrive.
+        return super.read(b, off, Math.min(len, 3000));
+      }
+    });
+    response.flush();
+
+    String output = out.getString();
+    String expectedHead = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n";
+    assertEquals(expectedHead, output.substring(0, expectedHead.length()));
+    String chunks = output.substring(expectedHead.length());
+    assertTrue(chunks.startsWith("bb8\r\n"));
+    assertTrue(chunks.contains("\r\n7d0\r\n"));
+    assertTrue(chunks.endsWith("\r\n0\r\n\r\n"));
+    assertEquals(5000 + "bb8\r\n\r\n7d0\r\n\r\n0\r\n\r\n".length(), chunks.length());
+    assertTrue(response.isKeepAlive());
+  }
+
+  @Test
+  public void testUnknownLengthWithoutChunking() throws IOException {
+    StringyOutputStream out = new StringyOutputStream();
+    Response response = new Response(out);
+    response.setKeepAlive(true);
+    response.setStatusLine(StatusLine.OK);
+    response.setBody(new ByteArrayInputStream(new byte[] {'a', 'b'}));
+    response.flush();
+
+    assertEquals("HTTP/1.1 200 OK\r\nConnection: close\r\n\r\nab", out.getString());
+    assertFalse(response.isKeepAlive());
+  }
+
+  @Test
+  public void testOutputStream_knownLength() throws IOException {
+    GatheringOutputStream out = new GatheringOutputStream();
+    Response response = new Response(out);
+    response.setKeepAlive(true);
+    response.setChunkingAllowed(true);
+    response.setStatusLine(StatusLine.OK);
+    OutputStream body = response.getOutputStream();
+    body.write("hello ".getBytes(StandardCharsets.UTF_8));
+    // Headers may change until output is committed.
+    response.setHeader("Content-Type", "text/plain");
+    body.write("world".getBytes(StandardCharsets.UTF_8));
+    body.close();
+
+    assertEquals(
+        "HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: 11\r\n\r\nhello world",
+        out.getString());
+    assertEquals(1, out.gatheredWrites);
+    assertTrue(response.isKeepAlive());
+  }
+
+  @Test
+  public void testOutputStream_flushCommits() throws IOException {
+    StringyOutputStream out = new StringyOutputStream();
+    Response response = new Response(out);
+    response.setKeepAlive(true);
+    response.setChunkingAllowed(true);
+    response.setStatusLine(StatusLine.OK);
+    OutputStream body = response.getOutputStream();
+    body.write("abc".getBytes(StandardCharsets.UTF_8));
+    body.flush();
+
+    assertEquals(
+        "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n", out.getString());
+    try {
+      response.setHeader("Date", "now");
+      fail("Modified header after output committed");
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+
+    body.write("de".getBytes(StandardCharsets.UTF_8));
+    response.flush();
+    assertTrue(out.getString().endsWith("3\r\nabc\r\n2\r\nde\r\n0\r\n\r\n"));
+    assertTrue(response.isKeepAlive());
+  }
+
+  @Test
+  public void testOutputStream_setBodyRejected() throws IOException {
+    Response response = new Response(new StringyOutputStream());
+    response.setStatusLine(StatusLine.OK);
+    response.getOutputStream();
+    try {
+      response.setBody(new ByteArrayInputStream(new byte[1]));
+      fail("Set body while streaming");
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testBuffersReleased() throws IOException {
+    BufferPool pool = BufferPool.getDefault();
+    long outstanding = pool.getOutstanding();
+
+    Response response = new Response(new StringyOutputStream());
+    response.setStatusLine(StatusLine.OK);
+    response.setBody(new ByteArrayInputStream(new byte[10000]));
+    response.flush();
+    assertEquals(outstanding, pool.getOutstanding());
+
+    StringyOutputStream out = new StringyOutputStream();
+    response = new Response(out);
+    response.setKeepAlive(true);
+    response.setChunkingAllowed(true);
+    response.setStatusLine(StatusLine.OK);
+    response.setBody(new ByteArrayInputStream(new byte[10000]));
+    response.flush();
+    assertTrue(out.getString().contains("Transfer-Encoding: chunked"));
+    assertEquals(outstanding, pool.getOutstanding());
+
+    response = new Response(new StringyOutputStream());
+    response.setKeepAlive(true);
+    response.setChunkingAllowed(true);
+    response.setStatusLine(StatusLine.OK);
+    OutputStream body = response.getOutputStream();
+    body.write(new byte[100]);
+    body.flush();
+    body.write(new byte[100]);
+    body.close();
+    assertEquals(outstanding, pool.getOutstanding());
+  }
+
+  /** Records the number of gathering writes made to it. */
+  private static final class GatheringOutputStream extends StringyOutputStream
+      implements GatheringTarget {
+    int gatheredWrites;
+
+    @Override
+    public void writeGathered(ByteBuffer[] buffers) throws IOException {
+      gatheredWrites++;
+      for (ByteBuffer buffer : buffers) {
+        write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        buffer.position(buffer.limit());
+      }
+    }
+  }
 }
@@ -7,6 +7,7 @@ import org.junit.runners.Suite.SuiteClasses;
 @RunWith(Suite.class)
 @SuiteClasses({
   CasualServerTest.class,
+  MethodTest.class,
   RequestLineTest.class,
   RequestTest.class,
   ResponseTest.class,
@@ -2,6 +2,8 @@ package spikedog.casual.server;
 
 import static org.junit.Assert.assertEquals;
 
+import java.nio.charset.StandardCharsets;
+
 import org.junit.Test;
 
 public class StatusLineTest {
@@ -10,4 +12,13 @@ public class StatusLineTest {
     StatusLine statusLine = new StatusLine("HTTP/1.1", 200, "OK");
     assertEquals("HTTP/1.1 200 OK", statusLine.toString());
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testEncoded() {
+    StatusLine statusLine = new StatusLine("HTTP/1.1", 404, "Not Found");
+    assertEquals("HTTP/1.1 404 Not Found\r\n",
+        new String(statusLine.getEncoded(), StandardCharsets.ISO_8859_1));
+    assertEquals("HTTP/1.1 200 OK\r\n",
+        new String(StatusLine.OK.getEncoded(), StandardCharsets.ISO_8859_1));
+  }
+}
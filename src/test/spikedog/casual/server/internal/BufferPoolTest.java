@@ -0,0 +1,59 @@
+package spikedog.casual.server.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+  @Test
+  public void testSizeClasses() {
+    BufferPool pool = new BufferPool(4);
+    assertEquals(BufferPool.MIN_SIZE, pool.acquire(1).length);
+    assertEquals(BufferPool.MIN_SIZE, pool.acquire(BufferPool.MIN_SIZE).length);
+    assertEquals(1024, pool.acquire(BufferPool.MIN_SIZE + 1).length);
+    assertEquals(8192, pool.acquire(5000).length);
+    assertEquals(BufferPool.MAX_SIZE, pool.acquire(BufferPool.MAX_SIZE).length);
+    assertEquals(5, pool.getOutstanding());
+  }
+
+  @Test
+  public void testReuse() {
+    BufferPool pool = new BufferPool(4);
+    byte[] first = pool.acquire(4096);
+    byte[] second = pool.acquire(4096);
+    assertNotSame(first, second);
+    pool.release(first);
+    pool.release(second);
+    assertEquals(0, pool.getOutstanding());
+
+    // Most recently released first.
+    assertSame(second, pool.acquire(4000));
+    assertSame(first, pool.acquire(4096));
+    assertNotSame(first, pool.acquire(4096));
+  }
+
+  @Test
+  public void testMaxRetained() {
+    BufferPool pool = new BufferPool(1);
+    byte[] first = pool.acquire(512);
+    byte[] second = pool.acquire(512);
+    pool.release(first);
+    pool.release(second);
+
+    assertSame(first, pool.acquire(512));
+    assertNotSame(second, pool.acquire(512));
+  }
+
+  @Test
+  public void testOversizeNotPooled() {
+    BufferPool pool = new BufferPool(4);
+    byte[] large = pool.acquire(BufferPool.MAX_SIZE + 1);
+    assertEquals(BufferPool.MAX_SIZE + 1, large.length);
+    assertEquals(0, pool.getOutstanding());
+    pool.release(large);
+    assertEquals(0, pool.getOutstanding());
+    assertNotSame(large, pool.acquire(BufferPool.MAX_SIZE + 1));
+  }
+}
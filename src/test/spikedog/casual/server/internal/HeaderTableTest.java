@@ -0,0 +1,102 @@
+package spikedog.casual.server.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class HeaderTableTest {
+  @Test
+  public void testLookup() {
+    HeaderTable table = parse(
+        "Host: example.com\r\n"
+        + "Content-Length:12\r\n"
+        + "X-Empty:\r\n"
+        + "Accept:  text/html , text/plain \t\r\n"
+        + "\r\n");
+
+    assertEquals(4, table.size());
+    assertEquals(Arrays.asList("example.com"), table.getValues("Host"));
+    assertEquals(Arrays.asList("example.com"), table.getValues("HOST"));
+    assertEquals(Arrays.asList("12"), table.getValues("content-length"));
+    assertEquals(Arrays.asList("text/html", "text/plain"), table.getValues("Accept"));
+    assertEquals(Arrays.asList(""), table.getValues("X-Empty"));
+    assertNull(table.getValues("Hos"));
+    assertNull(table.getValues("Accept-Encoding"));
+
+    // Values are only decoded once.
+    assertSame(table.getValues("Host"), table.getValues("host"));
+  }
+
+  @Test
+  public void testRepeatedHeaders() {
+    HeaderTable table = parse("Accept: a\r\nHost: h\r\naccept: b, c\r\n\r\n");
+    assertEquals(Arrays.asList("a", "b", "c"), table.getValues("ACCEPT"));
+
+    Map<String, List<String>> map = table.toMap();
+    assertEquals(Arrays.asList("accept", "host"), Arrays.asList(map.keySet().toArray()));
+    assertEquals(Arrays.asList("a", "b", "c"), map.get("accept"));
+  }
+
+  @Test
+  public void testListSplitting() {
+    HeaderTable table = parse(
+        "If-None-Match: \"a,b\", W/\"c\\\",d\",,\"e\"\r\n"
+        + "Accept-Encoding: , gzip ,\r\n"
+        + "X-Commas: ,,\r\n"
+        + "X-Escape: \"x\\\r\n"
+        + "\r\n");
+
+    assertEquals(Arrays.asList("\"a,b\"", "W/\"c\\\",d\"", "\"e\""),
+        table.getValues("If-None-Match"));
+    assertEquals(Arrays.asList("gzip"), table.getValues("Accept-Encoding"));
+    assertEquals(Arrays.asList(), table.getValues("X-Commas"));
+    // An escape at the end of the value does not lose the element.
+    assertEquals(Arrays.asList("\"x\\"), table.getValues("X-Escape"));
+  }
+
+  @Test
+  public void testSingleValued() {
+    HeaderTable table = parse(
+        "Date: Sun, 06 Nov 1994 08:49:37 GMT\r\n"
+        + "Cookie: a=1, b=2\r\n"
+        + "user-agent: Mozilla/5.0 (X11, Linux)\r\n"
+        + "Cookie: c=3\r\n"
+        + "\r\n");
+
+    assertEquals(Arrays.asList("Sun, 06 Nov 1994 08:49:37 GMT"), table.getValues("date"));
+    assertEquals(Arrays.asList("a=1, b=2", "c=3"), table.getValues("Cookie"));
+    assertEquals(Arrays.asList("Mozilla/5.0 (X11, Linux)"), table.getValues("User-Agent"));
+  }
+
+  @Test
+  public void testMalformed() {
+    try {
+      parse("Host: h\r\nno colon\r\n\r\n");
+      fail("Parsed header line without a colon");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testCopied() {
+    byte[] buffer = "Host: before\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    HeaderTable table = HeaderTable.parse(buffer, 0, buffer.length);
+    // The buffer is reused for the next request.
+    Arrays.fill(buffer, (byte) 'x');
+    assertEquals(Arrays.asList("before"), table.getValues("Host"));
+  }
+
+  private static HeaderTable parse(String headers) {
+    byte[] buffer = ("GET / HTTP/1.1\r\n" + headers).getBytes(StandardCharsets.ISO_8859_1);
+    return HeaderTable.parse(buffer, 16, buffer.length);
+  }
+}
@@ -6,6 +6,9 @@ import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
 @SuiteClasses({
+  BufferPoolTest.class,
+  HeaderTableTest.class,
+  SelectorLoopTest.class,
   SocketConfigResolverTest.class,
   StreamRequestBuilderTest.class
 })
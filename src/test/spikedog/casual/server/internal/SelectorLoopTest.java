@@ -0,0 +1,214 @@
+package spikedog.casual.server.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static spikedog.casual.server.testutils.Streams.stringFromStream;
+
+import spikedog.casual.server.Request;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SelectorLoopTest {
+  private static final String RESPONSE = "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello";
+
+  private ExecutorService executor;
+  private SelectorLoop loop;
+  private volatile Request lastRequest;
+  private volatile String lastBody;
+  private final CountDownLatch floodFailed = new CountDownLatch(1);
+
+  @Before
+  public void setUp() throws Exception {
+    executor = Executors.newSingleThreadExecutor();
+    loop = new SelectorLoop(0, executor, new SocketConfigResolver(null),
+        new SelectorLoop.RequestHandler() {
+          @Override
+          public boolean handleRequest(Request request, OutputStream out, boolean keepAlive) {
+            lastRequest = request;
+            lastBody = stringFromStream(request.getBody());
+            try {
+              if (request.getRequestLine().getUri().equals("/direct")) {
+                // Body from a direct buffer, as a mapped file would be sent.
+                byte[] response = RESPONSE.getBytes(StandardCharsets.US_ASCII);
+                int headLength = RESPONSE.indexOf("hello");
+                ByteBuffer body = ByteBuffer.allocateDirect(response.length - headLength);
+                body.put(response, headLength, body.capacity()).flip();
+                ((GatheringTarget) out).writeGathered(new ByteBuffer[] {
+                    ByteBuffer.wrap(response, 0, headLength), body});
+              } else if (request.getRequestLine().getUri().equals("/flood")) {
+                // More than the client reads, so writing blocks once the queue is full.
+                try {
+                  while (true) {
+                    out.write(new byte[8192]);
+                  }
+                } catch (IOException e) {
+                  floodFailed.countDown();
+                }
+              } else {
+                out.write(RESPONSE.getBytes(StandardCharsets.US_ASCII));
+              }
+            } catch (IOException e) {
+              throw new RuntimeException(e);
+            }
+            return keepAlive && "keep-alive".equals(request.getFirstHeaderValue("connection"));
+          }
+        });
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          loop.run();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }).start();
+    while (loop.getLocalPort() < 0) {
+      Thread.sleep(10);
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    loop.stop();
+    executor.shutdown();
+  }
+
+  @Test
+  public void testBasicGet() throws Exception {
+    String response = makeRequest("GET /foo HTTP/1.1\r\nHost: bar\r\n\r\n");
+    assertEquals(RESPONSE, response);
+    assertEquals("/foo", lastRequest.getRequestLine().getUri());
+    assertEquals("bar", lastRequest.getFirstHeaderValue("host"));
+    assertEquals(null, lastBody);
+  }
+
+  @Test
+  public void testDirectBuffer() throws Exception {
+    assertEquals(RESPONSE, makeRequest("GET /direct HTTP/1.1\r\nHost: bar\r\n\r\n"));
+  }
+
+  @Test
+  public void testBodyAcrossWrites() throws Exception {
+    Socket socket = new Socket("localhost", loop.getLocalPort());
+    OutputStream out = socket.getOutputStream();
+    out.write("POST / HTTP/1.1\r\nContent-Le".getBytes(StandardCharsets.US_ASCII));
+    out.flush();
+    Thread.sleep(50);
+    out.write("ngth: 12\r\n\r\nsome ".getBytes(StandardCharsets.US_ASCII));
+    out.flush();
+    Thread.sleep(50);
+    out.write("content".getBytes(StandardCharsets.US_ASCII));
+    out.flush();
+    String response = stringFromStream(socket.getInputStream());
+    socket.close();
+
+    assertEquals(RESPONSE, response);
+    assertEquals("POST", lastRequest.getRequestLine().getMethod());
+    assertEquals("some content", lastBody);
+  }
+
+  @Test
+  public void testKeepAlive() throws Exception {
+    String response = makeRequest(
+        "GET /first HTTP/1.1\r\nConnection: keep-alive\r\n\r\n"
+        + "POST /second HTTP/1.1\r\nContent-Length: 3\r\n\r\nfoo");
+    assertEquals(RESPONSE + RESPONSE, response);
+    assertEquals("/second", lastRequest.getRequestLine().getUri());
+    assertEquals("foo", lastBody);
+  }
+
+  @Test
+  public void testPipelinedAfterHalfClose() throws Exception {
+    Socket socket = new Socket("localhost", loop.getLocalPort());
+    try {
+      socket.getOutputStream().write((
+          "GET /first HTTP/1.1\r\nConnection: keep-alive\r\n\r\n"
+          + "GET /second HTTP/1.1\r\nConnection: keep-alive\r\n\r\n"
+          + "GET /third HTTP/1.1\r\nConnection: keep-alive\r\n\r\n")
+          .getBytes(StandardCharsets.US_ASCII));
+      socket.shutdownOutput();
+      assertEquals(RESPONSE + RESPONSE + RESPONSE, stringFromStream(socket.getInputStream()));
+      assertEquals("/third", lastRequest.getRequestLine().getUri());
+    } finally {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void testChunkedRequestRejected() throws Exception {
+    String response = makeRequest("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n");
+    assertEquals("HTTP/1.1 411", response.substring(0, "HTTP/1.1 411".length()));
+  }
+
+  @Test
+  public void testBadRequest() throws Exception {
+    String response = makeRequest("nonsense\r\n\r\n");
+    assertEquals("HTTP/1.1 400", response.substring(0, "HTTP/1.1 400".length()));
+  }
+
+  @Test
+  public void testConflictingContentLength() throws Exception {
+    // Were either length trusted, the body would be read as a request.
+    String response = makeRequest(
+        "POST / HTTP/1.1\r\nContent-Length: 0\r\nContent-Length: 24\r\n\r\n"
+        + "GET / HTTP/1.1\r\n\r\n");
+    assertTrue(response, response.startsWith("HTTP/1.1 400"));
+    assertFalse(response, response.contains("200 OK"));
+  }
+
+    @Test
+  public void testPipelinedBadRequest() throws Exception {
+    Socket socket = new Socket("localhost", loop.getLocalPort());
+    try {
+      // Fails rather than hangs if the error response is never sent.
+      socket.setSoTimeout(5000);
+      socket.getOutputStream().write((
+          "GET /first HTTP/1.1\r\nConnection: keep-alive\r\n\r\n"
+          + "nonsense\r\n\r\n")
+          .getBytes(StandardCharsets.US_ASCII));
+      String response = stringFromStream(socket.getInputStream());
+      assertTrue(response, response.startsWith(RESPONSE + "HTTP/1.1 400"));
+    } finally {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void testStopWakesBlockedWriter() throws Exception {
+    Socket socket = new Socket("localhost", loop.getLocalPort());
+    try {
+      socket.getOutputStream().write(
+          "GET /flood HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+      // Never read, so the handler fills the socket and then the output queue.
+      Thread.sleep(500);
+      loop.stop();
+      assertTrue(floodFailed.await(5, TimeUnit.SECONDS));
+    } finally {
+      socket.close();
+    }
+  }
+
+  private String makeRequest(String request) throws IOException {
+    Socket socket = new Socket("localhost", loop.getLocalPort());
+    try {
+      socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+      return stringFromStream(socket.getInputStream());
+    } finally {
+      socket.close();
+    }
+  }
+}
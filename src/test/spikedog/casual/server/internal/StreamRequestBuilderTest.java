@@ -1,13 +1,22 @@
 package spikedog.casual.server.internal;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static spikedog.casual.server.testutils.Streams.stringFromStream;
 
+import spikedog.casual.server.Method;
 import spikedog.casual.server.Request;
+import spikedog.casual.server.RequestLine;
 import spikedog.casual.server.testutils.StringyInputStream;
+import spikedog.casual.server.util.Constants;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 
 import org.junit.Test;
 
@@ -17,6 +26,7 @@ public class StreamRequestBuilderTest {
     String requestString =
         "GET / HTTP/1.1\r\n"
         + "Host: foo\r\n"
+        + "Content-Length: 7\r\n"
         + "\r\n"
         + "content";
     InputStream stream = new StringyInputStream(requestString);
@@ -31,7 +41,7 @@ public class StreamRequestBuilderTest {
     assertEquals(1, request.getHeaderValues("Host").size());
     assertEquals("foo", request.getHeaderValues("Host").get(0));
     assertEquals("foo", request.getFirstHeaderValue("Host"));
-    assertEquals(1, request.getAllHeaders().size());
+    assertEquals(2, request.getAllHeaders().size());
 
     // Check content.
     assertEquals("content", stringFromStream(request.getBody()));
@@ -43,6 +53,7 @@ public class StreamRequestBuilderTest {
         "GET / HTTP/1.1\r\n"
         + "Host: some host  I guess   \r\n"
         + "Date:    now is the time \r\n"
+        + "Content-Length: 12\r\n"
         + "\r\n"
         + "some content";
     InputStream stream = new StringyInputStream(requestString);
@@ -54,7 +65,7 @@ public class StreamRequestBuilderTest {
     assertEquals("HTTP/1.1", request.getRequestLine().getHttpVersion());
 
     // Check headers.
-    assertEquals(2, request.getAllHeaders().size());
+    assertEquals(3, request.getAllHeaders().size());
 
     assertEquals(1, request.getHeaderValues("Host").size());
     assertEquals("some host  I guess", request.getHeaderValues("Host").get(0));
@@ -74,6 +85,7 @@ public class StreamRequestBuilderTest {
         "POST /blah.html HTTP/2.0\r\n"
         + "Host: foo\r\n"
         + "Date: now\r\n"
+        + "Content-Length: 12\r\n"
         + "\r\n"
         + "some content";
     InputStream stream = new StringyInputStream(requestString);
@@ -85,7 +97,7 @@ public class StreamRequestBuilderTest {
     assertEquals("HTTP/2.0", request.getRequestLine().getHttpVersion());
 
     // Check headers.
-    assertEquals(2, request.getAllHeaders().size());
+    assertEquals(3, request.getAllHeaders().size());
 
     assertEquals(1, request.getHeaderValues("Host").size());
     assertEquals("foo", request.getHeaderValues("Host").get(0));
@@ -103,9 +115,11 @@ public class StreamRequestBuilderTest {
   public void testMultiValueHeaders() throws IOException {
     String requestString =
         "PUT /index.html%20 HTTP/1.0\r\n"
-        + "Host: foo,bar\r\n"
-        + "Date: now,tomorrow, yesterday\r\n"
+        + "Accept: foo,bar\r\n"
+        + "Cache-Control: now,tomorrow, yesterday\r\n"
         + "Accept-Encoding: test\r\n"
+        + "Date: Sun, 06 Nov 1994 08:49:37 GMT\r\n"
+        + "Content-Length: 17\r\n"
         + "\r\n"
         + "some more content";
     InputStream stream = new StringyInputStream(requestString);
@@ -117,31 +131,277 @@ public class StreamRequestBuilderTest {
     assertEquals("HTTP/1.0", request.getRequestLine().getHttpVersion());
 
     // Check headers.
-    assertEquals(3, request.getAllHeaders().size());
+    assertEquals(5, request.getAllHeaders().size());
 
-    assertEquals(2, request.getHeaderValues("Host").size());
-    assertEquals("foo", request.getHeaderValues("Host").get(0));
-    assertEquals("bar", request.getHeaderValues("Host").get(1));
-    assertEquals("foo", request.getFirstHeaderValue("Host"));
+    assertEquals(2, request.getHeaderValues("Accept").size());
+    assertEquals("foo", request.getHeaderValues("Accept").get(0));
+    assertEquals("bar", request.getHeaderValues("Accept").get(1));
+    assertEquals("foo", request.getFirstHeaderValue("Accept"));
 
-    assertEquals(3, request.getHeaderValues("Date").size());
-    assertEquals("now", request.getHeaderValues("Date").get(0));
-    assertEquals("tomorrow", request.getHeaderValues("Date").get(1));
-    assertEquals("yesterday", request.getHeaderValues("Date").get(2));
-    assertEquals("now", request.getFirstHeaderValue("Date"));
+    assertEquals(3, request.getHeaderValues("Cache-Control").size());
+    assertEquals("now", request.getHeaderValues("Cache-Control").get(0));
+    assertEquals("tomorrow", request.getHeaderValues("Cache-Control").get(1));
+    assertEquals("yesterday", request.getHeaderValues("Cache-Control").get(2));
+    assertEquals("now", request.getFirstHeaderValue("Cache-Control"));
+
+    // Dates are not lists, so are kept whole.
+    assertEquals(1, request.getHeaderValues("Date").size());
+    assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", request.getFirstHeaderValue("Date"));
 
     // Check content.
     assertEquals("some more content", stringFromStream(request.getBody()));
   }
 
+  @Test
+  public void testParseRequestLine() {
+    RequestLine line = parseRequestLine("GET /a?b=c HTTP/1.1");
+    assertEquals(Method.GET, line.getMethodToken());
+    // Shares the name rather than copying it from the buffer.
+    assertSame(Constants.METHOD_GET, line.getMethod());
+    assertEquals("/a?b=c", line.getUri());
+    assertSame(Constants.VERISON_HTTP_1_1, line.getHttpVersion());
+
+    line = parseRequestLine("delete /x HTTP/1.1");
+    assertEquals(Method.DELETE, line.getMethodToken());
+    assertEquals("delete", line.getMethod());
+
+    line = parseRequestLine("PATCH /x HTTP/1.1");
+    assertEquals(Method.OTHER, line.getMethodToken());
+    assertEquals("PATCH", line.getMethod());
+
+    line = parseRequestLine("GET /caf\u00e9 HTTP/2.0");
+    assertEquals("/caf\u00e9", line.getUri());
+    assertEquals("HTTP/2.0", line.getHttpVersion());
+
+    String[] invalid = {
+      "", "GET", "GET /", "GET HTTP/1.1", "GET  / HTTP/1.1", "GET / HTTP/1.1 x", " / HTTP/1.1",
+      "GE(T / HTTP/1.1", "GET /a\tb HTTP/1.1", "GET / http/1.1", "GET / HTTP/1.x", "GET / HTTP/11"
+    };
+    for (String requestLine : invalid) {
+      try {
+        parseRequestLine(requestLine);
+        fail("Parsed " + requestLine);
+      } catch (IllegalArgumentException e) {
+        // Expected.
+      }
+    }
+  }
+
   @Test
   public void testMultilineContent() throws IOException {
     String contentString =
         "this is \nsome content\r\n spread over seve\nral lines!\n\n\n";
     String requestString =
-        "GET / HTTP/1.1\r\nHost: foo\r\n\r\n" + contentString;
+        "GET / HTTP/1.1\r\nHost: foo\r\nContent-Length: " + contentString.length() + "\r\n\r\n"
+        + contentString;
     InputStream stream = new StringyInputStream(requestString);
     Request request = StreamRequestBuilder.buildRequestFromStream(stream);
     assertEquals(contentString, stringFromStream(request.getBody()));
   }
+
+  @Test
+  public void testHeadSplitAcrossReads() throws IOException {
+    String requestString =
+        "GET /split HTTP/1.1\r\n"
+        + "Host: foo\r\n"
+        + "Content-Length: 7\r\n"
+        + "\r\n"
+        + "content";
+    // Hand out at most three bytes per read.
+    InputStream stream = new FilterInputStream(new StringyInputStream(requestString)) {
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return super.read(b, off, Math.min(len, 3));
+      }
+    };
+    Request request = StreamRequestBuilder.buildRequestFromStream(stream);
+    assertEquals("/split", request.getRequestLine().getUri());
+    assertEquals("foo", request.getFirstHeaderValue("Host"));
+    assertEquals("content", stringFromStream(request.getBody()));
+  }
+
+  @Test
+  public void testConsecutiveDelimitedRequests() throws IOException {
+    String requestString =
+        "POST /first HTTP/1.1\r\n"
+        + "Content-Length: 5\r\n"
+        + "\r\n"
+        + "hello"
+        + "GET /second HTTP/1.1\r\n"
+        + "\r\n";
+    RequestInputStream stream = new RequestInputStream(new StringyInputStream(requestString));
+
+    Request first = StreamRequestBuilder.buildDelimitedRequestFromStream(stream);
+    assertEquals("/first", first.getRequestLine().getUri());
+    assertEquals("hello", stringFromStream(first.getBody()));
+
+    Request second = StreamRequestBuilder.buildDelimitedRequestFromStream(stream);
+    assertEquals("/second", second.getRequestLine().getUri());
+    assertEquals(null, stringFromStream(second.getBody()));
+    assertFalse(stream.awaitData());
+  }
+
+  @Test
+  public void testBodyBoundedByContentLength() throws IOException {
+    String requestString =
+        "POST / HTTP/1.1\r\n"
+        + "Content-Length: 5\r\n"
+        + "\r\n"
+        + "helloGET /next HTTP/1.1";
+    Request request =
+        StreamRequestBuilder.buildRequestFromStream(new StringyInputStream(requestString));
+    assertEquals("hello", stringFromStream(request.getBody()));
+  }
+
+  @Test
+  public void testDuplicateContentLength() throws IOException {
+    String requestString =
+        "POST / HTTP/1.1\r\n"
+        + "Content-Length: 5\r\n"
+        + "Content-Length: 5\r\n"
+        + "\r\n"
+        + "hello";
+    Request request =
+        StreamRequestBuilder.buildRequestFromStream(new StringyInputStream(requestString));
+    assertEquals("hello", stringFromStream(request.getBody()));
+  }
+
+  @Test
+  public void testConflictingContentLength() throws IOException {
+    assertContentLengthRejected("Content-Length: 5\r\nContent-Length: 7\r\n");
+    assertContentLengthRejected("Content-Length: 5, 7\r\n");
+  }
+
+  @Test
+  public void testInvalidContentLength() throws IOException {
+    assertContentLengthRejected("Content-Length: five\r\n");
+    assertContentLengthRejected("Content-Length: -5\r\n");
+    assertContentLengthRejected("Content-Length: +5\r\n");
+    assertContentLengthRejected("Content-Length: 99999999999999999999\r\n");
+  }
+
+  @Test
+  public void testChunkedBody() throws IOException {
+    String requestString =
+        "POST /upload HTTP/1.1\r\n"
+        + "Transfer-Encoding: chunked\r\n"
+        + "\r\n"
+        + "5\r\nhello\r\n"
+        + "7;name=value\r\n world!\r\n"
+        + "0\r\n"
+        + "X-Trailer: ignored\r\n"
+        + "\r\n"
+        + "GET /second HTTP/1.1\r\n"
+        + "\r\n";
+    RequestInputStream stream = new RequestInputStream(new StringyInputStream(requestString));
+
+    Request first = StreamRequestBuilder.buildDelimitedRequestFromStream(stream);
+    assertTrue(StreamRequestBuilder.hasDelimitedBody(first));
+    assertEquals("hello world!", stringFromStream(first.getBody()));
+
+    Request second = StreamRequestBuilder.buildDelimitedRequestFromStream(stream);
+    assertEquals("/second", second.getRequestLine().getUri());
+  }
+
+  @Test
+  public void testChunkedBodyReadInBulk() throws IOException {
+    String requestString =
+        "POST /upload HTTP/1.1\r\n"
+        + "Transfer-Encoding: chunked\r\n"
+        + "\r\n"
+        + "5\r\nhello\r\n"
+        + "7;name=value\r\n world!\r\n"
+        + "0\r\n"
+        + "\r\n";
+    final int[] singleByteReads = new int[1];
+    // Hand out at most three bytes per read, so lines span reads once the head is consumed.
+    InputStream stream = new FilterInputStream(new StringyInputStream(requestString)) {
+      @Override
+      public int read() throws IOException {
+        singleByteReads[0]++;
+        return super.read();
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return super.read(b, off, Math.min(len, 3));
+      }
+    };
+    RequestInputStream in = new RequestInputStream(stream, new BufferPool(1));
+    Request request = StreamRequestBuilder.buildDelimitedRequestFromStream(in);
+    // Lines are still read once the connection has ended and the buffer been returned.
+    in.release();
+    assertEquals("hello world!", stringFromStream(request.getBody()));
+    assertEquals(0, singleByteReads[0]);
+  }
+
+  @Test
+  public void testMalformedChunkedBody() throws IOException {
+    String requestString =
+        "POST / HTTP/1.1\r\n"
+        + "Transfer-Encoding: chunked\r\n"
+        + "\r\n"
+        + "zz\r\nhello\r\n";
+    Request request =
+        StreamRequestBuilder.buildRequestFromStream(new StringyInputStream(requestString));
+    try {
+      request.getBody().read(new byte[16]);
+      fail("Read chunk with malformed size.");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testChunkedTrailersTooLarge() throws IOException {
+    StringBuilder requestString = new StringBuilder(
+        "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n0\r\n");
+    // Each line is short, but together they are larger than a head may be.
+    for (int i = 0; i <= StreamRequestBuilder.MAX_HEAD_SIZE / 16; i++) {
+      requestString.append("X-Trailer: value\r\n");
+    }
+    requestString.append("\r\n");
+    Request request = StreamRequestBuilder.buildRequestFromStream(
+        new StringyInputStream(requestString.toString()));
+    InputStream body = request.getBody();
+    assertEquals(5, body.read(new byte[16]));
+    try {
+      body.read(new byte[16]);
+      fail("Read oversized trailers.");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testHeadTooLarge() throws IOException {
+    StringBuilder requestString = new StringBuilder("GET / HTTP/1.1\r\n");
+    while (requestString.length() <= StreamRequestBuilder.MAX_HEAD_SIZE) {
+      requestString.append("X-Filler: some filler value\r\n");
+    }
+    requestString.append("\r\n");
+    try {
+      StreamRequestBuilder.buildRequestFromStream(
+          new StringyInputStream(requestString.toString()));
+      fail("Parsed request with oversized head.");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  private static void assertContentLengthRejected(String headers) throws IOException {
+    String requestString = "POST / HTTP/1.1\r\n" + headers + "\r\nhello";
+    try {
+      StreamRequestBuilder.buildDelimitedRequestFromStream(
+          new RequestInputStream(new StringyInputStream(requestString)));
+      fail("Parsed request with " + headers);
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+  }
+
+    private static RequestLine parseRequestLine(String requestLine) {
+    byte[] bytes = ("  " + requestLine).getBytes(StandardCharsets.ISO_8859_1);
+    return StreamRequestBuilder.parseRequestLine(bytes, 2, bytes.length);
+  }
 }
@@ -0,0 +1,54 @@
+package spikedog.casual.server.toolkit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import spikedog.casual.server.Request;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ByteRangeTest {
+  @Test
+  public void testParse() {
+    List<ByteRange> ranges = parse(100, "bytes=0-9", "90-", "-5", "50-1000");
+    assertEquals(4, ranges.size());
+    assertRange(0, 9, ranges.get(0));
+    assertRange(90, 99, ranges.get(1));
+    assertRange(95, 99, ranges.get(2));
+    assertRange(50, 99, ranges.get(3));
+  }
+
+  @Test
+  public void testUnsatisfiableRangesDropped() {
+    List<ByteRange> ranges = parse(100, "bytes=100-", "-0", "5-6");
+    assertEquals(1, ranges.size());
+    assertRange(5, 6, ranges.get(0));
+    assertTrue(parse(100, "bytes=200-300").isEmpty());
+  }
+
+  @Test
+  public void testMalformedIgnored() {
+    assertNull(parse(100));
+    assertNull(parse(100, "lines=1-2"));
+    assertNull(parse(100, "bytes=5-2"));
+    assertNull(parse(100, "bytes=a-b"));
+    assertNull(parse(100, "bytes=7"));
+  }
+
+  private static List<ByteRange> parse(long length, String... values) {
+    Request.Builder builder = new Request.Builder();
+    if (values.length > 0) {
+      builder.setHeader("Range", Arrays.asList(values));
+    }
+    return ByteRange.parse(builder.build(), length);
+  }
+
+  private static void assertRange(long first, long last, ByteRange range) {
+    assertEquals(first, range.first);
+    assertEquals(last, range.last);
+  }
+}
@@ -0,0 +1,103 @@
+package spikedog.casual.server.toolkit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class FileCacheTest {
+  @Test
+  public void testContentCached() throws IOException {
+    File f = createFile("cached", "some content");
+    FileCache cache = new FileCache();
+
+    byte[] content = cache.getContent(f);
+    assertArrayEquals(bytes("some content"), content);
+    assertSame(content, cache.getContent(f));
+    assertEquals(content.length, cache.getSize());
+  }
+
+  @Test
+  public void testSharedWithHandles() throws IOException {
+    File f = createFile("shared", "shared content");
+    FileCache cache = new FileCache();
+    FileHandleCache handles = new FileHandleCache();
+
+    // Both find the file by its canonical path, however it was named.
+    byte[] content = cache.getContent(new File(f.getParentFile(), "./" + f.getName()));
+    FileHandleCache.Handle handle = handles.acquire(f.getAbsoluteFile());
+    assertSame(content, cache.getContent(handle, null));
+    handle.release();
+  }
+
+  @Test
+  public void testModifiedFileReloaded() throws IOException {
+    File f = createFile("modified", "before");
+    FileCache cache = new FileCache();
+    byte[] before = cache.getContent(f);
+
+    writeFile(f, "after!");
+    f.setLastModified(f.lastModified() + 2000);
+    byte[] after = cache.getContent(f);
+
+    assertNotSame(before, after);
+    assertArrayEquals(bytes("after!"), after);
+    assertEquals(after.length, cache.getSize());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEvicted() throws IOException {
+    File first = createFile("first", "0123456789");
+    File second = createFile("second", "0123456789");
+    File third = createFile("third", "0123456789");
+    FileCache cache = new FileCache(25, 10);
+
+    byte[] firstContent = cache.getContent(first);
+    byte[] secondContent = cache.getContent(second);
+    // Touch the first file so that the second becomes the least recently used.
+    cache.getContent(first);
+    cache.getContent(third);
+
+    assertEquals(20, cache.getSize());
+    assertSame(firstContent, cache.getContent(first));
+    assertNotSame(secondContent, cache.getContent(second));
+  }
+
+  @Test
+  public void testUncacheableFiles() throws IOException {
+    File large = createFile("large", "0123456789");
+    FileCache cache = new FileCache(100, 5);
+
+    assertNull(cache.getContent(large));
+    assertNull(cache.getContent(new File("nonexistent")));
+    assertEquals(0, cache.getSize());
+  }
+
+  private static File createFile(String name, String content) throws IOException {
+    File f = File.createTempFile(name, ".txt");
+    f.deleteOnExit();
+    writeFile(f, content);
+    return f;
+  }
+
+  private static void writeFile(File f, String content) throws IOException {
+    FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(bytes(content));
+    } finally {
+      out.close();
+    }
+  }
+
+  private static byte[] bytes(String content) {
+    return content.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,129 @@
+package spikedog.casual.server.toolkit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class FileHandleCacheTest {
+  @Test
+  public void testHandleShared() throws IOException {
+    File f = createFile("shared.css", "body {}");
+    FileHandleCache cache = new FileHandleCache();
+
+    FileHandleCache.Handle first = cache.acquire(f);
+    FileHandleCache.Handle second = cache.acquire(f);
+    assertSame(first, second);
+    assertSame(first.getChannel(), second.getChannel());
+    assertTrue(first.exists());
+    assertEquals(7, first.getLength());
+    assertEquals("text/css", first.getContentType());
+    assertEquals(1, cache.size());
+
+    first.release();
+    second.release();
+    // Still cached, so still open.
+    assertTrue(cache.acquire(f).getChannel().isOpen());
+  }
+
+  @Test
+  public void testCanonicalPath() throws IOException {
+    File f = createFile("aliased.css", "body {}");
+    FileHandleCache cache = new FileHandleCache();
+
+    FileHandleCache.Handle handle = cache.acquire(f);
+    assertSame(handle, cache.acquire(f.getAbsoluteFile()));
+    assertEquals(f.getCanonicalPath(), handle.getPath());
+    // Other names for the file are looked up separately, but carry the same canonical path.
+    FileHandleCache.Handle alias = cache.acquire(new File("./" + f.getPath()));
+    assertEquals(f.getCanonicalPath(), alias.getPath());
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void testMissingFileRechecked() throws IOException {
+    File f = new File("missing-for-now.css");
+    f.delete();
+    f.deleteOnExit();
+    FileHandleCache trusting = new FileHandleCache(16, 60000);
+    FileHandleCache checking = new FileHandleCache(16, 0);
+    assertFalse(trusting.acquire(f).exists());
+    assertFalse(checking.acquire(f).exists());
+
+    createFile(f.getPath(), "now here");
+    assertFalse(trusting.acquire(f).exists());
+    assertTrue(checking.acquire(f).exists());
+  }
+
+  @Test
+  public void testModifiedFileReplaced() throws IOException {
+    File f = createFile("modified.css", "before");
+    FileHandleCache cache = new FileHandleCache(16, 0);
+    FileHandleCache.Handle before = cache.acquire(f);
+    FileChannel beforeChannel = before.getChannel();
+    before.release();
+    assertSame(before, cache.acquire(f));
+    before.release();
+
+    createFile(f.getPath(), "after, and longer");
+    FileHandleCache.Handle after = cache.acquire(f);
+    assertNotSame(before, after);
+    assertEquals(17, after.getLength());
+    assertFalse(beforeChannel.isOpen());
+  }
+
+  @Test
+  public void testEvictedChannelClosedOnRelease() throws IOException {
+    File first = createFile("first.css", "1");
+    File second = createFile("second.css", "2");
+    FileHandleCache cache = new FileHandleCache(1, 60000);
+
+    FileHandleCache.Handle firstHandle = cache.acquire(first);
+    FileChannel channel = firstHandle.getChannel();
+    cache.acquire(second).release();
+    assertEquals(1, cache.size());
+    // Evicted, but still in use.
+    assertTrue(channel.isOpen());
+
+    firstHandle.release();
+    assertFalse(channel.isOpen());
+  }
+
+  @Test
+  public void testMappedSlices() throws IOException {
+    File small = createFile("unmapped.text", "0123");
+    File large = createFile("mapped.text", "0123456789");
+    FileHandleCache cache = new FileHandleCache(16, 60000, 10);
+
+    assertNull(cache.acquire(small).getMapped(0, 4));
+    ByteBuffer[] mapped = cache.acquire(large).getMapped(2, 3);
+    assertEquals(1, mapped.length);
+    assertTrue(mapped[0].isDirect());
+    byte[] slice = new byte[mapped[0].remaining()];
+    mapped[0].get(slice);
+    assertEquals("234", new String(slice, StandardCharsets.UTF_8));
+  }
+
+  private static File createFile(String name, String content) throws IOException {
+    File f = new File(name);
+    f.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(content.getBytes(StandardCharsets.UTF_8));
+    } finally {
+      out.close();
+    }
+    return f;
+  }
+}
@@ -1,17 +1,23 @@
 package spikedog.casual.server.toolkit;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import spikedog.casual.server.Request;
 import spikedog.casual.server.Response;
 import spikedog.casual.server.testutils.StringyOutputStream;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.Test;
 
@@ -39,10 +45,10 @@ public class FileServeHelperTest {
     Response response = new Response(out);
     FileServeHelper.serveFile(f, response, "madness");
     String expectedResponseString =
-        "HTTP/1.1 200 OK\n"
-        + "Content-Type: madness\n"
-        + "Content-Length: " + contentString.length() + "\n"
-        + "\n"
+        "HTTP/1.1 200 OK\r\n"
+        + "Content-Type: madness\r\n"
+        + "Content-Length: " + contentString.length() + "\r\n"
+        + "\r\n"
         + contentString;
     assertEquals(expectedResponseString, out.getString());
   }
@@ -56,10 +62,10 @@ public class FileServeHelperTest {
     Response response = new Response(out);
     FileServeHelper.serveFile(f, response);
     String expectedResponseString =
-        "HTTP/1.1 200 OK\n"
-        + "Content-Type: text/javascript; charset=UTF-8\n"
-        + "Content-Length: " + contentString.length() + "\n"
-        + "\n"
+        "HTTP/1.1 200 OK\r\n"
+        + "Content-Type: text/javascript; charset=UTF-8\r\n"
+        + "Content-Length: " + contentString.length() + "\r\n"
+        + "\r\n"
         + contentString;
     assertEquals(expectedResponseString, out.getString());
   }
@@ -73,14 +79,340 @@ public class FileServeHelperTest {
     Response response = new Response(out);
     FileServeHelper.serveFile(f, response);
     String expectedResponseString =
-        "HTTP/1.1 200 OK\n"
-        + "Content-Type: text/html; charset=UTF-8\n"
-        + "Content-Length: " + contentString.length() + "\n"
-        + "\n"
+        "HTTP/1.1 200 OK\r\n"
+        + "Content-Type: text/html; charset=UTF-8\r\n"
+        + "Content-Length: " + contentString.length() + "\r\n"
+        + "\r\n"
         + contentString;
     assertEquals(expectedResponseString, out.getString());
   }
 
+  @Test
+  public void testCachedFile() throws IOException {
+    String contentString = "body { color: red; }";
+    File f = createFakeFile("cached.css", contentString.getBytes(StandardCharsets.UTF_8));
+    f.deleteOnExit();
+    FileCache cache = new FileCache();
+    String expectedResponseString =
+        "HTTP/1.1 200 OK\r\n"
+        + "Content-Type: text/css\r\n"
+        + "Content-Length: " + contentString.length() + "\r\n"
+        + "\r\n"
+        + contentString;
+
+    for (int i = 0; i < 2; i++) {
+      StringyOutputStream out = new StringyOutputStream();
+      FileServeHelper.serveFile(f, new Response(out), cache);
+      assertEquals(expectedResponseString, out.getString());
+    }
+    assertEquals(contentString.length(), cache.getSize());
+  }
+
+  @Test
+  public void testCompressedWhenAccepted() throws IOException {
+    byte[] content = compressibleContent();
+    File f = createFakeFile("compressed.css", content);
+    f.deleteOnExit();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FileServeHelper.serveFile(
+        f, acceptEncoding("deflate;q=0.5", "gzip"), new Response(out), null);
+
+    String head = getHead(out.toByteArray());
+    assertTrue(head.contains("\r\nContent-Encoding: gzip\r\n"));
+    assertTrue(head.contains("\r\nVary: Accept-Encoding\r\n"));
+    assertArrayEquals(content, gunzip(getBody(out.toByteArray())));
+  }
+
+  @Test
+  public void testCompressedVariantCached() throws IOException {
+    byte[] content = compressibleContent();
+    File f = createFakeFile("compressed-cached.css", content);
+    f.deleteOnExit();
+    FileCache cache = new FileCache();
+
+    for (int i = 0; i < 2; i++) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      FileServeHelper.serveFile(f, acceptEncoding("gzip"), new Response(out), cache);
+      byte[] body = getBody(out.toByteArray());
+      String head = getHead(out.toByteArray());
+      assertTrue(head.contains("\r\nContent-Length: " + body.length + "\r\n"));
+      assertArrayEquals(content, gunzip(body));
+      assertEquals(body.length, cache.getSize());
+    }
+  }
+
+  @Test
+  public void testNotCompressedWhenNotAccepted() throws IOException {
+    byte[] content = compressibleContent();
+    File f = createFakeFile("uncompressed.css", content);
+    f.deleteOnExit();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FileServeHelper.serveFile(f, acceptEncoding("gzip;q=0"), new Response(out), null);
+
+    String head = getHead(out.toByteArray());
+    assertFalse(head.contains("Content-Encoding"));
+    assertTrue(head.contains("\r\nVary: Accept-Encoding\r\n"));
+    assertArrayEquals(content, getBody(out.toByteArray()));
+  }
+
+  @Test
+  public void testPrecompressedSibling() throws IOException {
+    byte[] precompressed = "pretend this is gzip".getBytes(StandardCharsets.UTF_8);
+    File f = createFakeFile("sibling.js", "var x = 1;".getBytes(StandardCharsets.UTF_8));
+    File sibling = createFakeFile("sibling.js.gz", precompressed);
+    f.deleteOnExit();
+    sibling.deleteOnExit();
+    sibling.setLastModified(f.lastModified() + 2000);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FileServeHelper.serveFile(f, acceptEncoding("gzip"), new Response(out), null);
+
+    String head = getHead(out.toByteArray());
+    assertTrue(head.contains("\r\nContent-Type: text/javascript; charset=UTF-8\r\n"));
+    assertTrue(head.contains("\r\nContent-Encoding: gzip\r\n"));
+    assertTrue(head.contains("\r\nVary: Accept-Encoding\r\n"));
+    assertArrayEquals(precompressed, getBody(out.toByteArray()));
+  }
+
+  @Test
+  public void testPrecompressedSiblingVary() throws IOException {
+    File f = createFakeFile("sibling.png", new byte[] {1, 2, 3});
+    File sibling = createFakeFile("sibling.png.gz", new byte[] {4, 5});
+    f.deleteOnExit();
+    sibling.deleteOnExit();
+    sibling.setLastModified(f.lastModified() + 2000);
+
+    // Not a compressible type, but whether the sibling is sent depends on Accept-Encoding.
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FileServeHelper.serveFile(f, acceptEncoding("gzip"), new Response(out), null);
+    String head = getHead(out.toByteArray());
+    assertTrue(head.contains("\r\nContent-Encoding: gzip\r\n"));
+    assertTrue(head.contains("\r\nVary: Accept-Encoding\r\n"));
+
+    out = new ByteArrayOutputStream();
+    FileServeHelper.serveFile(f, new Request.Builder().build(), new Response(out), null);
+    head = getHead(out.toByteArray());
+    assertFalse(head.contains("Content-Encoding"));
+    assertTrue(head.contains("\r\nVary: Accept-Encoding\r\n"));
+    assertArrayEquals(new byte[] {1, 2, 3}, getBody(out.toByteArray()));
+  }
+
+  @Test
+  public void testNotModified_EntityTag() throws IOException {
+    File f = createFakeFile("etag.css", "body {}".getBytes(StandardCharsets.UTF_8));
+    f.deleteOnExit();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FileServeHelper.serveFile(f, new Request.Builder().build(), new Response(out), null);
+    String head = getHead(out.toByteArray());
+    int tagStart = head.indexOf("ETag: ") + "ETag: ".length();
+    String entityTag = head.substring(tagStart, head.indexOf("\r\n", tagStart));
+
+    Request.Builder builder = new Request.Builder();
+    builder.setHeader("If-None-Match", Arrays.asList("\"other\"", "W/" + entityTag));
+    StringyOutputStream notModifiedOut = new StringyOutputStream();
+    FileServeHelper.serveFile(f, builder.build(), new Response(notModifiedOut), null);
+    String notModified = notModifiedOut.getString();
+    assertTrue(notModified.startsWith("HTTP/1.1 304 Not Modified\r\n"));
+    assertTrue(notModified.contains("\r\nETag: " + entityTag + "\r\n"));
+    assertFalse(notModified.contains("body {}"));
+  }
+
+  @Test
+  public void testNotModified_Date() throws IOException {
+    File f = createFakeFile("dated.css", "body {}".getBytes(StandardCharsets.UTF_8));
+    f.deleteOnExit();
+    f.setLastModified(784111777000L);
+
+    Request.Builder builder = new Request.Builder();
+    // Split on the comma, as a naive request builder might.
+    builder.setHeader("If-Modified-Since", Arrays.asList("Sun", "06 Nov 1994 08:49:37 GMT"));
+    StringyOutputStream out = new StringyOutputStream();
+    FileServeHelper.serveFile(f, builder.build(), new Response(out), null);
+    assertTrue(out.getString().startsWith("HTTP/1.1 304 Not Modified\r\n"));
+    assertTrue(out.getString().contains("\r\nLast-Modified: Sun, 06 Nov 1994 08:49:37 GMT\r\n"));
+
+    f.setLastModified(784111777000L + 2000);
+    out = new StringyOutputStream();
+    FileServeHelper.serveFile(f, builder.build(), new Response(out), null);
+    assertTrue(out.getString().startsWith("HTTP/1.1 200 OK\r\n"));
+    assertTrue(out.getString().endsWith("\r\n\r\nbody {}"));
+  }
+
+  @Test
+  public void testSingleRange() throws IOException {
+    File f = createFakeFile("range.txt", "0123456789".getBytes(StandardCharsets.UTF_8));
+    f.deleteOnExit();
+    StringyOutputStream out = new StringyOutputStream();
+    FileServeHelper.serveFile(f, range("bytes=2-4"), new Response(out), null);
+
+    String response = out.getString();
+    assertTrue(response.startsWith("HTTP/1.1 206 Partial Content\r\n"));
+    assertTrue(response.contains("\r\nContent-Range: bytes 2-4/10\r\n"));
+    assertTrue(response.contains("\r\nContent-Length: 3\r\n"));
+    assertTrue(response.endsWith("\r\n\r\n234"));
+  }
+
+  @Test
+  public void testMultipleRanges() throws IOException {
+    File f = createFakeFile("ranges.text", "0123456789".getBytes(StandardCharsets.UTF_8));
+    f.deleteOnExit();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    // Split on commas, as the request parser does.
+    FileServeHelper.serveFile(f, range("bytes=0-1", "-3"), new Response(out), null);
+
+    String head = getHead(out.toByteArray());
+    byte[] body = getBody(out.toByteArray());
+    assertTrue(head.startsWith("HTTP/1.1 206 Partial Content\r\n"));
+    assertTrue(head.contains("\r\nContent-Length: " + body.length + "\r\n"));
+    String boundaryParameter = "multipart/byteranges; boundary=";
+    int boundaryStart = head.indexOf(boundaryParameter) + boundaryParameter.length();
+    String boundary = head.substring(boundaryStart, head.indexOf("\r\n", boundaryStart));
+
+    MultipartParser parser = new MultipartParser(new ByteArrayInputStream(body), boundary);
+    MultipartParser.Part first = parser.nextPart();
+    assertEquals("bytes 0-1/10", first.getHeader("Content-Range"));
+    assertEquals("text/plain; charset=UTF-8", first.getContentType());
+    assertArrayEquals(bytes("01"), readAll(first.getInputStream()));
+    MultipartParser.Part second = parser.nextPart();
+    assertEquals("bytes 7-9/10", second.getHeader("Content-Range"));
+    assertArrayEquals(bytes("789"), readAll(second.getInputStream()));
+    assertEquals(null, parser.nextPart());
+  }
+
+  @Test
+  public void testUnsatisfiableRange() throws IOException {
+    File f = createFakeFile("unsatisfiable.txt", "0123456789".getBytes(StandardCharsets.UTF_8));
+    f.deleteOnExit();
+    StringyOutputStream out = new StringyOutputStream();
+    FileServeHelper.serveFile(f, range("bytes=10-"), new Response(out), null);
+
+    assertTrue(out.getString().startsWith("HTTP/1.1 416 Requested Range Not Satisfiable\r\n"));
+    assertTrue(out.getString().contains("\r\nContent-Range: bytes */10\r\n"));
+  }
+
+  @Test
+  public void testStaleIfRange() throws IOException {
+    File f = createFakeFile("if-range.txt", "0123456789".getBytes(StandardCharsets.UTF_8));
+    f.deleteOnExit();
+    Request.Builder builder = new Request.Builder();
+    builder.setHeader("Range", Arrays.asList("bytes=2-4"));
+    builder.setHeader("If-Range", Arrays.asList("\"stale\""));
+    StringyOutputStream out = new StringyOutputStream();
+    FileServeHelper.serveFile(f, builder.build(), new Response(out), null);
+
+    assertTrue(out.getString().startsWith("HTTP/1.1 200 OK\r\n"));
+    assertTrue(out.getString().endsWith("\r\n\r\n0123456789"));
+  }
+
+  @Test
+  public void testHandleCache() throws IOException {
+    String contentString = "var held = true;";
+    File f = createFakeFile("held.js", contentString.getBytes(StandardCharsets.UTF_8));
+    f.deleteOnExit();
+    FileHandleCache handles = new FileHandleCache();
+
+    for (int i = 0; i < 2; i++) {
+      StringyOutputStream out = new StringyOutputStream();
+      FileServeHelper.serveFile(f, acceptEncoding("gzip"), new Response(out), null, handles);
+      assertTrue(out.getString().startsWith("HTTP/1.1 200 OK\r\n"));
+      assertTrue(out.getString().contains("\r\nContent-Type: text/javascript; charset=UTF-8\r\n"));
+      assertTrue(out.getString().endsWith("\r\n\r\n" + contentString));
+    }
+    // The file, and the absence of a precompressed sibling.
+    assertEquals(2, handles.size());
+  }
+
+  @Test
+  public void testDeletedWhileCached() throws IOException {
+    File f = createFakeFile("deleted.css", "body {}".getBytes(StandardCharsets.UTF_8));
+    f.deleteOnExit();
+    FileHandleCache handles = new FileHandleCache(16, 60000);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FileServeHelper.serveFile(f, new Request.Builder().build(), new Response(out), null, handles);
+    String head = getHead(out.toByteArray());
+    int tagStart = head.indexOf("ETag: ") + "ETag: ".length();
+    String entityTag = head.substring(tagStart, head.indexOf("\r\n", tagStart));
+
+    // Revalidation is answered from the cached metadata, leaving the file unopened.
+    handles.clear();
+    Request.Builder builder = new Request.Builder();
+    builder.setHeader("If-None-Match", Arrays.asList(entityTag));
+    StringyOutputStream notModifiedOut = new StringyOutputStream();
+    FileServeHelper.serveFile(f, builder.build(), new Response(notModifiedOut), null, handles);
+    assertTrue(notModifiedOut.getString().startsWith("HTTP/1.1 304 Not Modified\r\n"));
+
+    assertTrue(f.delete());
+    StringyOutputStream errorOut = new StringyOutputStream();
+    FileServeHelper.serveFile(
+        f, new Request.Builder().build(), new Response(errorOut), null, handles);
+    assertEquals("HTTP/1.1 500 Internal Server Error\r\n", errorOut.getString());
+  }
+
+  @Test
+  public void testMappedFile() throws IOException {
+    File f = createFakeFile("mapped.text", "0123456789".getBytes(StandardCharsets.UTF_8));
+    f.deleteOnExit();
+    FileHandleCache handles = new FileHandleCache(16, 60000, 1);
+
+    StringyOutputStream out = new StringyOutputStream();
+    FileServeHelper.serveFile(f, new Request.Builder().build(), new Response(out), null, handles);
+    assertTrue(out.getString().startsWith("HTTP/1.1 200 OK\r\n"));
+    assertTrue(out.getString().endsWith("\r\n\r\n0123456789"));
+
+    out = new StringyOutputStream();
+    FileServeHelper.serveFile(f, range("bytes=7-"), new Response(out), null, handles);
+    assertTrue(out.getString().startsWith("HTTP/1.1 206 Partial Content\r\n"));
+    assertTrue(out.getString().endsWith("\r\n\r\n789"));
+  }
+
+  private static Request range(String... values) {
+    Request.Builder builder = new Request.Builder();
+    builder.setHeader("Range", Arrays.asList(values));
+    return builder.build();
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int n;
+    while ((n = in.read(buffer)) >= 0) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] compressibleContent() {
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      content.append(".rule").append(i).append(" { color: red; }\n");
+    }
+    return content.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static Request acceptEncoding(String... values) {
+    Request.Builder builder = new Request.Builder();
+    builder.setHeader("Accept-Encoding", Arrays.asList(values));
+    return builder.build();
+  }
+
+  private static String getHead(byte[] response) {
+    String s = new String(response, StandardCharsets.ISO_8859_1);
+    return s.substring(0, s.indexOf("\r\n\r\n") + 2);
+  }
+
+  private static byte[] getBody(byte[] response) {
+    int start = getHead(response).length() + 2;
+    return Arrays.copyOfRange(response, start, response.length);
+  }
+
+  private static byte[] gunzip(byte[] compressed) throws IOException {
+    return readAll(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+  }
+
   private File createFakeFile(String name, byte[] content) throws IOException {
     FileOutputStream out = null;
     try {
@@ -0,0 +1,187 @@
+package spikedog.casual.server.toolkit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import spikedog.casual.server.toolkit.MultipartParser.Part;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MultipartParserTest {
+  private static final String BOUNDARY = "----formboundary42";
+
+  private static final String BODY =
+      "preamble\r\n"
+      + "--" + BOUNDARY + "\r\n"
+      + "Content-Disposition: form-data; name=\"title\"\r\n"
+      + "\r\n"
+      + "Holiday\r\n"
+      + "--" + BOUNDARY + "\r\n"
+      + "Content-Disposition: form-data; name=\"photo\"; filename=\"beach; day 1.jpg\"\r\n"
+      + "Content-Type: image/jpeg\r\n"
+      + "\r\n"
+      + "\r\n--" + BOUNDARY.substring(0, 10) + " not a delimiter\r\n"
+      + "--" + BOUNDARY + "--\r\n"
+      + "epilogue";
+
+  private static final String PHOTO_CONTENT =
+      "\r\n--" + BOUNDARY.substring(0, 10) + " not a delimiter";
+
+  @Test
+  public void testParts() throws IOException {
+    MultipartParser parser = new MultipartParser(stream(BODY), BOUNDARY);
+
+    Part title = parser.nextPart();
+    assertEquals("title", title.getName());
+    assertNull(title.getFileName());
+    assertNull(title.getContentType());
+    assertEquals(-1, title.getSize());
+    assertEquals("Holiday", read(title.getInputStream()));
+
+    Part photo = parser.nextPart();
+    assertEquals("photo", photo.getName());
+    assertEquals("beach; day 1.jpg", photo.getFileName());
+    assertEquals("image/jpeg", photo.getContentType());
+    assertEquals(PHOTO_CONTENT, read(photo.getInputStream()));
+
+    assertNull(parser.nextPart());
+    assertNull(parser.nextPart());
+  }
+
+  @Test
+  public void testUnreadPartSkipped() throws IOException {
+    MultipartParser parser = new MultipartParser(stream(BODY), BOUNDARY);
+    parser.nextPart();
+
+    Part photo = parser.nextPart();
+    assertEquals("photo", photo.getName());
+    assertEquals(PHOTO_CONTENT, read(photo.getInputStream()));
+  }
+
+  @Test
+  public void testShortReads() throws IOException {
+    MultipartParser parser = new MultipartParser(new TrickleInputStream(stream(BODY)), BOUNDARY);
+    assertEquals("Holiday", read(parser.nextPart().getInputStream()));
+    assertEquals(PHOTO_CONTENT, read(parser.nextPart().getInputStream()));
+    assertNull(parser.nextPart());
+  }
+
+  @Test
+  public void testLargePartSpilled() throws IOException {
+    StringBuilder large = new StringBuilder();
+    while (large.length() < 100000) {
+      large.append("0123456789abcdef\r\n-");
+    }
+    String body = "--" + BOUNDARY + "\r\n"
+        + "Content-Disposition: form-data; name=\"small\"\r\n\r\n"
+        + "tiny\r\n"
+        + "--" + BOUNDARY + "\r\n"
+        + "Content-Disposition: form-data; name=\"large\"; filename=\"large.txt\"\r\n\r\n"
+        + large + "\r\n"
+        + "--" + BOUNDARY + "--";
+
+    List<Part> parts = new MultipartParser(new TrickleInputStream(stream(body)), BOUNDARY)
+        .readAllParts(1024, null);
+    assertEquals(2, parts.size());
+
+    Part small = parts.get(0);
+    assertNull(small.getFile());
+    assertEquals(4, small.getSize());
+    assertEquals("tiny", read(small.getInputStream()));
+
+    Part spilled = parts.get(1);
+    File file = spilled.getFile();
+    assertNotNull(file);
+    assertTrue(file.isFile());
+    assertEquals(large.length(), spilled.getSize());
+    assertEquals(large.length(), file.length());
+    assertArrayEquals(
+        large.toString().getBytes(StandardCharsets.ISO_8859_1),
+        readBytes(spilled.getInputStream()));
+
+    spilled.delete();
+    assertFalse(file.exists());
+  }
+
+  @Test
+  public void testNegativeSpillThreshold() throws IOException {
+    MultipartParser parser = new MultipartParser(stream(BODY), BOUNDARY);
+    try {
+      parser.readAllParts(-1, null);
+      fail("Accepted a negative spill threshold");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    // Nothing was read, so the parts are all still there.
+    assertEquals(2, parser.readAllParts(1024, null).size());
+  }
+
+  @Test
+  public void testMissingClosingDelimiter() throws IOException {
+    String body = "--" + BOUNDARY + "\r\n"
+        + "Content-Disposition: form-data; name=\"truncated\"\r\n\r\n"
+        + "no end";
+    MultipartParser parser = new MultipartParser(stream(body), BOUNDARY);
+    Part part = parser.nextPart();
+    try {
+      read(part.getInputStream());
+      fail("Truncated body was accepted");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testParseParameters() {
+    assertEquals(
+        "a \"quoted\" value",
+        MultipartParser.parseParameters(" Name=\"a \\\"quoted\\\" value\"; flag").get("name"));
+    assertEquals(
+        "simple", MultipartParser.parseParameters("flag; boundary=simple").get("boundary"));
+  }
+
+  private static InputStream stream(String s) {
+    return new ByteArrayInputStream(s.getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  private static String read(InputStream in) throws IOException {
+    return new String(readBytes(in), StandardCharsets.ISO_8859_1);
+  }
+
+  private static byte[] readBytes(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int n;
+    while ((n = in.read(buffer)) >= 0) {
+      out.write(buffer, 0, n);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+  /** Returns at most 3 bytes per read, so that delimiters straddle reads. */
+  private static final class TrickleInputStream extends FilterInputStream {
+    TrickleInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return super.read(b, off, Math.min(len, 3));
+    }
+  }
+}
@@ -0,0 +1,206 @@
+package spikedog.casual.server.toolkit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import spikedog.casual.server.Request;
+import spikedog.casual.server.RequestLine;
+import spikedog.casual.server.Response;
+import spikedog.casual.server.StatusLine;
+import spikedog.casual.server.testutils.StringyOutputStream;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class RouterTest {
+  private static final Router.Handler NO_OP = new Router.Handler() {
+    @Override
+    public void handle(Request request, Response response, Router.Match match) {
+    }
+  };
+
+  @Test
+  public void testLiterals() {
+    Router router = new Router()
+        .add("GET", "/", NO_OP)
+        .add("GET", "/users", NO_OP)
+        .add("GET", "/users/", NO_OP)
+        .add("GET", "/users/all", NO_OP);
+
+    assertEquals("/", router.match("GET", "/").getPattern());
+    assertEquals("/users", router.match("GET", "/users").getPattern());
+    assertEquals("/users/", router.match("GET", "/users/").getPattern());
+    assertEquals("/users/all", router.match("GET", "/users/all?page=2").getPattern());
+    assertNull(router.match("GET", "/user"));
+    assertNull(router.match("GET", "/users/all/more"));
+    assertNull(router.match("GET", "*"));
+  }
+
+  @Test
+  public void testManyLiterals() {
+    Router router = new Router();
+    for (int i = 0; i < 400; i++) {
+      router.add("GET", "/api/v1/resource" + i + "/items", NO_OP);
+    }
+    for (int i = 0; i < 400; i++) {
+      String path = "/api/v1/resource" + i + "/items";
+      assertEquals(path, router.match("GET", path).getPattern());
+    }
+    assertNull(router.match("GET", "/api/v1/resource400/items"));
+  }
+
+  @Test
+  public void testParameters() {
+    Router router = new Router()
+        .add("GET", "/users/{id}", NO_OP)
+        .add("GET", "/users/{user}/posts/{post}", NO_OP);
+
+    Router.Match match = router.match("GET", "/users/42");
+    assertEquals("/users/{id}", match.getPattern());
+    assertEquals("42", match.getParameter("id"));
+    assertNull(match.getParameter("user"));
+    assertNull(match.getWildcard());
+
+    match = router.match("GET", "/users/bob/posts/7?x=1");
+    assertEquals("bob", match.getParameter("user"));
+    assertEquals("7", match.getParameter("post"));
+
+    // Parameters match non-empty segments only.
+    assertNull(router.match("GET", "/users/"));
+  }
+
+  @Test
+  public void testPrecedence() {
+    Router router = new Router()
+        .add("GET", "/files/{name}/info", NO_OP)
+        .add("GET", "/files/latest", NO_OP)
+        .add("GET", "/files/latest/size", NO_OP)
+        .add("GET", "/files/*", NO_OP);
+
+    assertEquals("/files/latest", router.match("GET", "/files/latest").getPattern());
+    assertEquals("/files/latest/size", router.match("GET", "/files/latest/size").getPattern());
+    // Backtracks from the literal segment to the parameter.
+    Router.Match match = router.match("GET", "/files/latest/info");
+    assertEquals("/files/{name}/info", match.getPattern());
+    assertEquals("latest", match.getParameter("name"));
+    // And from the parameter to the wildcard.
+    match = router.match("GET", "/files/a/b/c");
+    assertEquals("/files/*", match.getPattern());
+    assertEquals("a/b/c", match.getWildcard());
+  }
+
+  @Test
+  public void testWildcard() {
+    Router router = new Router()
+        .add("GET", "/static/*", NO_OP)
+        .add("GET", "/*", NO_OP);
+
+    assertEquals("css/site.css", router.match("GET", "/static/css/site.css").getWildcard());
+    assertEquals("", router.match("GET", "/static/").getWildcard());
+    assertEquals("", router.match("GET", "/static").getWildcard());
+    Router.Match match = router.match("GET", "/other/page?q=1");
+    assertEquals("/*", match.getPattern());
+    assertEquals("other/page", match.getWildcard());
+    assertEquals("", router.match("GET", "/").getWildcard());
+  }
+
+  @Test
+  public void testMethods() {
+    Router router = new Router()
+        .add("GET", "/items/{id}", NO_OP)
+        .add("DELETE", "/items/{item}", NO_OP);
+
+    assertEquals("/items/{id}", router.match("get", "/items/1").getPattern());
+    assertEquals("1", router.match("DELETE", "/items/1").getParameter("item"));
+    assertNull(router.match("POST", "/items/1"));
+    assertEquals("/items/{id}", router.match(null, "/items/1").getPattern());
+  }
+
+  @Test
+  public void testAllowedMethods() {
+    Router router = new Router()
+        .add("GET", "/items/{id}", NO_OP)
+        .add("DELETE", "/items/{item}", NO_OP)
+        .add("get", "/items/", NO_OP)
+        .add("PATCH", "/items/special", NO_OP);
+
+    assertEquals(Arrays.asList("GET", "DELETE"), router.getAllowedMethods("/items/1"));
+    assertEquals(Arrays.asList("GET"), router.getAllowedMethods("/items/?q=1"));
+    assertEquals(
+        Arrays.asList("GET", "DELETE", "PATCH"), router.getAllowedMethods("/items/special"));
+    assertTrue(router.getAllowedMethods("/other").isEmpty());
+  }
+
+  @Test
+  public void testInvalidRoutes() {
+    Router router = new Router().add("GET", "/a/{id}", NO_OP);
+    String[] invalid = {"", "a", "/a/{id}", "/b/*/c", "/{}", "/{x}/{x}", "/a{b}", "/a*"};
+    for (String pattern : invalid) {
+      try {
+        router.add("GET", pattern, NO_OP);
+        fail("Added " + pattern);
+      } catch (IllegalArgumentException e) {
+        // Expected.
+      }
+    }
+  }
+
+  @Test
+  public void testRoute() throws IOException {
+    Router router = new Router().add("GET", "/hello/{name}", new Router.Handler() {
+      @Override
+      public void handle(Request request, Response response, Router.Match match)
+          throws IOException {
+        response.setStatusLine(StatusLine.OK);
+        response.addHeader("X-Name", match.getParameter("name"));
+        response.flush();
+      }
+    });
+
+    StringyOutputStream out = new StringyOutputStream();
+    assertTrue(router.route(request("GET", "/hello/world"), new Response(out)));
+    assertEquals("HTTP/1.1 200 OK\r\nX-Name: world\r\n", out.getString());
+
+    out = new StringyOutputStream();
+    assertFalse(router.route(request("GET", "/goodbye"), new Response(out)));
+    assertEquals("", out.getString());
+  }
+
+  @Test
+  public void testRoutingServer() throws IOException {
+    Router router = new Router()
+        .add("GET", "/items/{id}", NO_OP)
+        .add("PATCH", "/items/{id}", new Router.Handler() {
+          @Override
+          public void handle(Request request, Response response, Router.Match match)
+              throws IOException {
+            response.setStatusLine(StatusLine.NO_CONTENT);
+            response.flush();
+          }
+        });
+    RoutingServer server = new RoutingServer(0, router);
+
+    StringyOutputStream out = new StringyOutputStream();
+    server.onUnsupportedMethod(request("PATCH", "/items/1"), new Response(out));
+    assertEquals("HTTP/1.1 204 No Content\r\n", out.getString());
+
+    out = new StringyOutputStream();
+    server.onPost(request("POST", "/items/1"), new Response(out));
+    assertEquals("HTTP/1.1 405 Method Not Allowed\r\nAllow: GET, PATCH\r\n", out.getString());
+
+    out = new StringyOutputStream();
+    server.onGet(request("GET", "/other"), new Response(out));
+    assertTrue(out.getString().startsWith("HTTP/1.1 404 "));
+  }
+
+  private static Request request(String method, String uri) {
+    Request.Builder builder = new Request.Builder();
+    builder.setRequestLine(new RequestLine(method, uri, "HTTP/1.1"));
+    return builder.build();
+  }
+}
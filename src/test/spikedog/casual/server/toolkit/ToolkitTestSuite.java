@@ -5,6 +5,13 @@ import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
-@SuiteClasses({ FileServeHelperTest.class })
+@SuiteClasses({
+  ByteRangeTest.class,
+  FileCacheTest.class,
+  FileHandleCacheTest.class,
+  FileServeHelperTest.class,
+  MultipartParserTest.class,
+  RouterTest.class
+})
 public class ToolkitTestSuite {
-}
\ No newline at end of file
+}
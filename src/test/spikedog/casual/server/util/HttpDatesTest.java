@@ -0,0 +1,29 @@
+package spikedog.casual.server.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class HttpDatesTest {
+  private static final long DATE_MILLIS = 784111777000L;
+
+  @Test
+  public void testFormat() {
+    assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HttpDates.format(DATE_MILLIS));
+  }
+
+  @Test
+  public void testParse() {
+    assertEquals(DATE_MILLIS, HttpDates.parse("Sun, 06 Nov 1994 08:49:37 GMT"));
+    assertEquals(DATE_MILLIS, HttpDates.parse("Sunday, 06-Nov-94 08:49:37 GMT"));
+    assertEquals(DATE_MILLIS, HttpDates.parse("Sun Nov  6 08:49:37 1994"));
+    assertEquals(DATE_MILLIS + 10 * 86400000L, HttpDates.parse("Wed Nov 16 08:49:37 1994"));
+    assertEquals(DATE_MILLIS, HttpDates.parse(" Sun, 6 Nov 1994 08:49:37 GMT "));
+  }
+
+  @Test
+  public void testParseInvalid() {
+    assertEquals(-1, HttpDates.parse("yesterday"));
+    assertEquals(-1, HttpDates.parse("Sun, 06 Nov 1994 08:49:37"));
+  }
+}
@@ -0,0 +1,56 @@
+package spikedog.casual.server.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RequestExecutorsTest {
+  @Test
+  public void testVirtualThreadPerTaskExecutor() throws Exception {
+    if (!RequestExecutors.isVirtualThreadSupported()) {
+      try {
+        RequestExecutors.newVirtualThreadPerTaskExecutor();
+        fail("Created virtual thread executor on a JVM without virtual threads.");
+      } catch (UnsupportedOperationException e) {
+        // Expected.
+      }
+      return;
+    }
+
+    ExecutorService executor = RequestExecutors.newVirtualThreadPerTaskExecutor();
+    Future<Boolean> isVirtual = executor.submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return (Boolean) Thread.class.getMethod("isVirtual").invoke(Thread.currentThread());
+      }
+    });
+    assertEquals(true, isVirtual.get());
+    executor.shutdown();
+  }
+
+  @Test
+  public void testPerConnectionExecutor() throws Exception {
+    ExecutorService executor = RequestExecutors.newPerConnectionExecutor(2);
+    final CountDownLatch bothRunning = new CountDownLatch(2);
+    Callable<Boolean> task = new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        // Only completes if the other task runs at the same time.
+        bothRunning.countDown();
+        return bothRunning.await(5, TimeUnit.SECONDS);
+      }
+    };
+    Future<Boolean> first = executor.submit(task);
+    Future<Boolean> second = executor.submit(task);
+    assertEquals(true, first.get());
+    assertEquals(true, second.get());
+    executor.shutdown();
+  }
+}
@@ -0,0 +1,10 @@
+package spikedog.casual.server.util;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+import org.junit.runners.Suite.SuiteClasses;
+
+@RunWith(Suite.class)
+@SuiteClasses({ HttpDatesTest.class, RequestExecutorsTest.class })
+public class UtilTestSuite {
+}